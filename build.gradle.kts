@@ -7,11 +7,63 @@ repositories {
     jcenter()
 }
 
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+    create("load") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+val jmhImplementation by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+val jmhRuntimeOnly by configurations.getting {
+    extendsFrom(configurations.runtimeOnly.get())
+}
+val loadImplementation by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+val loadRuntimeOnly by configurations.getting {
+    extendsFrom(configurations.runtimeOnly.get())
+}
+
 tasks.test {
     useJUnitPlatform {
     }
 }
 
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs JMH benchmarks with the gc profiler, -Pjmh.include=<regexp> selects benchmarks"
+    dependsOn("jmhClasses")
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val resultFile = file("$buildDir/reports/jmh/results.json")
+    args = listOf(
+            project.findProperty("jmh.include")?.toString() ?: ".*",
+            "-prof", "gc",
+            "-rf", "json",
+            "-rff", resultFile.path
+    )
+    doFirst {
+        resultFile.parentFile.mkdirs()
+    }
+}
+
+tasks.register<JavaExec>("loadTest") {
+    group = "verification"
+    description = "Runs open-model HTTP load against the app, -Pload.*=<value> and -Pledger.*=<value> are passed as system properties"
+    dependsOn("loadClasses")
+    classpath = sourceSets["load"].runtimeClasspath
+    mainClass.set("com.gnefedev.coroutines.vs.reactor.load.LoadTest")
+    systemProperty("load.report-dir", "$buildDir/reports/load")
+    systemProperties(project.properties.filterKeys { it.startsWith("load.") || it.startsWith("ledger.") })
+}
+
 dependencies {
     implementation(platform("org.springframework.boot:spring-boot-dependencies:2.4.1"))
 
@@ -19,7 +71,12 @@ dependencies {
     implementation("io.r2dbc:r2dbc-pool")
     implementation("org.springframework.boot:spring-boot-starter-data-r2dbc")
     implementation("org.springframework.boot:spring-boot-starter-validation")
+    implementation("org.springframework.boot:spring-boot-starter-actuator")
+    implementation("com.github.ben-manes.caffeine:caffeine")
+    implementation("com.zaxxer:HikariCP")
+    implementation("com.fasterxml.jackson.dataformat:jackson-dataformat-cbor")
     runtimeOnly("io.r2dbc:r2dbc-h2")
+    runtimeOnly("io.micrometer:micrometer-registry-prometheus")
 
     testImplementation("org.springframework.boot:spring-boot-starter-test")
 
@@ -28,4 +85,13 @@ dependencies {
 
     testCompileOnly("org.projectlombok:lombok:1.18.16")
     testAnnotationProcessor("org.projectlombok:lombok:1.18.16")
+
+    jmhImplementation("org.openjdk.jmh:jmh-core:1.26")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.26")
+    "jmhCompileOnly"("org.projectlombok:lombok:1.18.16")
+    "jmhAnnotationProcessor"("org.projectlombok:lombok:1.18.16")
+
+    loadImplementation("org.hdrhistogram:HdrHistogram")
+    "loadCompileOnly"("org.projectlombok:lombok:1.18.16")
+    "loadAnnotationProcessor"("org.projectlombok:lombok:1.18.16")
 }
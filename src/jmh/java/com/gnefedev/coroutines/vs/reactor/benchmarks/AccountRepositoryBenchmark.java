@@ -0,0 +1,34 @@
+package com.gnefedev.coroutines.vs.reactor.benchmarks;
+
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versioned update of {@code AccountRepositoryImpl.transferAmount} after a read of the current version.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class AccountRepositoryBenchmark {
+    @Benchmark
+    public void transferAmount(LedgerState state) {
+        var accountId = state.accountId(state.nextAccountIndex());
+        state.accountRepository.findById(accountId)
+                .flatMap(account -> state.accountRepository.transferAmount(account.getId(), account.getVersion(), 1))
+                .onErrorResume(OptimisticLockException.class, e -> Mono.empty())
+                .block();
+    }
+}
@@ -0,0 +1,40 @@
+package com.gnefedev.coroutines.vs.reactor.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole transfer pipeline against in-memory H2, rejected transfers (509) are part of the cost under contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class LedgerBenchmark {
+    @Benchmark
+    public void transfer(LedgerState state) {
+        var from = state.nextAccountIndex();
+        state.ledger.transfer(state.nextTransactionKey(), state.accountId(from), state.otherAccountId(from), 1)
+                .onErrorResume(e -> Mono.empty())
+                .block();
+    }
+
+    @Benchmark
+    public void transferParallel(LedgerState state) {
+        var from = state.nextAccountIndex();
+        state.ledger.transferParallel(state.nextTransactionKey(), state.accountId(from), state.otherAccountId(from), 1)
+                .onErrorResume(e -> Mono.empty())
+                .block();
+    }
+}
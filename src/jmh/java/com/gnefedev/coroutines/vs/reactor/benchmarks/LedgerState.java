@@ -0,0 +1,90 @@
+package com.gnefedev.coroutines.vs.reactor.benchmarks;
+
+import com.gnefedev.coroutines.vs.reactor.Application;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.services.Ledger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import reactor.core.publisher.Flux;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application context on in-memory H2 with {@link #accountCount} funded accounts.
+ * {@link #contention} is the share of transfers that debit the first account.
+ */
+@State(Scope.Benchmark)
+public class LedgerState {
+    @Param({"2", "100", "10000"})
+    public int accountCount;
+    @Param({"0.0", "0.5", "0.9"})
+    public double contention;
+
+    public ConfigurableApplicationContext context;
+    public Ledger ledger;
+    public AccountRepository accountRepository;
+    private long[] accountIds;
+    private final AtomicLong keys = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void start() {
+        context = new SpringApplicationBuilder(Application.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.r2dbc.generate-unique-name=true",
+                        "logging.level.com.gnefedev=OFF"
+                )
+                .run();
+        ledger = context.getBean(Ledger.class);
+        accountRepository = context.getBean(AccountRepository.class);
+        accountIds = Flux.range(0, accountCount)
+                .concatMap(i -> accountRepository.save(Account.builder()
+                        .amountMinorUnits(Long.MAX_VALUE / 4)
+                        .version(0)
+                        .build()))
+                .map(Account::getId)
+                .collectList()
+                .block()
+                .stream()
+                .mapToLong(Long::longValue)
+                .toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+    }
+
+    public String nextTransactionKey() {
+        return "benchmark-" + keys.incrementAndGet();
+    }
+
+    public int nextAccountIndex() {
+        var random = ThreadLocalRandom.current();
+        if (random.nextDouble() < contention) {
+            return 0;
+        }
+        return random.nextInt(accountIds.length);
+    }
+
+    public long accountId(int index) {
+        return accountIds[index];
+    }
+
+    /**
+     * Account different from the one at index, transfers to the same account are not interesting here.
+     */
+    public long otherAccountId(int index) {
+        var other = ThreadLocalRandom.current().nextInt(accountIds.length - 1);
+        return accountIds[other >= index ? other + 1 : other];
+    }
+}
@@ -0,0 +1,87 @@
+package com.gnefedev.coroutines.vs.reactor.benchmarks;
+
+import com.gnefedev.coroutines.vs.reactor.util.LoggerHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of MDC propagation: the deprecated withMDC wrapper and {@link LoggerHelper#logWithMdc} at a logging site
+ * against the same chains without either, on a synchronous operator and on a fuseable range-map-filter chain.
+ * MDC is set only at the logging site, so the fuseable chain stays fused.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class LoggerHelperBenchmark {
+    private static final int FUSED_ELEMENTS = 100;
+
+    private final Context context = LoggerHelper.addEntryToMDCContext(Context.empty(), "traceId", "0af7651916cd43dd8448eb211c80319c");
+
+    @Benchmark
+    public void baseline(Blackhole blackhole) {
+        Mono.just(1)
+                .flatMap(value -> Mono.just(value + 1))
+                .contextWrite(context)
+                .subscribe(blackhole::consume);
+    }
+
+    /**
+     * The wrapper used before, sets MDC around the whole inner chain.
+     */
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public void withMdc(Blackhole blackhole) {
+        Mono.just(1)
+                .flatMap(LoggerHelper.withMDC(value -> Mono.just(value + 1)))
+                .contextWrite(context)
+                .subscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    public void loggedWithMdc(Blackhole blackhole) {
+        Mono.just(1)
+                .flatMap(value -> LoggerHelper.logWithMdc(() -> blackhole.consume(value)).thenReturn(value + 1))
+                .contextWrite(context)
+                .subscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    public void fusedBaseline(Blackhole blackhole) {
+        fuseable()
+                .contextWrite(context)
+                .subscribe(blackhole::consume);
+    }
+
+    /**
+     * The fuseable chain with one logging site at its end.
+     */
+    @Benchmark
+    public void fusedLoggedWithMdc(Blackhole blackhole) {
+        fuseable()
+                .concatWith(LoggerHelper.logWithMdc(() -> blackhole.consume(FUSED_ELEMENTS)).then(Mono.<Integer>empty()))
+                .contextWrite(context)
+                .subscribe(blackhole::consume);
+    }
+
+    private static Flux<Integer> fuseable() {
+        return Flux.range(0, FUSED_ELEMENTS)
+                .map(value -> value + 1)
+                .filter(value -> value % 2 == 0);
+    }
+}
@@ -0,0 +1,55 @@
+package com.gnefedev.coroutines.vs.reactor.benchmarks;
+
+import com.gnefedev.coroutines.vs.reactor.util.Money;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balance check and new balances of one transfer, as BigDecimal before and as long minor units now.
+ * Run with the gc profiler to compare allocation per transfer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class MoneyBenchmark {
+    private long fromBalance = 1_000_000_000L;
+    private long toBalance = 1_000L;
+    private long amount = 1_500L;
+
+    @Benchmark
+    public void bigDecimal(Blackhole blackhole) {
+        var from = BigDecimal.valueOf(fromBalance);
+        var to = BigDecimal.valueOf(toBalance);
+        var toTransfer = BigDecimal.valueOf(amount);
+        if (from.subtract(toTransfer).compareTo(BigDecimal.ZERO) < 0 || to.add(toTransfer).compareTo(BigDecimal.ZERO) < 0) {
+            blackhole.consume(false);
+            return;
+        }
+        blackhole.consume(from.subtract(toTransfer));
+        blackhole.consume(to.add(toTransfer));
+    }
+
+    @Benchmark
+    public void minorUnits(Blackhole blackhole) {
+        if (fromBalance < amount || Money.creditOverflows(toBalance, amount)) {
+            blackhole.consume(false);
+            return;
+        }
+        blackhole.consume(fromBalance - amount);
+        blackhole.consume(toBalance + amount);
+    }
+}
@@ -0,0 +1,79 @@
+package com.gnefedev.coroutines.vs.reactor.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequestValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the request body with ObjectMappers configured like the WebFlux ones, JSON against CBOR,
+ * and bean validation against {@link TransferRequestValidator}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferRequestDecodingBenchmark {
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final ObjectMapper cborMapper = Jackson2ObjectMapperBuilder.cbor().build();
+    private final Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+    private final byte[] json = ("{" +
+            "\"transactionKey\":\"2f1c6f8e-0d6b-4bd4-9d7c-3c4a1f0b9e11\"," +
+            "\"fromAccountId\":1042," +
+            "\"toAccountId\":77," +
+            "\"amount\":1500" +
+            "}").getBytes(StandardCharsets.UTF_8);
+    private byte[] cbor;
+    private TransferRequest request;
+
+    @Setup
+    public void setUp() throws IOException {
+        request = objectMapper.readValue(json, TransferRequest.class);
+        cbor = cborMapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public TransferRequest decode() throws IOException {
+        return objectMapper.readValue(json, TransferRequest.class);
+    }
+
+    @Benchmark
+    public TransferRequest decodeCbor() throws IOException {
+        return cborMapper.readValue(cbor, TransferRequest.class);
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<TransferRequest>> validateReflective() {
+        return validator.validate(request);
+    }
+
+    @Benchmark
+    public TransferRequest validatePrecompiled() {
+        return TransferRequestValidator.validate(request);
+    }
+
+    @Benchmark
+    public TransferRequest decodeCborAndValidate() throws IOException {
+        return TransferRequestValidator.validate(cborMapper.readValue(cbor, TransferRequest.class));
+    }
+}
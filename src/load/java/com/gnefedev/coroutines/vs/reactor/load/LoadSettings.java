@@ -0,0 +1,55 @@
+package com.gnefedev.coroutines.vs.reactor.load;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.Duration;
+
+/**
+ * Parameters of a load run, read from {@code load.*} system properties.
+ */
+@Builder
+@Getter
+@ToString
+public class LoadSettings {
+    /**
+     * Requests per second, sent on schedule whatever the latency is.
+     */
+    private final int rate;
+    private final Duration warmup;
+    private final Duration duration;
+    private final int accounts;
+    /**
+     * Exponent of the Zipf distribution of accounts, 0 is uniform.
+     */
+    private final double zipfExponent;
+    /**
+     * Share of requests repeating one of the recent requests with the same transactionKey.
+     */
+    private final double duplicateRatio;
+    private final long initialBalance;
+    private final long maxAmount;
+    /**
+     * Requests over this limit are not sent and counted as skipped, so a stuck app can't exhaust the heap of the generator.
+     */
+    private final int maxInFlight;
+    private final int connections;
+    private final String reportDir;
+
+    public static LoadSettings fromSystemProperties() {
+        return LoadSettings.builder()
+                .rate(Integer.getInteger("load.rate", 5000))
+                .warmup(Duration.parse(System.getProperty("load.warmup", "PT10S")))
+                .duration(Duration.parse(System.getProperty("load.duration", "PT30S")))
+                .accounts(Integer.getInteger("load.accounts", 1000))
+                .zipfExponent(Double.parseDouble(System.getProperty("load.zipf-exponent", "1.0")))
+                .duplicateRatio(Double.parseDouble(System.getProperty("load.duplicate-ratio", "0.01")))
+                .initialBalance(Long.getLong("load.initial-balance", 1_000_000))
+                .maxAmount(Long.getLong("load.max-amount", 100))
+                .maxInFlight(Integer.getInteger("load.max-in-flight", 10_000))
+                .connections(Integer.getInteger("load.connections", 500))
+                .reportDir(System.getProperty("load.report-dir", "build/reports/load"))
+                .build();
+    }
+}
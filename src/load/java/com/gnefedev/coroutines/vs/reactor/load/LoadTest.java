@@ -0,0 +1,268 @@
+package com.gnefedev.coroutines.vs.reactor.load;
+
+import com.gnefedev.coroutines.vs.reactor.Application;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.services.LedgerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-model load against {@code PUT /api/ledger/transfer} of the app started in this JVM.
+ * <p>
+ * Requests are sent on a fixed schedule and latency is measured from the time a request was due,
+ * not from the time it was actually sent, so a slow app can't hide its queueing delay (coordinated omission).
+ * Accounts are picked by {@link ZipfDistribution}, a share of requests repeats a recent transactionKey.
+ * <p>
+ * Run with {@code ./gradlew loadTest -Pload.rate=5000 -Pload.zipf-exponent=1.2 -Pledger.engine=striped},
+ * see {@link LoadSettings} for all parameters. {@code -Pledger.engine=blocking} runs the same load against
+ * the JDBC engine, the report has heap growth per in-flight request to compare the two models.
+ * <p>
+ * The report starts with the time the app took to become ready and the latency of the warmup phase,
+ * {@code -Pledger.warmup.enabled=false} shows them for a cold start.
+ */
+@RequiredArgsConstructor
+@Log4j2
+public class LoadTest {
+    private static final Duration TICK = Duration.ofMillis(1);
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+    private static final int RECENT_REQUESTS = 1024;
+    private static final int IO_ERROR = -1;
+
+    private final LoadSettings settings;
+    private final WebClient webClient;
+    private final long[] accountIds;
+    private final ZipfDistribution accounts;
+    private final AtomicReferenceArray<TransferRequest> recentRequests = new AtomicReferenceArray<>(RECENT_REQUESTS);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws IOException {
+        var settings = LoadSettings.fromSystemProperties();
+        log.info("load test with " + settings);
+        try (var context = startApplication()) {
+            var port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+            var connectionProvider = ConnectionProvider.builder("load")
+                    .maxConnections(settings.getConnections())
+                    .pendingAcquireMaxCount(-1)
+                    .build();
+            var webClient = WebClient.builder()
+                    .baseUrl("http://localhost:" + port + "/api/ledger")
+                    .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connectionProvider)))
+                    .build();
+            var loadTest = new LoadTest(
+                    settings,
+                    webClient,
+                    createAccounts(context.getBean(AccountRepository.class), settings),
+                    new ZipfDistribution(settings.getAccounts(), settings.getZipfExponent())
+            );
+            var meterRegistry = context.getBean(MeterRegistry.class);
+            var retries = meterRegistry.counter(LedgerMetrics.RETRIES);
+
+            log.info("warmup for " + settings.getWarmup());
+            var warmup = loadTest.run(settings.getWarmup());
+
+            log.info("measuring for " + settings.getDuration());
+            var retriesBefore = retries.count();
+            var result = loadTest.run(settings.getDuration());
+            result.retries = (long) (retries.count() - retriesBefore);
+            result.timeToReadyMillis = meterRegistry.get("ledger.startup.time_to_ready").timeGauge().value(TimeUnit.MILLISECONDS);
+            result.warmupLatency = warmup.latency;
+
+            result.report(System.out);
+            var reportDir = Files.createDirectories(Path.of(settings.getReportDir()));
+            try (var out = new PrintStream(new FileOutputStream(reportDir.resolve("report.txt").toFile()))) {
+                out.println(settings);
+                result.report(out);
+            }
+            try (var out = new PrintStream(new FileOutputStream(reportDir.resolve("latency.hgrm").toFile()))) {
+                //the HdrHistogram percentile format, can be plotted with the HdrHistogram plotter
+                result.latency.outputPercentileDistribution(out, (double) TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            connectionProvider.dispose();
+        }
+    }
+
+    private static ConfigurableApplicationContext startApplication() {
+        return new SpringApplicationBuilder(Application.class)
+                .properties(
+                        "server.port=0",
+                        "spring.r2dbc.generate-unique-name=true",
+                        //every 422 is logged as error, it would measure the logger
+                        "logging.level.com.gnefedev=OFF"
+                )
+                .run();
+    }
+
+    private static long[] createAccounts(AccountRepository accountRepository, LoadSettings settings) {
+        return Flux.range(0, settings.getAccounts())
+                .concatMap(i -> accountRepository.save(Account.builder()
+                        .amountMinorUnits(settings.getInitialBalance())
+                        .version(0)
+                        .build()))
+                .map(Account::getId)
+                .collectList()
+                .blockOptional()
+                .orElseThrow()
+                .stream()
+                .mapToLong(Long::longValue)
+                .toArray();
+    }
+
+    private Result run(Duration duration) {
+        var result = new Result(duration);
+        System.gc();
+        result.baselineHeap = memory.getHeapMemoryUsage().getUsed();
+        Scheduler ticks = Schedulers.newSingle("load-ticks");
+        try {
+            var start = System.nanoTime();
+            var end = start + duration.toNanos();
+            var nanosPerRequest = TimeUnit.SECONDS.toNanos(1) / (double) settings.getRate();
+            var sent = new long[1];
+            //a late tick sends everything that was due since the previous one, so dropped ticks don't lower the rate
+            Flux.interval(Duration.ZERO, TICK, ticks)
+                    .onBackpressureDrop()
+                    .map(__ -> System.nanoTime())
+                    .takeWhile(now -> now < end)
+                    .doOnNext(now -> {
+                        var due = (long) ((now - start) / nanosPerRequest);
+                        for (; sent[0] <= due; sent[0]++) {
+                            send(start + (long) (sent[0] * nanosPerRequest), result);
+                        }
+                        var currentInFlight = inFlight.get();
+                        if (currentInFlight > result.peakInFlight) {
+                            result.peakInFlight = currentInFlight;
+                            result.heapAtPeakInFlight = memory.getHeapMemoryUsage().getUsed();
+                        }
+                    })
+                    .blockLast();
+            var drainDeadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+            while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            result.abandoned = inFlight.get();
+        } finally {
+            ticks.dispose();
+        }
+        return result;
+    }
+
+    private void send(long dueNanos, Result result) {
+        if (inFlight.incrementAndGet() > settings.getMaxInFlight()) {
+            inFlight.decrementAndGet();
+            result.skipped.increment();
+            return;
+        }
+        webClient.put()
+                .uri("/transfer")
+                .bodyValue(nextRequest())
+                .exchangeToMono(response -> response.releaseBody().thenReturn(response.rawStatusCode()))
+                .onErrorReturn(IO_ERROR)
+                .doFinally(__ -> inFlight.decrementAndGet())
+                .subscribe(status -> {
+                    result.latency.recordValue(Math.max(0, System.nanoTime() - dueNanos));
+                    result.statuses.computeIfAbsent(status, __ -> new LongAdder()).increment();
+                });
+    }
+
+    private TransferRequest nextRequest() {
+        var random = ThreadLocalRandom.current();
+        var slot = random.nextInt(RECENT_REQUESTS);
+        if (random.nextDouble() < settings.getDuplicateRatio()) {
+            var recent = recentRequests.get(slot);
+            if (recent != null) {
+                return recent;
+            }
+        }
+        var from = accounts.sample();
+        var request = TransferRequest.builder()
+                .transactionKey(UUID.randomUUID().toString())
+                .fromAccountId(accountIds[from])
+                .toAccountId(accountIds[accounts.sampleOtherThan(from)])
+                .amountMinorUnits(1 + random.nextLong(settings.getMaxAmount()))
+                .build();
+        recentRequests.set(slot, request);
+        return request;
+    }
+
+    private static class Result {
+        private final Duration duration;
+        private final Histogram latency = new ConcurrentHistogram(3);
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        private final LongAdder skipped = new LongAdder();
+        private long abandoned;
+        private long retries;
+        private long baselineHeap;
+        private int peakInFlight;
+        private long heapAtPeakInFlight;
+        private double timeToReadyMillis;
+        private Histogram warmupLatency;
+
+        private Result(Duration duration) {
+            this.duration = duration;
+        }
+
+        private void report(PrintStream out) {
+            out.printf("time to ready: %.0f ms%n", timeToReadyMillis);
+            if (warmupLatency != null && warmupLatency.getTotalCount() > 0) {
+                out.printf("warmup phase latency ms: p50 %.3f, p99 %.3f, max %.3f%n",
+                        millis(warmupLatency.getValueAtPercentile(50)),
+                        millis(warmupLatency.getValueAtPercentile(99)),
+                        millis(warmupLatency.getMaxValue()));
+            }
+            var completed = latency.getTotalCount();
+            out.printf("completed %d requests in %s, %.1f rps%n", completed, duration, completed / (double) duration.toSeconds());
+            out.printf("latency ms: p50 %.3f, p99 %.3f, p999 %.3f, max %.3f%n",
+                    millis(latency.getValueAtPercentile(50)),
+                    millis(latency.getValueAtPercentile(99)),
+                    millis(latency.getValueAtPercentile(99.9)),
+                    millis(latency.getMaxValue()));
+            new TreeMap<>(statuses).forEach((status, count) -> out.printf("status %s: %d (%.2f%%)%n",
+                    status == IO_ERROR ? "io error" : status.toString(),
+                    count.sum(),
+                    100.0 * count.sum() / completed));
+            out.printf("retries: %d (%.3f per request)%n", retries, completed == 0 ? 0.0 : retries / (double) completed);
+            out.printf("skipped over max in flight: %d, abandoned after drain timeout: %d%n", skipped.sum(), abandoned);
+            //garbage not yet collected counts too, compare runs of the same length and heap settings
+            out.printf("peak in flight: %d, heap over baseline: %.1f KiB per in-flight request%n",
+                    peakInFlight,
+                    peakInFlight == 0 ? 0.0 : (heapAtPeakInFlight - baselineHeap) / 1024.0 / peakInFlight);
+        }
+
+        private static double millis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.gnefedev.coroutines.vs.reactor.load;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ranks 0..size-1 with probability proportional to 1/(rank+1)^exponent, rank 0 is the hottest.
+ * Sampling is a binary search over the precomputed cumulative distribution.
+ */
+public class ZipfDistribution {
+    private final double[] cumulative;
+
+    public ZipfDistribution(int size, double exponent) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size should be positive, got " + size);
+        }
+        cumulative = new double[size];
+        var sum = 0.0;
+        for (int rank = 0; rank < size; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < size; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    public int sample() {
+        var index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        //not found gives -(insertion point) - 1, the insertion point is the sampled rank
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+
+    /**
+     * Sample different from the given rank.
+     */
+    public int sampleOtherThan(int rank) {
+        if (cumulative.length == 1) {
+            throw new IllegalStateException("only one rank");
+        }
+        int other;
+        do {
+            other = sample();
+        } while (other == rank);
+        return other;
+    }
+
+    /**
+     * Share of samples that fall on the given rank.
+     */
+    public double probability(int rank) {
+        return rank == 0 ? cumulative[0] : cumulative[rank] - cumulative[rank - 1];
+    }
+}
@@ -0,0 +1,357 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Component
+@ConfigurationProperties("ledger")
+public class LedgerProperties {
+    /**
+     * Name of the {@link com.gnefedev.coroutines.vs.reactor.services.TransferEngine} behind /api/ledger/transfer,
+     * "adaptive" switches between two engines at runtime.
+     */
+    private String engine = "sequential";
+    private final Bulk bulk = new Bulk();
+    private final GroupCommit groupCommit = new GroupCommit();
+    private final Striped striped = new Striped();
+    private final Idempotency idempotency = new Idempotency();
+    private final AccountCache accountCache = new AccountCache();
+    private final Adaptive adaptive = new Adaptive();
+    private final Retry retry = new Retry();
+    private final Logging logging = new Logging();
+    private final Statement statement = new Statement();
+    private final Journal journal = new Journal();
+    private final InMemory inMemory = new InMemory();
+    private final Blocking blocking = new Blocking();
+    private final Admission admission = new Admission();
+    private final BalanceStripes balanceStripes = new BalanceStripes();
+    private final Sharding sharding = new Sharding();
+    private final Reconciliation reconciliation = new Reconciliation();
+    private final Warmup warmup = new Warmup();
+
+    @Data
+    public static class Bulk {
+        /**
+         * Number of transfers applied in one DB transaction by the bulk endpoint.
+         */
+        private int chunkSize = 100;
+    }
+
+    @Data
+    public static class GroupCommit {
+        /**
+         * Max number of queued transfers committed in one DB transaction.
+         */
+        private int maxBatchSize = 64;
+        /**
+         * Max time the first transfer of a batch waits for others to join.
+         */
+        private long maxWaitMicros = 200;
+        /**
+         * Max number of batches waiting for their commit, transfers of a batch beyond it are answered with 503.
+         */
+        private int maxPendingBatches = 256;
+    }
+
+    @Data
+    public static class Striped {
+        /**
+         * Number of single-writer lanes transfers are spread over by account id.
+         */
+        private int lanes = 64;
+        /**
+         * Tasks waiting on one lane, more are rejected with 503.
+         */
+        private int maxQueuedPerLane = 1000;
+    }
+
+    @Data
+    public static class Idempotency {
+        /**
+         * When disabled every transfer looks its transactionKey up in the database.
+         */
+        private boolean enabled = true;
+        /**
+         * Max number of recently committed keys answered without the database.
+         */
+        private long cacheSize = 100_000;
+        private Duration cacheTtl = Duration.ofMinutes(10);
+        /**
+         * Keys per filter generation, a full generation is replaced by an empty one on the next rotation.
+         */
+        private int filterCapacity = 1_000_000;
+        private double filterFalsePositiveProbability = 0.01;
+    }
+
+    @Data
+    public static class AccountCache {
+        /**
+         * Serve AccountRepository.findById from local snapshots, should be enabled only when this process is the only writer of accounts.
+         */
+        private boolean enabled = false;
+        private long maxSize = 10_000;
+        /**
+         * Upper bound of staleness when something else writes to account.
+         */
+        private Duration expireAfterWrite = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class Adaptive {
+        /**
+         * Engine used while the pool has spare connections.
+         */
+        private String lowLoadEngine = "parallel";
+        /**
+         * Engine used while the pool is saturated or the low-load engine is slow.
+         */
+        private String highLoadEngine = "sequential";
+        private Duration evaluationInterval = Duration.ofSeconds(1);
+        /**
+         * Share of acquired pool connections that switches to the high-load engine.
+         */
+        private double maxPoolSaturation = 0.8;
+        /**
+         * Share of acquired pool connections that switches back to the low-load engine.
+         */
+        private double resumePoolSaturation = 0.5;
+        /**
+         * p99 of the low-load engine that switches to the high-load engine.
+         */
+        private Duration maxP99 = Duration.ofMillis(50);
+    }
+
+    @Data
+    public static class Retry {
+        /**
+         * Name of the {@link com.gnefedev.coroutines.vs.reactor.services.RetryPolicy} used on conflicts, "fixed" is 3 retries from 1ms.
+         */
+        private String policy = "contention-aware";
+        /**
+         * Retries of a transfer on accounts without recent conflicts.
+         */
+        private int minRetries = 3;
+        /**
+         * Retries of a transfer on the hottest accounts.
+         */
+        private int maxRetries = 10;
+        private Duration baseDelay = Duration.ofNanos(100_000);
+        private Duration maxDelay = Duration.ofMillis(10);
+        /**
+         * Time since the first attempt after which a transfer is not retried.
+         */
+        private Duration budget = Duration.ofMillis(200);
+        /**
+         * Number of conflict counters, accounts sharing a counter look hotter than they are.
+         */
+        private int conflictCounters = 4096;
+        /**
+         * Time after which a conflict counts half.
+         */
+        private Duration conflictHalfLife = Duration.ofSeconds(1);
+    }
+
+    @Data
+    public static class Logging {
+        /**
+         * Max duplicate transfers logged per second, the next logged one tells how many were skipped.
+         */
+        private int duplicatesPerSecond = 10;
+        /**
+         * Max rejected transfers (422, 509, missing account) logged per second.
+         */
+        private int rejectionsPerSecond = 10;
+    }
+
+    @Data
+    public static class Statement {
+        /**
+         * Transactions read by one query of the history stream, the next page is read when the client has consumed this one.
+         */
+        private int pageSize = 100;
+    }
+
+    @Data
+    public static class Journal {
+        /**
+         * Pause between materialiser runs when it has caught up with the journal.
+         */
+        private Duration materializeInterval = Duration.ofMillis(100);
+        /**
+         * Max transactions projected into accounts in one DB transaction.
+         */
+        private int batchSize = 1000;
+    }
+
+    @Data
+    public static class InMemory {
+        /**
+         * Directory of the write-ahead log segments and balance snapshots.
+         */
+        private String walDir = "ledger-wal";
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+        /**
+         * Max time a transfer waits for the fsync of its record, all records of the interval share it.
+         */
+        private Duration flushInterval = Duration.ofMillis(1);
+        /**
+         * Period of balance snapshots, log segments older than the last snapshot and the database are deleted.
+         */
+        private Duration snapshotInterval = Duration.ofMinutes(1);
+        /**
+         * Number of accounts the balance maps are sized for before they grow.
+         */
+        private int expectedAccounts = 1024;
+        /**
+         * Max transfers written to the database in one DB transaction.
+         */
+        private int writeBehindBatchSize = 1000;
+        private Duration writeBehindMaxWait = Duration.ofMillis(10);
+        /**
+         * Max transfers waiting for the database, new transfers are refused with 503 beyond it.
+         */
+        private int writeBehindMaxQueued = 100_000;
+    }
+
+    @Data
+    public static class Blocking {
+        /**
+         * JDBC url of the database behind spring.r2dbc.url, the default is the embedded H2 of Spring Boot.
+         */
+        private String jdbcUrl = "jdbc:h2:mem:testdb;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE";
+        private String username = "sa";
+        private String password = "";
+        /**
+         * Connections of the JDBC pool, with virtual threads it is the only limit of concurrent transfers.
+         */
+        private int maxPoolSize = 32;
+        private Duration connectionTimeout = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Admission {
+        /**
+         * Sheds transfers over the adaptive concurrency limit with 503.
+         */
+        private boolean enabled = true;
+        private int initialLimit = 20;
+        private int minLimit = 4;
+        private int maxLimit = 500;
+        /**
+         * Share of the newly computed limit taken on each completed transfer.
+         */
+        private double smoothing = 0.2;
+        /**
+         * Number of transfers the long-term latency average spans.
+         */
+        private int longWindow = 600;
+        /**
+         * Deadline of a transfer, a client may ask for a shorter one in the X-Request-Timeout header, in milliseconds.
+         */
+        private Duration requestTimeout = Duration.ofSeconds(2);
+        /**
+         * Retry-After of a shed transfer, rounded up to seconds.
+         */
+        private Duration retryAfter = Duration.ofSeconds(1);
+        /**
+         * Answers single and bulk transfers with 503 until the app is ready, whether admission control is enabled or not.
+         */
+        private boolean refuseUntilReady = true;
+    }
+
+    @Data
+    public static class BalanceStripes {
+        /**
+         * Lets accounts flagged as hot take credits into stripe rows, can't be combined with the account cache.
+         */
+        private boolean enabled = false;
+        /**
+         * Stripes of an account flagged without an explicit count.
+         */
+        private int defaultCount = 8;
+        /**
+         * Pause between folds of stripes into their account rows.
+         */
+        private Duration compactionInterval = Duration.ofSeconds(1);
+    }
+
+    @Data
+    public static class Sharding {
+        /**
+         * R2DBC urls of the shards, an account lives on the shard at index id mod size, so the list can't change once accounts exist.
+         */
+        private List<String> urls = new ArrayList<>();
+        private String username = "sa";
+        private String password = "";
+        /**
+         * Age after which a reserved cross-shard transfer is taken over by the recovery sweeper.
+         */
+        private Duration inDoubtAfter = Duration.ofSeconds(5);
+        private Duration recoveryInterval = Duration.ofSeconds(1);
+        /**
+         * Max in-doubt transfers of one shard completed per sweep.
+         */
+        private int recoveryBatchSize = 100;
+    }
+
+    @Data
+    public static class Reconciliation {
+        /**
+         * Checks balances against transactions in the background, not available for in-memory and sharded engines.
+         */
+        private boolean enabled = true;
+        /**
+         * Pause between runs when the job has caught up with the transactions.
+         */
+        private Duration interval = Duration.ofSeconds(10);
+        /**
+         * Max transactions covered by one run, the rows are read in one REPEATABLE READ transaction.
+         */
+        private int batchSize = 100_000;
+        private int pageSize = 1000;
+        /**
+         * Partitions of the per-account aggregation, 0 for the number of cores.
+         */
+        private int partitions = 0;
+        /**
+         * Cap of transactions read per second, 0 for no cap.
+         */
+        private int maxRowsPerSecond = 50_000;
+        /**
+         * Time a transaction id skipped by a run may take to show up before it is assumed rolled back,
+         * must exceed the longest transfer. A row committed after that is reported as a discrepancy.
+         */
+        private Duration gapExpiry = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Warmup {
+        /**
+         * Warms the pools, codecs and the engine before the app reports ready.
+         */
+        private boolean enabled = true;
+        /**
+         * Synthetic transfers between scratch accounts, removed afterwards. Not run for in-memory and sharded engines.
+         */
+        private int transfers = 2000;
+        /**
+         * Transfers run at once, each on its own pair of scratch accounts.
+         */
+        private int concurrency = 8;
+        /**
+         * Encode and decode round trips of a transfer request per media type.
+         */
+        private int codecRounds = 2000;
+        /**
+         * The app reports ready after this time even if the warm-up hasn't finished.
+         */
+        private Duration timeout = Duration.ofSeconds(30);
+    }
+}
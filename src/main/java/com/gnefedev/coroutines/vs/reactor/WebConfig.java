@@ -0,0 +1,22 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.cbor.Jackson2CborDecoder;
+import org.springframework.http.codec.cbor.Jackson2CborEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+/**
+ * Accepts {@code application/cbor} next to JSON: the same Jackson mapping, without text number parsing.
+ * Jackson2CborDecoder decodes single values only, so streams of transfers stay NDJSON.
+ */
+@Configuration
+public class WebConfig implements WebFluxConfigurer {
+    @Override
+    public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+        var objectMapper = Jackson2ObjectMapperBuilder.cbor().build();
+        configurer.customCodecs().register(new Jackson2CborDecoder(objectMapper));
+        configurer.customCodecs().register(new Jackson2CborEncoder(objectMapper));
+    }
+}
@@ -0,0 +1,21 @@
+package com.gnefedev.coroutines.vs.reactor.controllers;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.jackson.Jacksonized;
+
+@Jacksonized
+@AllArgsConstructor
+@Builder
+@Getter
+@ToString
+public class AccountResponse {
+    private final long id;
+    /**
+     * Minor units.
+     */
+    private final long amount;
+    private final int version;
+}
@@ -0,0 +1,27 @@
+package com.gnefedev.coroutines.vs.reactor.controllers;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.jackson.Jacksonized;
+
+import java.time.LocalDateTime;
+
+@Jacksonized
+@AllArgsConstructor
+@Builder
+@Getter
+@ToString
+public class DiscrepancyResponse {
+    private final long accountId;
+    /**
+     * Minor units the transactions of the account add up to.
+     */
+    private final long expected;
+    /**
+     * Minor units.
+     */
+    private final long actual;
+    private final LocalDateTime detectedAt;
+}
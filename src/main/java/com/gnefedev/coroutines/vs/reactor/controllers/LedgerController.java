@@ -1,23 +1,98 @@
 package com.gnefedev.coroutines.vs.reactor.controllers;
 
-import com.gnefedev.coroutines.vs.reactor.services.Ledger;
+import com.gnefedev.coroutines.vs.reactor.services.AccountStatements;
+import com.gnefedev.coroutines.vs.reactor.services.BulkLedger;
+import com.gnefedev.coroutines.vs.reactor.services.HotAccounts;
+import com.gnefedev.coroutines.vs.reactor.services.Reconciler;
+import com.gnefedev.coroutines.vs.reactor.services.TransferEngines;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import javax.validation.Valid;
-
 @RequiredArgsConstructor
 @RestController
 @RequestMapping("/api/ledger")
 public class LedgerController {
-    private final Ledger ledger;
+    private final TransferEngines transferEngines;
+    private final BulkLedger bulkLedger;
+    private final AccountStatements accountStatements;
+    private final ObjectProvider<HotAccounts> hotAccounts;
+    private final ObjectProvider<Reconciler> reconciler;
 
+    /**
+     * Accepts JSON and {@code application/cbor}.
+     */
     @PutMapping("/transfer")
-    public Mono<Void> transfer(@Valid @RequestBody TransferRequest request) {
-        return ledger.transfer(request.getTransactionKey(), request.getFromAccountId(), request.getToAccountId(), request.getAmount());
+    public Mono<Void> transfer(@RequestBody TransferRequest request) {
+        TransferRequestValidator.validate(request);
+        return transferEngines.transfer(request.getTransactionKey(), request.getFromAccountId(), request.getToAccountId(), request.getAmountMinorUnits());
+    }
+
+    @PutMapping(value = "/transfers", consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<TransferResult> transfers(@RequestBody Flux<TransferRequest> requests) {
+        return bulkLedger.transfer(requests.map(TransferRequestValidator::validate));
+    }
+
+    @GetMapping("/accounts/{id}")
+    public Mono<AccountResponse> account(@PathVariable long id) {
+        return accountStatements.account(id)
+                .map(account -> AccountResponse.builder()
+                        .id(account.getId())
+                        .amount(account.getAmountMinorUnits())
+                        .version(account.getVersion())
+                        .build());
+    }
+
+    @GetMapping(value = "/accounts/{id}/transactions", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<TransactionResponse> transactions(@PathVariable long id, @RequestParam(defaultValue = "0") long after) {
+        return accountStatements.history(id, after)
+                .map(transaction -> TransactionResponse.builder()
+                        .id(transaction.getId())
+                        .transactionKey(transaction.getUniqueKey())
+                        .fromAccountId(transaction.getFromAccountId())
+                        .toAccountId(transaction.getToAccountId())
+                        .amount(transaction.getAmountMinorUnits())
+                        .build());
+    }
+
+    /**
+     * Spreads further credits of the account over stripes, see ledger.balance-stripes.
+     */
+    @PutMapping("/accounts/{id}/hot")
+    public Mono<Void> markHot(@PathVariable long id, @RequestParam(required = false) Integer stripes) {
+        var hot = hotAccounts.getIfAvailable();
+        if (hot == null) {
+            return Mono.error(new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "balance stripes are disabled"));
+        }
+        return hot.markHot(id, stripes);
+    }
+
+    /**
+     * Accounts whose balance differs from their transactions, see ledger.reconciliation.
+     */
+    @GetMapping(value = "/reconciliation/discrepancies", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<DiscrepancyResponse> discrepancies() {
+        var reconciliation = reconciler.getIfAvailable();
+        if (reconciliation == null) {
+            return Flux.error(new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "reconciliation is disabled"));
+        }
+        return reconciliation.discrepancies()
+                .map(discrepancy -> DiscrepancyResponse.builder()
+                        .accountId(discrepancy.getAccountId())
+                        .expected(discrepancy.getExpected())
+                        .actual(discrepancy.getActual())
+                        .detectedAt(discrepancy.getDetectedAt())
+                        .build());
     }
 }
@@ -0,0 +1,26 @@
+package com.gnefedev.coroutines.vs.reactor.controllers;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.jackson.Jacksonized;
+
+@Jacksonized
+@AllArgsConstructor
+@Builder
+@Getter
+@ToString
+public class TransactionResponse {
+    /**
+     * Pass the last seen id as {@code after} to continue the history.
+     */
+    private final long id;
+    private final String transactionKey;
+    private final long fromAccountId;
+    private final long toAccountId;
+    /**
+     * Minor units.
+     */
+    private final long amount;
+}
@@ -1,6 +1,11 @@
 package com.gnefedev.coroutines.vs.reactor.controllers;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.gnefedev.coroutines.vs.reactor.util.MinorUnitsDeserializer;
+import com.gnefedev.coroutines.vs.reactor.util.Money;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -22,7 +27,25 @@ public class TransferRequest {
     private final String transactionKey;
     private final long fromAccountId;
     private final long toAccountId;
+    /**
+     * "amount" in JSON, minor units.
+     */
     @Min(0)
     @NonNull
-    private final BigDecimal amount;
+    @JsonProperty("amount")
+    private final Long amountMinorUnits;
+
+    public static class TransferRequestBuilder {
+        @JsonProperty("amount")
+        @JsonDeserialize(using = MinorUnitsDeserializer.class)
+        public TransferRequestBuilder amountMinorUnits(Long amountMinorUnits) {
+            this.amountMinorUnits = amountMinorUnits;
+            return this;
+        }
+
+        @JsonIgnore
+        public TransferRequestBuilder amount(BigDecimal amount) {
+            return amountMinorUnits(Money.toMinorUnits(amount));
+        }
+    }
 }
@@ -0,0 +1,34 @@
+package com.gnefedev.coroutines.vs.reactor.controllers;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * The constraints declared on {@link TransferRequest} checked by plain code, without the reflective
+ * bean validation on every request. Keep in sync with the annotations.
+ */
+public final class TransferRequestValidator {
+    private TransferRequestValidator() {
+    }
+
+    /**
+     * @return the request, for use in map
+     * @throws ResponseStatusException with 400 on the first violated constraint
+     */
+    public static TransferRequest validate(TransferRequest request) {
+        if (isBlank(request.getTransactionKey())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "transactionKey: must not be blank");
+        }
+        if (request.getAmountMinorUnits() == null || request.getAmountMinorUnits() < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "amount: must be greater than or equal to 0");
+        }
+        return request;
+    }
+
+    /**
+     * Same as {@code @NotBlank}: null, empty or only characters up to space.
+     */
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,25 @@
+package com.gnefedev.coroutines.vs.reactor.controllers;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.jackson.Jacksonized;
+
+@Jacksonized
+@AllArgsConstructor
+@Builder
+@Getter
+@ToString
+public class TransferResult {
+    private final String transactionKey;
+    private final Status status;
+
+    public enum Status {
+        APPLIED,
+        DUPLICATE,
+        INSUFFICIENT_FUNDS,
+        ACCOUNT_NOT_FOUND,
+        CONFLICT
+    }
+}
@@ -1,10 +1,13 @@
 package com.gnefedev.coroutines.vs.reactor.entities;
 
+import com.gnefedev.coroutines.vs.reactor.util.Money;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.relational.core.mapping.Column;
 
 import java.math.BigDecimal;
 
@@ -15,6 +18,18 @@ import java.math.BigDecimal;
 public class Account {
     @Id
     private final Long id;
-    private final BigDecimal amount;
+    @Column("amount")
+    private final long amountMinorUnits;
     private final int version;
+
+    @Transient
+    public BigDecimal getAmount() {
+        return Money.toBigDecimal(amountMinorUnits);
+    }
+
+    public static class AccountBuilder {
+        public AccountBuilder amount(BigDecimal amount) {
+            return amountMinorUnits(Money.toMinorUnits(amount));
+        }
+    }
 }
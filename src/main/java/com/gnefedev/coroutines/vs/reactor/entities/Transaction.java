@@ -1,9 +1,12 @@
 package com.gnefedev.coroutines.vs.reactor.entities;
 
+import com.gnefedev.coroutines.vs.reactor.util.Money;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.relational.core.mapping.Column;
 
 import java.math.BigDecimal;
 
@@ -15,6 +18,18 @@ public class Transaction {
     private final Long id;
     private final Long fromAccountId;
     private final Long toAccountId;
-    private final BigDecimal amount;
+    @Column("amount")
+    private final long amountMinorUnits;
     private final String uniqueKey;
+
+    @Transient
+    public BigDecimal getAmount() {
+        return Money.toBigDecimal(amountMinorUnits);
+    }
+
+    public static class TransactionBuilder {
+        public TransactionBuilder amount(BigDecimal amount) {
+            return amountMinorUnits(Money.toMinorUnits(amount));
+        }
+    }
 }
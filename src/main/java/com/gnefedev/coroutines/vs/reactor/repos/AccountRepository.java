@@ -2,14 +2,34 @@ package com.gnefedev.coroutines.vs.reactor.repos;
 
 import com.gnefedev.coroutines.vs.reactor.entities.Account;
 import org.springframework.data.repository.Repository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.math.BigDecimal;
+import java.util.Collection;
 
 public interface AccountRepository extends Repository<Account, Long> {
     Mono<Account> save(Account account);
 
-    Mono<Void> transferAmount(long id, int version, BigDecimal toTransfer);
+    Mono<Void> transferAmount(long id, int version, long toTransfer);
+
+    /**
+     * Emits false when the account doesn't exist or has less than the amount.
+     */
+    Mono<Boolean> withdraw(long id, long amount);
+
+    /**
+     * Emits false when the account doesn't exist.
+     */
+    Mono<Boolean> deposit(long id, long amount);
 
     Mono<Account> findById(long id);
+
+    /**
+     * Reads the account past any snapshot {@link #findById} may have served, empty when findById reads it anyway.
+     */
+    default Mono<Account> reloadById(long id) {
+        return Mono.empty();
+    }
+
+    Flux<Account> findAllByIdIn(Collection<Long> ids);
 }
@@ -1,18 +1,28 @@
 package com.gnefedev.coroutines.vs.reactor.repos;
 
 import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.r2dbc.core.DatabaseClient;
 import reactor.core.publisher.Mono;
 
-import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
 
-@RequiredArgsConstructor
 public class AccountRepositoryImpl {
     private final DatabaseClient databaseClient;
+    private final Timer transferAmountTimer;
+    private final Timer withdrawTimer;
+    private final Timer depositTimer;
 
-    public Mono<Void> transferAmount(long id, int version, BigDecimal toTransfer) {
-        return databaseClient.sql("" +
+    public AccountRepositoryImpl(DatabaseClient databaseClient, MeterRegistry meterRegistry) {
+        this.databaseClient = databaseClient;
+        this.transferAmountTimer = queryTimer(meterRegistry, "transfer_amount");
+        this.withdrawTimer = queryTimer(meterRegistry, "withdraw");
+        this.depositTimer = queryTimer(meterRegistry, "deposit");
+    }
+
+    public Mono<Void> transferAmount(long id, int version, long toTransfer) {
+        return timed(transferAmountTimer, databaseClient.sql("" +
                 "UPDATE account " +
                 "   SET amount = amount + :to_transfer, version = version + 1" +
                 "   WHERE id = :id AND version = :version"
@@ -22,12 +32,51 @@ public class AccountRepositoryImpl {
                 .bind("to_transfer", toTransfer)
                 .fetch()
                 .rowsUpdated()
-                .flatMap(i -> {
+                .<Void>flatMap(i -> {
                     if (i == 0) {
                         return Mono.error(new OptimisticLockException());
                     } else {
                         return Mono.empty();
                     }
-                });
+                }));
+    }
+
+    public Mono<Boolean> withdraw(long id, long amount) {
+        return timed(withdrawTimer, databaseClient.sql("" +
+                "UPDATE account " +
+                "   SET amount = amount - :amount, version = version + 1" +
+                "   WHERE id = :id AND amount >= :amount"
+        )
+                .bind("id", id)
+                .bind("amount", amount)
+                .fetch()
+                .rowsUpdated()
+                .map(i -> i > 0));
+    }
+
+    public Mono<Boolean> deposit(long id, long amount) {
+        return timed(depositTimer, databaseClient.sql("" +
+                "UPDATE account " +
+                "   SET amount = amount + :amount, version = version + 1" +
+                "   WHERE id = :id"
+        )
+                .bind("id", id)
+                .bind("amount", amount)
+                .fetch()
+                .rowsUpdated()
+                .map(i -> i > 0));
+    }
+
+    private static <T> Mono<T> timed(Timer timer, Mono<T> query) {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            return query.doFinally(__ -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    private static Timer queryTimer(MeterRegistry meterRegistry, String query) {
+        return Timer.builder("ledger.account.query")
+                .tag("query", query)
+                .register(meterRegistry);
     }
 }
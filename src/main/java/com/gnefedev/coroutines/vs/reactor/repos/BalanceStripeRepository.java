@@ -0,0 +1,136 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import io.r2dbc.spi.Row;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * The {@code account_stripe} table: credits of a hot account spread over several rows, so they don't all
+ * update the same account row. The balance of an account is its row plus all its stripes.
+ */
+@Component
+@RequiredArgsConstructor
+public class BalanceStripeRepository {
+    private final DatabaseClient databaseClient;
+
+    /**
+     * Adds empty stripes up to count, existing stripes keep their amounts.
+     */
+    public Mono<Void> addStripes(long accountId, int count) {
+        return databaseClient.sql("" +
+                "INSERT INTO account_stripe (account_id, stripe, amount)" +
+                "   SELECT :account_id, X, 0 FROM SYSTEM_RANGE(0, :last_stripe)" +
+                "   WHERE NOT EXISTS (SELECT 1 FROM account_stripe s WHERE s.account_id = :account_id AND s.stripe = X)"
+        )
+                .bind("account_id", accountId)
+                .bind("last_stripe", count - 1)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Flux<StripeCount> findStripeCounts() {
+        return databaseClient.sql("SELECT account_id, CAST(COUNT(*) AS INT) AS stripes FROM account_stripe GROUP BY account_id")
+                .map((row, metadata) -> new StripeCount(row.get("account_id", Long.class), row.get("stripes", Integer.class)))
+                .all();
+    }
+
+    /**
+     * Emits false when the stripe doesn't exist.
+     */
+    public Mono<Boolean> credit(long accountId, int stripe, long amount) {
+        return databaseClient.sql("UPDATE account_stripe SET amount = amount + :amount WHERE account_id = :account_id AND stripe = :stripe")
+                .bind("account_id", accountId)
+                .bind("stripe", stripe)
+                .bind("amount", amount)
+                .fetch()
+                .rowsUpdated()
+                .map(i -> i > 0);
+    }
+
+    /**
+     * Only for a stripe locked by {@link #lockStripes} holding at least the amount.
+     */
+    public Mono<Void> take(long accountId, int stripe, long amount) {
+        return databaseClient.sql("UPDATE account_stripe SET amount = amount - :amount WHERE account_id = :account_id AND stripe = :stripe")
+                .bind("account_id", accountId)
+                .bind("stripe", stripe)
+                .bind("amount", amount)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    /**
+     * Locks the account row till the end of the DB transaction, to be taken before {@link #lockStripes}.
+     */
+    public Mono<Account> lockAccount(long id) {
+        return databaseClient.sql("SELECT id, amount, version FROM account WHERE id = :id FOR UPDATE")
+                .bind("id", id)
+                .map((row, metadata) -> account(row))
+                .one();
+    }
+
+    public Flux<Stripe> lockStripes(long accountId) {
+        return databaseClient.sql("SELECT stripe, amount FROM account_stripe WHERE account_id = :account_id ORDER BY stripe FOR UPDATE")
+                .bind("account_id", accountId)
+                .map((row, metadata) -> new Stripe(row.get("stripe", Integer.class), row.get("amount", Long.class)))
+                .all();
+    }
+
+    public Mono<Account> findSummedById(long id) {
+        return databaseClient.sql("" +
+                "SELECT a.id, a.version, CAST(" + summedBalance("a") + " AS BIGINT) AS amount" +
+                "   FROM account a" +
+                "   WHERE a.id = :id"
+        )
+                .bind("id", id)
+                .map((row, metadata) -> account(row))
+                .one();
+    }
+
+    public Flux<Account> findAllSummedByIdIn(Collection<Long> ids) {
+        return databaseClient.sql("" +
+                "SELECT a.id, a.version, CAST(" + summedBalance("a") + " AS BIGINT) AS amount" +
+                "   FROM account a" +
+                "   WHERE a.id IN (:ids)"
+        )
+                .bind("ids", ids)
+                .map((row, metadata) -> account(row))
+                .all();
+    }
+
+    private static String summedBalance(String account) {
+        return "(" + account + ".amount" +
+                " + COALESCE((SELECT SUM(s.amount) FROM account_stripe s WHERE s.account_id = " + account + ".id), 0))";
+    }
+
+    private static Account account(Row row) {
+        return Account.builder()
+                .id(row.get("id", Long.class))
+                .amountMinorUnits(row.get("amount", Long.class))
+                .version(row.get("version", Integer.class))
+                .build();
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class StripeCount {
+        private final long accountId;
+        private final int stripes;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Stripe {
+        private final int stripe;
+        private final long amount;
+    }
+}
@@ -0,0 +1,144 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.NoTransactionException;
+import org.springframework.transaction.reactive.TransactionSynchronization;
+import org.springframework.transaction.reactive.TransactionSynchronizationManager;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * Keeps snapshots of accounts read by {@link #findById}.
+ * <p>
+ * A successful {@link #transferAmount} drops the snapshot at once and puts the new one after commit,
+ * a version conflict just drops it, so a stale snapshot costs at most one retry.
+ * A balance check failed on a snapshot is repeated on {@link #reloadById} before the transfer is rejected.
+ * Snapshots never go back to an older version.
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "ledger.account-cache.enabled", havingValue = "true")
+public class CachingAccountRepository implements AccountRepository {
+    private final AccountRepository delegate;
+    private final Cache<Long, Account> accounts;
+    private final Counter conflictInvalidations;
+
+    public CachingAccountRepository(@Qualifier("accountRepository") AccountRepository delegate, LedgerProperties properties, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        var cacheProperties = properties.getAccountCache();
+        this.accounts = Caffeine.newBuilder()
+                .maximumSize(cacheProperties.getMaxSize())
+                .expireAfterWrite(cacheProperties.getExpireAfterWrite())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, accounts, "accounts");
+        this.conflictInvalidations = Counter.builder("ledger.account_cache.conflicts")
+                .description("snapshots dropped because of OptimisticLockException")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Mono<Account> save(Account account) {
+        return delegate.save(account)
+                .doOnNext(saved -> accounts.invalidate(saved.getId()));
+    }
+
+    @Override
+    public Mono<Void> transferAmount(long id, int version, long toTransfer) {
+        return Mono.defer(() -> {
+            var before = accounts.asMap().remove(id);
+            return delegate.transferAmount(id, version, toTransfer)
+                    .doOnError(OptimisticLockException.class, e -> {
+                        conflictInvalidations.increment();
+                        accounts.invalidate(id);
+                    })
+                    .then(afterCommit(() -> {
+                        if (before != null && before.getVersion() == version) {
+                            remember(before.toBuilder()
+                                    .amountMinorUnits(before.getAmountMinorUnits() + toTransfer)
+                                    .version(version + 1)
+                                    .build());
+                        }
+                    }));
+        });
+    }
+
+    @Override
+    public Mono<Boolean> withdraw(long id, long amount) {
+        return delegate.withdraw(id, amount)
+                .flatMap(withdrawn -> invalidateOnCommit(id).thenReturn(withdrawn));
+    }
+
+    @Override
+    public Mono<Boolean> deposit(long id, long amount) {
+        return delegate.deposit(id, amount)
+                .flatMap(deposited -> invalidateOnCommit(id).thenReturn(deposited));
+    }
+
+    @Override
+    public Mono<Account> findById(long id) {
+        return Mono.defer(() -> {
+            var cached = accounts.getIfPresent(id);
+            if (cached != null) {
+                return Mono.just(cached);
+            }
+            return delegate.findById(id)
+                    .doOnNext(this::remember);
+        });
+    }
+
+    @Override
+    public Mono<Account> reloadById(long id) {
+        return Mono.defer(() -> {
+            accounts.invalidate(id);
+            return delegate.findById(id)
+                    .doOnNext(this::remember);
+        });
+    }
+
+    @Override
+    public Flux<Account> findAllByIdIn(Collection<Long> ids) {
+        return delegate.findAllByIdIn(ids)
+                .doOnNext(this::remember);
+    }
+
+    private void remember(Account account) {
+        accounts.asMap().merge(account.getId(), account, (cached, fresh) -> fresh.getVersion() >= cached.getVersion() ? fresh : cached);
+    }
+
+    private Mono<Void> invalidateOnCommit(long id) {
+        accounts.invalidate(id);
+        return afterCommit(() -> accounts.invalidate(id));
+    }
+
+    private static Mono<Void> afterCommit(Runnable action) {
+        return TransactionSynchronizationManager.forCurrentTransaction()
+                .<Void>flatMap(manager -> {
+                    if (!manager.isSynchronizationActive()) {
+                        return Mono.fromRunnable(action);
+                    }
+                    manager.registerSynchronization(new TransactionSynchronization() {
+                        @Override
+                        public Mono<Void> afterCommit() {
+                            return Mono.fromRunnable(action);
+                        }
+                    });
+                    return Mono.empty();
+                })
+                .onErrorResume(NoTransactionException.class, e -> Mono.fromRunnable(action))
+                .then();
+    }
+}
@@ -0,0 +1,73 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.services.InMemoryLedger;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * Accounts as {@link InMemoryLedger} sees them. New accounts are saved to the database for an id and handed to the ledger,
+ * balance changes go through the sequencer of the ledger and get to the database written behind.
+ * <p>
+ * The account cache and balance stripes wrap the database repository and would bypass the ledger,
+ * so startup fails when either is enabled.
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = InMemoryLedger.NAME)
+public class InMemoryAccountRepository implements AccountRepository {
+    private final AccountRepository delegate;
+    private final InMemoryLedger inMemoryLedger;
+
+    public InMemoryAccountRepository(
+            @Qualifier("accountRepository") AccountRepository delegate,
+            InMemoryLedger inMemoryLedger,
+            LedgerProperties properties
+    ) {
+        if (properties.getAccountCache().isEnabled() || properties.getBalanceStripes().isEnabled()) {
+            throw new IllegalStateException("ledger.account-cache and ledger.balance-stripes can't be enabled with the "
+                    + InMemoryLedger.NAME + " engine, balances are kept by " + InMemoryLedger.class.getSimpleName());
+        }
+        this.delegate = delegate;
+        this.inMemoryLedger = inMemoryLedger;
+    }
+
+    @Override
+    public Mono<Account> save(Account account) {
+        return delegate.save(account)
+                .flatMap(saved -> inMemoryLedger.register(saved).thenReturn(saved));
+    }
+
+    @Override
+    public Mono<Void> transferAmount(long id, int version, long toTransfer) {
+        return inMemoryLedger.transferAmount(id, version, toTransfer);
+    }
+
+    @Override
+    public Mono<Boolean> withdraw(long id, long amount) {
+        return inMemoryLedger.withdraw(id, amount);
+    }
+
+    @Override
+    public Mono<Boolean> deposit(long id, long amount) {
+        return inMemoryLedger.deposit(id, amount);
+    }
+
+    @Override
+    public Mono<Account> findById(long id) {
+        return inMemoryLedger.findAccount(id);
+    }
+
+    @Override
+    public Flux<Account> findAllByIdIn(Collection<Long> ids) {
+        return Flux.fromIterable(ids)
+                .concatMap(inMemoryLedger::findAccount);
+    }
+}
@@ -0,0 +1,71 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.services.JournalLedger;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * Reads accounts with their projected balance while journaled transfers are waiting for the materialiser,
+ * so a balance read right after a transfer already sees it. Writes go to the account row as they are.
+ * <p>
+ * Can't be combined with {@link CachingAccountRepository}, its snapshots would miss journaled transfers,
+ * nor with {@link StripedAccountRepository}, journaled credits don't go to stripes. Startup fails when either is enabled.
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = JournalLedger.NAME)
+public class JournalAccountRepository implements AccountRepository {
+    private final AccountRepository delegate;
+    private final JournalRepository journalRepository;
+
+    public JournalAccountRepository(
+            @Qualifier("accountRepository") AccountRepository delegate,
+            JournalRepository journalRepository,
+            LedgerProperties properties
+    ) {
+        if (properties.getAccountCache().isEnabled() || properties.getBalanceStripes().isEnabled()) {
+            throw new IllegalStateException("ledger.account-cache and ledger.balance-stripes can't be enabled with the "
+                    + JournalLedger.NAME + " engine, balances are projected from the journal");
+        }
+        this.delegate = delegate;
+        this.journalRepository = journalRepository;
+    }
+
+    @Override
+    public Mono<Account> save(Account account) {
+        return delegate.save(account);
+    }
+
+    @Override
+    public Mono<Void> transferAmount(long id, int version, long toTransfer) {
+        return delegate.transferAmount(id, version, toTransfer);
+    }
+
+    @Override
+    public Mono<Boolean> withdraw(long id, long amount) {
+        return delegate.withdraw(id, amount);
+    }
+
+    @Override
+    public Mono<Boolean> deposit(long id, long amount) {
+        return delegate.deposit(id, amount);
+    }
+
+    @Override
+    public Mono<Account> findById(long id) {
+        return journalRepository.findProjectedById(id);
+    }
+
+    @Override
+    public Flux<Account> findAllByIdIn(Collection<Long> ids) {
+        return journalRepository.findAllProjectedByIdIn(ids);
+    }
+}
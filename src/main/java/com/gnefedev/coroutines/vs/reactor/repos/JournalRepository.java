@@ -0,0 +1,145 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import io.r2dbc.spi.Row;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * The {@code transaction} table used as a journal: every appended transfer leaves a debit and a credit
+ * in {@code journal_pending}, the materialiser applies pending rows to {@code account} and deletes them.
+ * The projected balance of an account is its row plus its pending rows.
+ * <p>
+ * Work is tracked by the rows themselves, not by an id cutoff: ids are taken before commit,
+ * a row committed late is still pending whatever ids were applied before it.
+ */
+@Component
+@RequiredArgsConstructor
+public class JournalRepository {
+    private final DatabaseClient databaseClient;
+
+    /**
+     * Emits false when an account doesn't exist, the projected balance of the source is less than the amount
+     * or the projected balance of the target would overflow.
+     * <p>
+     * Inserts the transaction and its pending rows with two statements, so it has to run in a DB transaction.
+     */
+    public Mono<Boolean> append(Transaction transaction) {
+        return databaseClient.sql("" +
+                "INSERT INTO transaction (amount, from_account_id, to_account_id, unique_key)" +
+                "   SELECT :amount, f.id, r.id, :unique_key" +
+                "   FROM account f, account r" +
+                "   WHERE f.id = :from_account_id AND r.id = :to_account_id" +
+                "       AND " + projectedBalance("f") + " >= :amount" +
+                "       AND " + projectedBalance("r") + " <= :max_credited_balance"
+        )
+                .bind("amount", transaction.getAmountMinorUnits())
+                .bind("from_account_id", transaction.getFromAccountId())
+                .bind("to_account_id", transaction.getToAccountId())
+                .bind("unique_key", transaction.getUniqueKey())
+                .bind("max_credited_balance", Long.MAX_VALUE - transaction.getAmountMinorUnits())
+                .fetch()
+                .rowsUpdated()
+                .flatMap(inserted -> inserted > 0
+                        ? insertPending(transaction.getUniqueKey()).thenReturn(true)
+                        : Mono.just(false));
+    }
+
+    private Mono<Void> insertPending(String uniqueKey) {
+        return databaseClient.sql("" +
+                "INSERT INTO journal_pending (transaction_id, account_id, delta)" +
+                "   SELECT id, from_account_id, -amount FROM transaction WHERE unique_key = :unique_key" +
+                "   UNION ALL" +
+                "   SELECT id, to_account_id, amount FROM transaction WHERE unique_key = :unique_key"
+        )
+                .bind("unique_key", uniqueKey)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<Account> findProjectedById(long id) {
+        return databaseClient.sql("" +
+                "SELECT a.id, a.version, CAST(" + projectedBalance("a") + " AS BIGINT) AS amount" +
+                "   FROM account a" +
+                "   WHERE a.id = :id"
+        )
+                .bind("id", id)
+                .map((row, metadata) -> account(row))
+                .one();
+    }
+
+    public Flux<Account> findAllProjectedByIdIn(Collection<Long> ids) {
+        return databaseClient.sql("" +
+                "SELECT a.id, a.version, CAST(" + projectedBalance("a") + " AS BIGINT) AS amount" +
+                "   FROM account a" +
+                "   WHERE a.id IN (:ids)"
+        )
+                .bind("ids", ids)
+                .map((row, metadata) -> account(row))
+                .all();
+    }
+
+    /**
+     * Locks the materialiser till the end of the DB transaction, so two materialisers don't apply the same rows.
+     */
+    public Mono<Void> lockMaterializer() {
+        return databaseClient.sql("SELECT id FROM journal_lock WHERE id = 1 FOR UPDATE")
+                .map((row, metadata) -> row.get("id", Integer.class))
+                .one()
+                .then();
+    }
+
+    /**
+     * At most limit committed pending rows, oldest transactions first.
+     */
+    public Flux<PendingChange> findPending(int limit) {
+        return databaseClient.sql("SELECT id, account_id, delta FROM journal_pending ORDER BY transaction_id LIMIT :limit")
+                .bind("limit", limit)
+                .map((row, metadata) -> new PendingChange(
+                        row.get("id", Long.class),
+                        row.get("account_id", Long.class),
+                        row.get("delta", Long.class)
+                ))
+                .all();
+    }
+
+    /**
+     * Deletes exactly the given rows, rows committed after they were read stay pending.
+     */
+    public Mono<Void> deletePending(Collection<Long> ids) {
+        return databaseClient.sql("DELETE FROM journal_pending WHERE id IN (:ids)")
+                .bind("ids", ids)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    private static String projectedBalance(String account) {
+        return "(" + account + ".amount" +
+                " + COALESCE((SELECT SUM(p.delta) FROM journal_pending p WHERE p.account_id = " + account + ".id), 0))";
+    }
+
+    private static Account account(Row row) {
+        return Account.builder()
+                .id(row.get("id", Long.class))
+                .amountMinorUnits(row.get("amount", Long.class))
+                .version(row.get("version", Integer.class))
+                .build();
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class PendingChange {
+        private final long id;
+        private final long accountId;
+        private final long delta;
+    }
+}
@@ -0,0 +1,26 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import lombok.RequiredArgsConstructor;
+import org.reactivestreams.Publisher;
+import org.springframework.data.r2dbc.mapping.OutboundRow;
+import org.springframework.data.r2dbc.mapping.event.AfterSaveCallback;
+import org.springframework.data.relational.core.sql.SqlIdentifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Records the balance an account is created with as its expected balance, so the reconciliation starts from it
+ * instead of guessing it from the balance the account has when first checked.
+ * Recorded even with the reconciliation off, so turning it on later doesn't report existing accounts.
+ */
+@Component
+@RequiredArgsConstructor
+public class OpeningBalanceCallback implements AfterSaveCallback<Account> {
+    private final ReconciliationRepository reconciliationRepository;
+
+    @Override
+    public Publisher<Account> onAfterSave(Account account, OutboundRow outboundRow, SqlIdentifier table) {
+        return reconciliationRepository.saveOpening(account.getId(), account.getAmountMinorUnits())
+                .thenReturn(account);
+    }
+}
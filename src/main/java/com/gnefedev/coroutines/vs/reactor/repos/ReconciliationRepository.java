@@ -0,0 +1,275 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import io.r2dbc.spi.Row;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * State of the reconciliation: transactions up to the checkpoint are summed into the expected balance of every
+ * account they touched, accounts whose balance differs from the expected one are listed as discrepancies.
+ * <p>
+ * Ids are taken before commit, so ids up to the checkpoint that had no row when it moved are kept as gaps
+ * and counted once their row shows up.
+ */
+@Component
+@RequiredArgsConstructor
+public class ReconciliationRepository {
+    private final DatabaseClient databaseClient;
+
+    public Mono<Long> findCheckpoint() {
+        return databaseClient.sql("SELECT last_transaction_id FROM reconciliation_checkpoint WHERE id = 1")
+                .map((row, metadata) -> row.get("last_transaction_id", Long.class))
+                .one();
+    }
+
+    /**
+     * Locks the checkpoint till the end of the DB transaction, so two runs don't count the same rows.
+     */
+    public Mono<Long> lockCheckpoint() {
+        return databaseClient.sql("SELECT last_transaction_id FROM reconciliation_checkpoint WHERE id = 1 FOR UPDATE")
+                .map((row, metadata) -> row.get("last_transaction_id", Long.class))
+                .one();
+    }
+
+    public Mono<Void> moveCheckpoint(long lastTransactionId) {
+        return databaseClient.sql("UPDATE reconciliation_checkpoint SET last_transaction_id = :last_transaction_id WHERE id = 1")
+                .bind("last_transaction_id", lastTransactionId)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    /**
+     * Id of the last of at most limit transactions after afterId, afterId when there are none.
+     */
+    public Mono<Long> findEnd(long afterId, int limit) {
+        return databaseClient.sql("" +
+                "SELECT COALESCE(MAX(id), :after_id) AS upto FROM (" +
+                "   SELECT id FROM transaction WHERE id > :after_id ORDER BY id LIMIT :limit" +
+                ")"
+        )
+                .bind("after_id", afterId)
+                .bind("limit", limit)
+                .map((row, metadata) -> row.get("upto", Long.class))
+                .one();
+    }
+
+    public Mono<Void> saveGaps(List<Long> transactionIds) {
+        if (transactionIds.isEmpty()) {
+            return Mono.empty();
+        }
+        var sql = new StringBuilder("INSERT INTO reconciliation_gap (transaction_id) VALUES ");
+        for (int i = 0; i < transactionIds.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("(:transaction_id").append(i).append(")");
+        }
+        var spec = databaseClient.sql(sql.toString());
+        for (int i = 0; i < transactionIds.size(); i++) {
+            spec = spec.bind("transaction_id" + i, transactionIds.get(i));
+        }
+        return spec.fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    /**
+     * Transactions committed since their ids were recorded as gaps.
+     */
+    public Flux<Transaction> findFilledGaps() {
+        return databaseClient.sql("" +
+                "SELECT t.id, t.amount, t.from_account_id, t.to_account_id" +
+                "   FROM reconciliation_gap g JOIN transaction t ON t.id = g.transaction_id"
+        )
+                .map((row, metadata) -> transaction(row))
+                .all();
+    }
+
+    public Mono<Void> deleteGaps(Collection<Long> transactionIds) {
+        if (transactionIds.isEmpty()) {
+            return Mono.empty();
+        }
+        return databaseClient.sql("DELETE FROM reconciliation_gap WHERE transaction_id IN (:transaction_ids)")
+                .bind("transaction_ids", transactionIds)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    /**
+     * Drops gaps recorded longer than expiry ago, their transactions are taken as rolled back.
+     *
+     * @return number of gaps dropped
+     */
+    public Mono<Integer> deleteGapsOlderThan(Duration expiry) {
+        return databaseClient.sql("DELETE FROM reconciliation_gap WHERE recorded_at < DATEADD('MILLISECOND', :expiry_millis, CURRENT_TIMESTAMP)")
+                .bind("expiry_millis", -expiry.toMillis())
+                .fetch()
+                .rowsUpdated();
+    }
+
+    /**
+     * Up to limit transactions in (afterId, uptoId], ordered by id, read by the primary key only.
+     */
+    public Flux<Transaction> findPage(long afterId, long uptoId, int limit) {
+        return databaseClient.sql("" +
+                "SELECT id, amount, from_account_id, to_account_id FROM transaction" +
+                "   WHERE id > :after_id AND id <= :upto_id ORDER BY id LIMIT :limit"
+        )
+                .bind("after_id", afterId)
+                .bind("upto_id", uptoId)
+                .bind("limit", limit)
+                .map((row, metadata) -> transaction(row))
+                .all();
+    }
+
+    /**
+     * Net change of the accounts by transactions not counted yet: after afterId or in a gap.
+     * Accounts without them are left out.
+     */
+    public Flux<AccountAmount> findChangesAfter(long afterId, Collection<Long> accountIds) {
+        return databaseClient.sql("" +
+                "SELECT account_id, CAST(SUM(delta) AS BIGINT) AS amount FROM (" +
+                "   SELECT to_account_id AS account_id, amount AS delta FROM transaction" +
+                "       WHERE to_account_id IN (:account_ids)" +
+                "           AND (id > :after_id OR id IN (SELECT transaction_id FROM reconciliation_gap))" +
+                "   UNION ALL" +
+                "   SELECT from_account_id AS account_id, -amount AS delta FROM transaction" +
+                "       WHERE from_account_id IN (:account_ids)" +
+                "           AND (id > :after_id OR id IN (SELECT transaction_id FROM reconciliation_gap))" +
+                ") GROUP BY account_id"
+        )
+                .bind("account_ids", accountIds)
+                .bind("after_id", afterId)
+                .map((row, metadata) -> new AccountAmount(row.get("account_id", Long.class), row.get("amount", Long.class)))
+                .all();
+    }
+
+    /**
+     * Records the opening balance of a new account, the expected balance of an account already known is kept.
+     */
+    public Mono<Void> saveOpening(long accountId, long amount) {
+        return databaseClient.sql("" +
+                "INSERT INTO reconciliation_balance (account_id, expected)" +
+                "   SELECT :account_id, :expected FROM DUAL" +
+                "   WHERE NOT EXISTS (SELECT 1 FROM reconciliation_balance WHERE account_id = :account_id)"
+        )
+                .bind("account_id", accountId)
+                .bind("expected", amount)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Flux<AccountAmount> findExpected(Collection<Long> accountIds) {
+        return databaseClient.sql("SELECT account_id, expected FROM reconciliation_balance WHERE account_id IN (:account_ids)")
+                .bind("account_ids", accountIds)
+                .map((row, metadata) -> new AccountAmount(row.get("account_id", Long.class), row.get("expected", Long.class)))
+                .all();
+    }
+
+    public Mono<Void> saveExpected(List<AccountAmount> balances) {
+        if (balances.isEmpty()) {
+            return Mono.empty();
+        }
+        var sql = new StringBuilder("MERGE INTO reconciliation_balance (account_id, expected) KEY (account_id) VALUES ");
+        for (int i = 0; i < balances.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("(:account_id").append(i).append(", :expected").append(i).append(")");
+        }
+        var spec = databaseClient.sql(sql.toString());
+        for (int i = 0; i < balances.size(); i++) {
+            spec = spec
+                    .bind("account_id" + i, balances.get(i).getAccountId())
+                    .bind("expected" + i, balances.get(i).getAmount());
+        }
+        return spec.fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<Void> saveDiscrepancy(Discrepancy discrepancy) {
+        return databaseClient.sql("" +
+                "MERGE INTO reconciliation_discrepancy (account_id, expected, actual, detected_at) KEY (account_id)" +
+                "   VALUES (:account_id, :expected, :actual, CURRENT_TIMESTAMP)"
+        )
+                .bind("account_id", discrepancy.getAccountId())
+                .bind("expected", discrepancy.getExpected())
+                .bind("actual", discrepancy.getActual())
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    /**
+     * Drops discrepancies of accounts that match again.
+     */
+    public Mono<Void> deleteDiscrepancies(Collection<Long> accountIds) {
+        if (accountIds.isEmpty()) {
+            return Mono.empty();
+        }
+        return databaseClient.sql("DELETE FROM reconciliation_discrepancy WHERE account_id IN (:account_ids)")
+                .bind("account_ids", accountIds)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Flux<Long> findDiscrepantAccountIds() {
+        return databaseClient.sql("SELECT account_id FROM reconciliation_discrepancy")
+                .map((row, metadata) -> row.get("account_id", Long.class))
+                .all();
+    }
+
+    public Flux<Discrepancy> findDiscrepancies() {
+        return databaseClient.sql("SELECT account_id, expected, actual, detected_at FROM reconciliation_discrepancy ORDER BY account_id")
+                .map((row, metadata) -> new Discrepancy(
+                        row.get("account_id", Long.class),
+                        row.get("expected", Long.class),
+                        row.get("actual", Long.class),
+                        row.get("detected_at", LocalDateTime.class)
+                ))
+                .all();
+    }
+
+    private static Transaction transaction(Row row) {
+        return Transaction.builder()
+                .id(row.get("id", Long.class))
+                .amountMinorUnits(row.get("amount", Long.class))
+                .fromAccountId(row.get("from_account_id", Long.class))
+                .toAccountId(row.get("to_account_id", Long.class))
+                .build();
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class AccountAmount {
+        private final long accountId;
+        private final long amount;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Discrepancy {
+        private final long accountId;
+        private final long expected;
+        private final long actual;
+        /**
+         * Null until stored.
+         */
+        private final LocalDateTime detectedAt;
+    }
+}
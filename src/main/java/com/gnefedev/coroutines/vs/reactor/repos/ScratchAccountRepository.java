@@ -0,0 +1,42 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Removes accounts created for the warm-up together with everything that refers to them.
+ */
+@Component
+@RequiredArgsConstructor
+public class ScratchAccountRepository {
+    private static final List<String> DELETES = List.of(
+            "DELETE FROM journal_pending WHERE account_id IN (:ids)",
+            "DELETE FROM transaction WHERE from_account_id IN (:ids) OR to_account_id IN (:ids)",
+            "DELETE FROM account_stripe WHERE account_id IN (:ids)",
+            "DELETE FROM reconciliation_balance WHERE account_id IN (:ids)",
+            "DELETE FROM reconciliation_discrepancy WHERE account_id IN (:ids)",
+            "DELETE FROM account WHERE id IN (:ids)"
+    );
+
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+
+    public Mono<Void> deleteAll(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Mono.empty();
+        }
+        return transactionalOperator.transactional(Flux.fromIterable(DELETES)
+                .concatMap(sql -> databaseClient.sql(sql)
+                        .bind("ids", ids)
+                        .fetch()
+                        .rowsUpdated())
+                .then());
+    }
+}
@@ -0,0 +1,231 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import io.r2dbc.spi.Row;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+
+/**
+ * Queries of one {@link Shards.Shard}. A cross-shard transfer is a {@code transfer_out} row on the shard of the source
+ * account and a {@code transfer_in} row on the shard of the target, both keyed by transactionKey.
+ */
+@Component
+public class ShardRepository {
+    public enum OutState {
+        /**
+         * The amount is withdrawn from the source and not yet credited or refunded.
+         */
+        RESERVED,
+        COMMITTED,
+        /**
+         * The target refused the credit, the amount is back on the source.
+         */
+        CANCELLED
+    }
+
+    public enum InState {
+        APPLIED,
+        /**
+         * The credit was refused, a late attempt of the same transfer must not apply it.
+         */
+        ABORTED
+    }
+
+    public Mono<Long> nextAccountId(Shards.Shard shard) {
+        return shard.getDatabaseClient().sql("SELECT NEXT VALUE FOR account_id AS id")
+                .map((row, metadata) -> row.get("id", Long.class))
+                .one();
+    }
+
+    public Mono<Void> insertAccount(Shards.Shard shard, Account account) {
+        return shard.getDatabaseClient().sql("INSERT INTO account (id, amount, version) VALUES (:id, :amount, :version)")
+                .bind("id", account.getId())
+                .bind("amount", account.getAmountMinorUnits())
+                .bind("version", account.getVersion())
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<Void> updateAccount(Shards.Shard shard, Account account) {
+        return shard.getDatabaseClient().sql("UPDATE account SET amount = :amount, version = :version WHERE id = :id")
+                .bind("id", account.getId())
+                .bind("amount", account.getAmountMinorUnits())
+                .bind("version", account.getVersion())
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<Account> findAccount(Shards.Shard shard, long id) {
+        return shard.getDatabaseClient().sql("SELECT id, amount, version FROM account WHERE id = :id")
+                .bind("id", id)
+                .map((row, metadata) -> account(row))
+                .one();
+    }
+
+    public Flux<Account> findAccounts(Shards.Shard shard, Collection<Long> ids) {
+        return shard.getDatabaseClient().sql("SELECT id, amount, version FROM account WHERE id IN (:ids)")
+                .bind("ids", ids)
+                .map((row, metadata) -> account(row))
+                .all();
+    }
+
+    /**
+     * Emits false when the account doesn't exist or the balance would overflow.
+     */
+    public Mono<Boolean> credit(Shards.Shard shard, long id, long amount) {
+        return shard.getDatabaseClient().sql("" +
+                "UPDATE account " +
+                "   SET amount = amount + :amount, version = version + 1" +
+                "   WHERE id = :id AND amount <= :max_credited_balance"
+        )
+                .bind("id", id)
+                .bind("amount", amount)
+                .bind("max_credited_balance", Long.MAX_VALUE - amount)
+                .fetch()
+                .rowsUpdated()
+                .map(i -> i > 0);
+    }
+
+    public Mono<Void> insertTransaction(Shards.Shard shard, Transaction transaction) {
+        return shard.getDatabaseClient().sql("" +
+                "INSERT INTO transaction (amount, from_account_id, to_account_id, unique_key)" +
+                "   VALUES (:amount, :from_account_id, :to_account_id, :unique_key)"
+        )
+                .bind("amount", transaction.getAmountMinorUnits())
+                .bind("from_account_id", transaction.getFromAccountId())
+                .bind("to_account_id", transaction.getToAccountId())
+                .bind("unique_key", transaction.getUniqueKey())
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Flux<Transaction> findTransactionsByKeys(Shards.Shard shard, Collection<String> uniqueKeys) {
+        return shard.getDatabaseClient().sql("" +
+                "SELECT id, amount, from_account_id, to_account_id, unique_key FROM transaction" +
+                "   WHERE unique_key IN (:unique_keys)"
+        )
+                .bind("unique_keys", uniqueKeys)
+                .map((row, metadata) -> Transaction.builder()
+                        .id(row.get("id", Long.class))
+                        .amountMinorUnits(row.get("amount", Long.class))
+                        .fromAccountId(row.get("from_account_id", Long.class))
+                        .toAccountId(row.get("to_account_id", Long.class))
+                        .uniqueKey(row.get("unique_key", String.class))
+                        .build())
+                .all();
+    }
+
+    public Mono<Void> insertTransferOut(Shards.Shard shard, ShardTransfer transfer) {
+        return shard.getDatabaseClient().sql("" +
+                "INSERT INTO transfer_out (unique_key, from_account_id, to_account_id, amount, state)" +
+                "   VALUES (:unique_key, :from_account_id, :to_account_id, :amount, :state)"
+        )
+                .bind("unique_key", transfer.getUniqueKey())
+                .bind("from_account_id", transfer.getFromAccountId())
+                .bind("to_account_id", transfer.getToAccountId())
+                .bind("amount", transfer.getAmount())
+                .bind("state", OutState.RESERVED.name())
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<OutState> findTransferOutState(Shards.Shard shard, String uniqueKey) {
+        return shard.getDatabaseClient().sql("SELECT state FROM transfer_out WHERE unique_key = :unique_key")
+                .bind("unique_key", uniqueKey)
+                .map((row, metadata) -> OutState.valueOf(row.get("state", String.class)))
+                .one();
+    }
+
+    /**
+     * Emits false when the transfer is not reserved any more, someone else has finished it.
+     */
+    public Mono<Boolean> finishTransferOut(Shards.Shard shard, String uniqueKey, OutState state) {
+        return shard.getDatabaseClient().sql("UPDATE transfer_out SET state = :state WHERE unique_key = :unique_key AND state = :reserved")
+                .bind("unique_key", uniqueKey)
+                .bind("state", state.name())
+                .bind("reserved", OutState.RESERVED.name())
+                .fetch()
+                .rowsUpdated()
+                .map(i -> i > 0);
+    }
+
+    /**
+     * Oldest transfers reserved before the given age.
+     */
+    public Flux<ShardTransfer> findInDoubt(Shards.Shard shard, Duration age, int limit) {
+        return shard.getDatabaseClient().sql("" +
+                "SELECT unique_key, from_account_id, to_account_id, amount FROM transfer_out" +
+                "   WHERE state = :reserved AND created_at < DATEADD('MILLISECOND', :age_millis, CURRENT_TIMESTAMP)" +
+                "   ORDER BY created_at LIMIT :limit"
+        )
+                .bind("reserved", OutState.RESERVED.name())
+                .bind("age_millis", -age.toMillis())
+                .bind("limit", limit)
+                .map((row, metadata) -> new ShardTransfer(
+                        row.get("unique_key", String.class),
+                        row.get("from_account_id", Long.class),
+                        row.get("to_account_id", Long.class),
+                        row.get("amount", Long.class)
+                ))
+                .all();
+    }
+
+    public Mono<Void> insertTransferIn(Shards.Shard shard, ShardTransfer transfer, InState state) {
+        return shard.getDatabaseClient().sql("" +
+                "INSERT INTO transfer_in (unique_key, from_account_id, to_account_id, amount, state)" +
+                "   VALUES (:unique_key, :from_account_id, :to_account_id, :amount, :state)"
+        )
+                .bind("unique_key", transfer.getUniqueKey())
+                .bind("from_account_id", transfer.getFromAccountId())
+                .bind("to_account_id", transfer.getToAccountId())
+                .bind("amount", transfer.getAmount())
+                .bind("state", state.name())
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<InState> findTransferInState(Shards.Shard shard, String uniqueKey) {
+        return shard.getDatabaseClient().sql("SELECT state FROM transfer_in WHERE unique_key = :unique_key")
+                .bind("unique_key", uniqueKey)
+                .map((row, metadata) -> InState.valueOf(row.get("state", String.class)))
+                .one();
+    }
+
+    private static Account account(Row row) {
+        return Account.builder()
+                .id(row.get("id", Long.class))
+                .amountMinorUnits(row.get("amount", Long.class))
+                .version(row.get("version", Integer.class))
+                .build();
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class ShardTransfer {
+        private final String uniqueKey;
+        private final long fromAccountId;
+        private final long toAccountId;
+        private final long amount;
+
+        public Transaction toTransaction() {
+            return Transaction.builder()
+                    .amountMinorUnits(amount)
+                    .fromAccountId(fromAccountId)
+                    .toAccountId(toAccountId)
+                    .uniqueKey(uniqueKey)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.services.ShardedLedger;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Accounts spread over {@link Shards}. New accounts go to the shards in turn and take an id from the sequence
+ * of their shard, scaled so that id mod size is the index of the shard.
+ * <p>
+ * Every call touches a single shard, a DB transaction of the spring.r2dbc connection factory doesn't cover them.
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = ShardedLedger.NAME)
+@RequiredArgsConstructor
+public class ShardedAccountRepository implements AccountRepository {
+    private final Shards shards;
+    private final ShardRepository shardRepository;
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    @Override
+    public Mono<Account> save(Account account) {
+        if (account.getId() != null) {
+            var shard = shards.forAccount(account.getId());
+            return shardRepository.updateAccount(shard, account)
+                    .thenReturn(account);
+        }
+        var shard = shards.get(Math.floorMod(nextShard.getAndIncrement(), shards.size()));
+        return shardRepository.nextAccountId(shard)
+                .map(sequence -> account.toBuilder()
+                        .id(sequence * shards.size() + shard.getIndex())
+                        .build())
+                .flatMap(created -> shardRepository.insertAccount(shard, created)
+                        .thenReturn(created));
+    }
+
+    @Override
+    public Mono<Void> transferAmount(long id, int version, long toTransfer) {
+        return shards.forAccount(id).getAccounts().transferAmount(id, version, toTransfer);
+    }
+
+    @Override
+    public Mono<Boolean> withdraw(long id, long amount) {
+        return shards.forAccount(id).getAccounts().withdraw(id, amount);
+    }
+
+    @Override
+    public Mono<Boolean> deposit(long id, long amount) {
+        return shards.forAccount(id).getAccounts().deposit(id, amount);
+    }
+
+    @Override
+    public Mono<Account> findById(long id) {
+        return shardRepository.findAccount(shards.forAccount(id), id);
+    }
+
+    @Override
+    public Flux<Account> findAllByIdIn(Collection<Long> ids) {
+        return Flux.fromIterable(ids.stream()
+                .collect(Collectors.groupingBy(shards::forAccount))
+                .entrySet())
+                .flatMap(shardIds -> shardRepository.findAccounts(shardIds.getKey(), shardIds.getValue()));
+    }
+}
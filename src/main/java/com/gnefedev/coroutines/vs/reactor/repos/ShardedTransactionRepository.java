@@ -0,0 +1,63 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.services.ShardedLedger;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Transactions spread over {@link Shards}. {@link ShardedLedger} stores a transaction on the shard of each of its accounts,
+ * so the history of an account is read from its shard alone, while a lookup by key asks every shard.
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = ShardedLedger.NAME)
+@RequiredArgsConstructor
+public class ShardedTransactionRepository implements TransactionRepository {
+    private final Shards shards;
+    private final ShardRepository shardRepository;
+
+    /**
+     * Stores the transaction on the shard of the source account only, the id is not filled in.
+     */
+    @Override
+    public Mono<Transaction> save(Transaction transaction) {
+        return shardRepository.insertTransaction(shards.forAccount(transaction.getFromAccountId()), transaction)
+                .thenReturn(transaction);
+    }
+
+    @Override
+    public Mono<Transaction> findByUniqueKey(String uniqueKey) {
+        return findAllByUniqueKeyIn(List.of(uniqueKey))
+                .next();
+    }
+
+    @Override
+    public Flux<Transaction> findAllByUniqueKeyIn(Collection<String> uniqueKeys) {
+        return Flux.fromIterable(shards.all())
+                .flatMap(shard -> shardRepository.findTransactionsByKeys(shard, uniqueKeys))
+                .distinct(Transaction::getUniqueKey);
+    }
+
+    @Override
+    public Mono<Void> insertAll(List<Transaction> transactions) {
+        return Flux.fromIterable(transactions.stream()
+                .collect(Collectors.groupingBy(transaction -> shards.forAccount(transaction.getFromAccountId())))
+                .entrySet())
+                .concatMap(shardTransactions -> shardTransactions.getKey().getTransactions().insertAll(shardTransactions.getValue()))
+                .then();
+    }
+
+    @Override
+    public Flux<Transaction> findPageOfAccount(long accountId, long afterId, int limit) {
+        return shards.forAccount(accountId).getTransactions().findPageOfAccount(accountId, afterId, limit);
+    }
+}
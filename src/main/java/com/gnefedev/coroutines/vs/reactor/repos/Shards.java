@@ -0,0 +1,109 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.services.ShardedLedger;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.r2dbc.connection.init.ResourceDatabasePopulator;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection factories of {@code ledger.sharding.urls}, each with its own pool, transaction manager and
+ * {@code shard-schema.sql}. An account lives on the shard at index {@code id mod size}, its transactions with it.
+ * <p>
+ * The {@link ConnectionFactory} of spring.r2dbc is not one of the shards.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = ShardedLedger.NAME)
+@Log4j2
+public class Shards {
+    private final List<Shard> shards;
+
+    public Shards(LedgerProperties properties, MeterRegistry meterRegistry) {
+        var sharding = properties.getSharding();
+        if (sharding.getUrls().isEmpty()) {
+            throw new IllegalStateException("ledger.sharding.urls should list at least one shard");
+        }
+        var shards = new ArrayList<Shard>();
+        for (int index = 0; index < sharding.getUrls().size(); index++) {
+            var options = ConnectionFactoryOptions.parse(sharding.getUrls().get(index)).mutate()
+                    .option(ConnectionFactoryOptions.USER, sharding.getUsername())
+                    .option(ConnectionFactoryOptions.PASSWORD, sharding.getPassword())
+                    .build();
+            shards.add(new Shard(index, ConnectionFactories.get(options), meterRegistry));
+        }
+        this.shards = List.copyOf(shards);
+    }
+
+    @PostConstruct
+    public void createSchema() {
+        var populator = new ResourceDatabasePopulator(new ClassPathResource("shard-schema.sql"));
+        Flux.fromIterable(shards)
+                .concatMap(shard -> populator.populate(shard.connectionFactory))
+                .blockLast();
+        log.info("{} shards ready", shards.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        for (var shard : shards) {
+            if (shard.connectionFactory instanceof Disposable) {
+                ((Disposable) shard.connectionFactory).dispose();
+            }
+        }
+    }
+
+    public Shard forAccount(long accountId) {
+        return shards.get((int) Math.floorMod(accountId, (long) shards.size()));
+    }
+
+    public Shard get(int index) {
+        return shards.get(index);
+    }
+
+    public List<Shard> all() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    @Getter
+    public static class Shard {
+        private final int index;
+        private final ConnectionFactory connectionFactory;
+        private final DatabaseClient databaseClient;
+        private final TransactionalOperator transactionalOperator;
+        /**
+         * Single row updates of accounts, the same queries as the unsharded repository.
+         */
+        private final AccountRepositoryImpl accounts;
+        private final TransactionRepositoryImpl transactions;
+
+        Shard(int index, ConnectionFactory connectionFactory, MeterRegistry meterRegistry) {
+            this.index = index;
+            this.connectionFactory = connectionFactory;
+            this.databaseClient = DatabaseClient.create(connectionFactory);
+            this.transactionalOperator = TransactionalOperator.create(new R2dbcTransactionManager(connectionFactory));
+            this.accounts = new AccountRepositoryImpl(databaseClient, meterRegistry);
+            this.transactions = new TransactionRepositoryImpl(databaseClient);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Credits of a hot account go to a random stripe of {@link BalanceStripeRepository} and don't touch the account row,
+ * so they neither bump its version nor wait for each other. Balances are read as the row plus the stripes.
+ * <p>
+ * A debit of a hot account locks the row and the stripes and takes the amount from the row first, then from
+ * the stripes in stripe order. It still bumps the row version, so debits keep their optimistic locking.
+ * Other accounts go to the delegate as they are.
+ * <p>
+ * Can't be combined with {@link CachingAccountRepository}, its snapshots would miss credits to stripes,
+ * startup fails when both are enabled.
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "ledger.balance-stripes.enabled", havingValue = "true")
+public class StripedAccountRepository implements AccountRepository {
+    private final AccountRepository delegate;
+    private final BalanceStripeRepository stripeRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final Map<Long, Integer> stripeCounts = new ConcurrentHashMap<>();
+
+    public StripedAccountRepository(
+            @Qualifier("accountRepository") AccountRepository delegate,
+            BalanceStripeRepository stripeRepository,
+            TransactionalOperator transactionalOperator,
+            LedgerProperties properties
+    ) {
+        if (properties.getAccountCache().isEnabled()) {
+            throw new IllegalStateException("ledger.account-cache can't be enabled with ledger.balance-stripes, "
+                    + "cached snapshots would miss credits to stripes");
+        }
+        this.delegate = delegate;
+        this.stripeRepository = stripeRepository;
+        this.transactionalOperator = transactionalOperator;
+    }
+
+    /**
+     * Flags the account as hot, a flagged account never goes back, its stripe count only grows.
+     */
+    public Mono<Void> markHot(long id, int stripes) {
+        return stripeRepository.addStripes(id, stripes)
+                .then(Mono.fromRunnable(() -> stripeCounts.merge(id, stripes, Math::max)));
+    }
+
+    /**
+     * Picks up accounts flagged by other instances.
+     */
+    public Mono<Void> refreshHotAccounts() {
+        return stripeRepository.findStripeCounts()
+                .collectMap(BalanceStripeRepository.StripeCount::getAccountId, BalanceStripeRepository.StripeCount::getStripes)
+                .doOnNext(stripeCounts::putAll)
+                .then();
+    }
+
+    public Set<Long> getHotAccountIds() {
+        return stripeCounts.keySet();
+    }
+
+    /**
+     * Moves everything credited to stripes into the account row.
+     *
+     * @return the amount moved
+     */
+    public Mono<Long> compact(long id) {
+        return transactionalOperator.transactional(stripeRepository.lockAccount(id)
+                .flatMapMany(__ -> stripeRepository.lockStripes(id))
+                .filter(stripe -> stripe.getAmount() != 0)
+                .concatMap(stripe -> stripeRepository.take(id, stripe.getStripe(), stripe.getAmount())
+                        .thenReturn(stripe.getAmount()))
+                .reduce(0L, Long::sum)
+                .flatMap(moved -> moved == 0 ? Mono.just(0L) : delegate.deposit(id, moved).thenReturn(moved)));
+    }
+
+    @Override
+    public Mono<Account> save(Account account) {
+        return delegate.save(account);
+    }
+
+    @Override
+    public Mono<Void> transferAmount(long id, int version, long toTransfer) {
+        if (!stripeCounts.containsKey(id) || toTransfer == 0) {
+            return delegate.transferAmount(id, version, toTransfer);
+        }
+        if (toTransfer > 0) {
+            //credits commute, the version read by the caller doesn't matter for them
+            return credit(id, toTransfer)
+                    .flatMap(credited -> credited ? Mono.empty() : delegate.transferAmount(id, version, toTransfer));
+        }
+        //the caller has seen enough money, less now means the account moved since
+        return drain(id, version, -toTransfer)
+                .flatMap(drained -> drained ? Mono.empty() : Mono.error(new OptimisticLockException()));
+    }
+
+    @Override
+    public Mono<Boolean> withdraw(long id, long amount) {
+        if (!stripeCounts.containsKey(id)) {
+            return delegate.withdraw(id, amount);
+        }
+        return delegate.withdraw(id, amount)
+                .flatMap(withdrawn -> withdrawn ? Mono.just(true) : drain(id, null, amount));
+    }
+
+    @Override
+    public Mono<Boolean> deposit(long id, long amount) {
+        //a negative change from write behind or the journal is a debit, it goes to the row
+        if (!stripeCounts.containsKey(id) || amount <= 0) {
+            return delegate.deposit(id, amount);
+        }
+        return credit(id, amount)
+                .flatMap(credited -> credited ? Mono.just(true) : delegate.deposit(id, amount));
+    }
+
+    @Override
+    public Mono<Account> findById(long id) {
+        if (!stripeCounts.containsKey(id)) {
+            return delegate.findById(id);
+        }
+        return stripeRepository.findSummedById(id);
+    }
+
+    @Override
+    public Flux<Account> findAllByIdIn(Collection<Long> ids) {
+        if (ids.stream().noneMatch(stripeCounts::containsKey)) {
+            return delegate.findAllByIdIn(ids);
+        }
+        return stripeRepository.findAllSummedByIdIn(ids);
+    }
+
+    /**
+     * Emits false when the stripe is missing, the account was flagged by a DB this instance no longer sees.
+     */
+    private Mono<Boolean> credit(long id, long amount) {
+        return Mono.defer(() -> stripeRepository.credit(id, ThreadLocalRandom.current().nextInt(stripeCounts.get(id)), amount));
+    }
+
+    /**
+     * Emits false when the row and the stripes together have less than the amount.
+     *
+     * @param version expected version of the row, null for any
+     */
+    private Mono<Boolean> drain(long id, Integer version, long amount) {
+        return transactionalOperator.transactional(stripeRepository.lockAccount(id)
+                .flatMap(account -> {
+                    if (version != null && account.getVersion() != version) {
+                        return Mono.error(new OptimisticLockException());
+                    }
+                    return stripeRepository.lockStripes(id)
+                            .collectList()
+                            .flatMap(stripes -> {
+                                long total = account.getAmountMinorUnits();
+                                for (var stripe : stripes) {
+                                    total += stripe.getAmount();
+                                }
+                                if (total < amount) {
+                                    return Mono.just(false);
+                                }
+                                long fromRow = Math.max(0, Math.min(account.getAmountMinorUnits(), amount));
+                                long remaining = amount - fromRow;
+                                var takes = new ArrayList<Mono<Void>>();
+                                for (var stripe : stripes) {
+                                    if (remaining == 0) {
+                                        break;
+                                    }
+                                    long take = Math.min(stripe.getAmount(), remaining);
+                                    if (take > 0) {
+                                        takes.add(stripeRepository.take(id, stripe.getStripe(), take));
+                                        remaining -= take;
+                                    }
+                                }
+                                return delegate.transferAmount(id, account.getVersion(), -fromRow)
+                                        .then(Flux.concat(takes).then())
+                                        .thenReturn(true);
+                            });
+                })
+                .defaultIfEmpty(false));
+    }
+}
@@ -2,10 +2,24 @@ package com.gnefedev.coroutines.vs.reactor.repos;
 
 import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
 import org.springframework.data.repository.Repository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+import java.util.List;
+
 public interface TransactionRepository extends Repository<Transaction, Long> {
     Mono<Transaction> save(Transaction transaction);
 
     Mono<Transaction> findByUniqueKey(String uniqueKey);
+
+    Flux<Transaction> findAllByUniqueKeyIn(Collection<String> uniqueKeys);
+
+    Mono<Void> insertAll(List<Transaction> transactions);
+
+    /**
+     * Up to limit transactions from or to the account with id greater than afterId, ordered by id.
+     * Reads only index ranges of (from_account_id, id) and (to_account_id, id).
+     */
+    Flux<Transaction> findPageOfAccount(long accountId, long afterId, int limit);
 }
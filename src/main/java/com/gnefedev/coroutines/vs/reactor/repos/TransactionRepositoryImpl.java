@@ -0,0 +1,70 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+@RequiredArgsConstructor
+public class TransactionRepositoryImpl {
+    private final DatabaseClient databaseClient;
+
+    public Mono<Void> insertAll(List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return Mono.empty();
+        }
+        var sql = new StringBuilder("" +
+                "INSERT INTO transaction (amount, from_account_id, to_account_id, unique_key)" +
+                "   VALUES "
+        );
+        for (int i = 0; i < transactions.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("(:amount").append(i)
+                    .append(", :from_account_id").append(i)
+                    .append(", :to_account_id").append(i)
+                    .append(", :unique_key").append(i)
+                    .append(")");
+        }
+        var spec = databaseClient.sql(sql.toString());
+        for (int i = 0; i < transactions.size(); i++) {
+            var transaction = transactions.get(i);
+            spec = spec
+                    .bind("amount" + i, transaction.getAmountMinorUnits())
+                    .bind("from_account_id" + i, transaction.getFromAccountId())
+                    .bind("to_account_id" + i, transaction.getToAccountId())
+                    .bind("unique_key" + i, transaction.getUniqueKey());
+        }
+        return spec.fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Flux<Transaction> findPageOfAccount(long accountId, long afterId, int limit) {
+        //each branch stops after limit rows of its index, UNION drops transfers to the same account found by both
+        return databaseClient.sql("" +
+                "SELECT id, amount, from_account_id, to_account_id, unique_key FROM (" +
+                "   (SELECT id, amount, from_account_id, to_account_id, unique_key FROM transaction" +
+                "       WHERE from_account_id = :account_id AND id > :after_id ORDER BY id LIMIT :limit)" +
+                "   UNION" +
+                "   (SELECT id, amount, from_account_id, to_account_id, unique_key FROM transaction" +
+                "       WHERE to_account_id = :account_id AND id > :after_id ORDER BY id LIMIT :limit)" +
+                ") ORDER BY id LIMIT :limit"
+        )
+                .bind("account_id", accountId)
+                .bind("after_id", afterId)
+                .bind("limit", limit)
+                .map((row, metadata) -> Transaction.builder()
+                        .id(row.get("id", Long.class))
+                        .amountMinorUnits(row.get("amount", Long.class))
+                        .fromAccountId(row.get("from_account_id", Long.class))
+                        .toAccountId(row.get("to_account_id", Long.class))
+                        .uniqueKey(row.get("unique_key", String.class))
+                        .build())
+                .all();
+    }
+}
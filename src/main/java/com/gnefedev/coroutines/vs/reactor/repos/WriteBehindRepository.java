@@ -0,0 +1,39 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Sequence of the last log record of {@link com.gnefedev.coroutines.vs.reactor.services.InMemoryLedger} written to the database,
+ * moved in the DB transaction of its batch.
+ */
+@Component
+@RequiredArgsConstructor
+public class WriteBehindRepository {
+    private final DatabaseClient databaseClient;
+
+    public Mono<Long> findCheckpoint() {
+        return databaseClient.sql("SELECT last_sequence FROM write_behind_checkpoint WHERE id = 1")
+                .map((row, metadata) -> row.get("last_sequence", Long.class))
+                .one();
+    }
+
+    /**
+     * Locks the checkpoint till the end of the DB transaction.
+     */
+    public Mono<Long> lockCheckpoint() {
+        return databaseClient.sql("SELECT last_sequence FROM write_behind_checkpoint WHERE id = 1 FOR UPDATE")
+                .map((row, metadata) -> row.get("last_sequence", Long.class))
+                .one();
+    }
+
+    public Mono<Void> moveCheckpoint(long lastSequence) {
+        return databaseClient.sql("UPDATE write_behind_checkpoint SET last_sequence = :last_sequence WHERE id = 1")
+                .bind("last_sequence", lastSequence)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+}
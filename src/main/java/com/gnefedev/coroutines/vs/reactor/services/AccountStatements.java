@@ -0,0 +1,58 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Balance and history reads. History is read page by page with keyset pagination,
+ * the next page is queried only when the subscriber has requested past the current one.
+ */
+@Component
+@RequiredArgsConstructor
+public class AccountStatements {
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final LedgerProperties properties;
+    private final ObjectProvider<InMemoryLedger> inMemoryLedger;
+
+    public Mono<Account> account(long accountId) {
+        return accountRepository.findById(accountId)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "account not found")));
+    }
+
+    /**
+     * Transactions from or to the account with id greater than afterId, ordered by id.
+     */
+    public Flux<Transaction> history(long accountId, long afterId) {
+        var pageSize = properties.getStatement().getPageSize();
+        var inMemory = inMemoryLedger.getIfAvailable();
+        //history is read from the database, it should have every transfer the balance already shows
+        var writtenBehind = inMemory == null ? Mono.<Void>empty() : inMemory.awaitWriteBehind();
+        return account(accountId)
+                .flatMap(account -> writtenBehind.thenReturn(account))
+                .flatMapMany(__ -> page(accountId, afterId, pageSize)
+                        .expand(page -> page.size() < pageSize
+                                ? Mono.<List<Transaction>>empty()
+                                : page(accountId, page.get(page.size() - 1).getId(), pageSize)))
+                //one page ahead at most
+                .concatMapIterable(Function.identity(), 1);
+    }
+
+    private Mono<List<Transaction>> page(long accountId, long afterId, int pageSize) {
+        return transactionRepository.findPageOfAccount(accountId, afterId, pageSize)
+                .collectList();
+    }
+}
@@ -0,0 +1,120 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.spi.ConnectionFactory;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the transfer engine for {@code ledger.engine=adaptive}.
+ * The low-load engine is used while the r2dbc pool has spare connections and its p99 stays under the limit,
+ * otherwise transfers go to the high-load engine until the pool drains below the resume level.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = AdaptiveEnginePolicy.NAME)
+@Log4j2
+public class AdaptiveEnginePolicy {
+    public static final String NAME = "adaptive";
+
+    private final ConnectionFactory connectionFactory;
+    private final MeterRegistry meterRegistry;
+    private final LedgerProperties.Adaptive properties;
+    private volatile String currentEngine;
+    private Disposable evaluation;
+
+    public AdaptiveEnginePolicy(ConnectionFactory connectionFactory, MeterRegistry meterRegistry, LedgerProperties properties) {
+        this.connectionFactory = connectionFactory;
+        this.meterRegistry = meterRegistry;
+        this.properties = properties.getAdaptive();
+        this.currentEngine = this.properties.getLowLoadEngine();
+        for (String engine : Arrays.asList(this.properties.getLowLoadEngine(), this.properties.getHighLoadEngine())) {
+            Gauge.builder("ledger.engine.active", this, policy -> engine.equals(policy.currentEngine) ? 1 : 0)
+                    .tag("engine", engine)
+                    .register(meterRegistry);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        evaluation = Flux.interval(properties.getEvaluationInterval())
+                .onBackpressureDrop()
+                .concatMap(__ -> Mono.fromRunnable(this::evaluate)
+                        //a failed tick keeps the current engine, the next one tries again
+                        .onErrorResume(e -> {
+                            log.error("engine evaluation failed", e);
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        evaluation.dispose();
+    }
+
+    public String getCurrentEngine() {
+        return currentEngine;
+    }
+
+    void evaluate() {
+        var saturation = poolSaturation();
+        String next;
+        if (saturation >= properties.getMaxPoolSaturation() || p99Nanos(properties.getLowLoadEngine()) > properties.getMaxP99().toNanos()) {
+            next = properties.getHighLoadEngine();
+        } else if (saturation <= properties.getResumePoolSaturation()) {
+            next = properties.getLowLoadEngine();
+        } else {
+            next = currentEngine;
+        }
+        if (!next.equals(currentEngine)) {
+            log.info("switching transfer engine from {} to {}, pool saturation {}", currentEngine, next, saturation);
+            currentEngine = next;
+        }
+    }
+
+    /**
+     * Share of the pool in use, 1 as soon as somebody waits for a connection.
+     */
+    private double poolSaturation() {
+        if (!(connectionFactory instanceof ConnectionPool)) {
+            return 0;
+        }
+        return ((ConnectionPool) connectionFactory).getMetrics()
+                .map(metrics -> {
+                    if (metrics.pendingAcquireSize() > 0) {
+                        return 1.0;
+                    }
+                    return (double) metrics.acquiredSize() / Math.max(1, metrics.getMaxAllocatedSize());
+                })
+                .orElse(0.0);
+    }
+
+    private double p99Nanos(String engine) {
+        Timer timer = meterRegistry.find(TransferEngines.TIMER_NAME)
+                .tags("engine", engine, "outcome", "success")
+                .timer();
+        if (timer == null) {
+            return 0;
+        }
+        for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+            if (percentile.percentile() == 0.99) {
+                return percentile.value(TimeUnit.NANOSECONDS);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,237 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.util.LoggerHelper;
+import com.gnefedev.coroutines.vs.reactor.util.Money;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link Ledger#transfer} written as plain blocking JDBC, one thread per transfer, for comparison with the reactive engines.
+ * Runs on virtual threads when the JVM has them, on {@link Schedulers#boundedElastic} otherwise.
+ * <p>
+ * Idempotency, retries and error statuses are the same as in {@link Ledger}: the same {@link IdempotencyKeys},
+ * the same {@link RetryPolicy} slept out on the transfer thread and the same exceptions for {@link TransferLog}.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = BlockingLedger.NAME)
+@Log4j2
+public class BlockingLedger implements TransferEngine {
+    public static final String NAME = "blocking";
+
+    private final IdempotencyKeys idempotencyKeys;
+    private final LedgerMetrics ledgerMetrics;
+    private final RetryPolicy retryPolicy;
+    private final TransferLog transferLog;
+    private final HikariDataSource dataSource;
+    private final ExecutorService virtualThreads;
+    private final Scheduler scheduler;
+
+    public BlockingLedger(
+            IdempotencyKeys idempotencyKeys,
+            LedgerMetrics ledgerMetrics,
+            RetryPolicy retryPolicy,
+            TransferLog transferLog,
+            LedgerProperties properties,
+            MeterRegistry meterRegistry
+    ) {
+        this.idempotencyKeys = idempotencyKeys;
+        this.ledgerMetrics = ledgerMetrics;
+        this.retryPolicy = retryPolicy;
+        this.transferLog = transferLog;
+        var blocking = properties.getBlocking();
+        var config = new HikariConfig();
+        config.setPoolName("ledger-jdbc");
+        config.setJdbcUrl(blocking.getJdbcUrl());
+        config.setUsername(blocking.getUsername());
+        config.setPassword(blocking.getPassword());
+        config.setMaximumPoolSize(blocking.getMaxPoolSize());
+        config.setConnectionTimeout(blocking.getConnectionTimeout().toMillis());
+        config.setMetricRegistry(meterRegistry);
+        this.dataSource = new HikariDataSource(config);
+        this.virtualThreads = newVirtualThreadPerTaskExecutor();
+        if (virtualThreads != null) {
+            this.scheduler = Schedulers.fromExecutorService(virtualThreads, "ledger-virtual");
+            log.info("blocking transfers run on virtual threads");
+        } else {
+            this.scheduler = Schedulers.boundedElastic();
+            log.info("no virtual threads in this JVM, blocking transfers run on bounded elastic");
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+        dataSource.close();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        //the blocking code logs with MDC of the thread, it is set from the context for the whole transfer
+        return Mono.deferContextual(context -> Mono.<Void>fromCallable(() -> {
+            LoggerHelper.withMdc(context, () -> transferBlocking(transactionKey, fromAccountId, toAccountId, amountToTransfer));
+            return null;
+        }))
+                .subscribeOn(scheduler)
+                .onErrorResume(e -> transferLog.failed(log, e));
+    }
+
+    private void transferBlocking(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) throws SQLException {
+        var attempts = retryPolicy.begin(fromAccountId, toAccountId);
+        for (long attempt = 1; ; attempt++) {
+            try {
+                attemptTransfer(transactionKey, fromAccountId, toAccountId, amountToTransfer);
+                return;
+            } catch (OptimisticLockException | SQLTransientException conflict) {
+                var delay = attempts.nextDelay();
+                if (delay.isEmpty()) {
+                    ledgerMetrics.retriesExhausted(attempt);
+                    throw new ResponseStatusException(HttpStatus.BANDWIDTH_LIMIT_EXCEEDED, "limit of OptimisticLockException exceeded", conflict);
+                }
+                ledgerMetrics.retry(attempt);
+                LockSupport.parkNanos(delay.get().toNanos());
+            }
+        }
+    }
+
+    private void attemptTransfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            var alreadyCommitted = ledgerMetrics.timeLookup(() -> idempotencyKeys.isCommitted(
+                    transactionKey,
+                    key -> isInDatabase(connection, key)
+            ));
+            if (alreadyCommitted) {
+                transferLog.duplicate(log, transactionKey);
+                ledgerMetrics.knownKey();
+                return;
+            }
+            var fromAccount = ledgerMetrics.timeReadAccounts(() -> findAccount(connection, fromAccountId));
+            var toAccount = ledgerMetrics.timeReadAccounts(() -> findAccount(connection, toAccountId));
+            if (fromAccount.amount < amountToTransfer) {
+                throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money");
+            }
+            if (Money.creditOverflows(toAccount.amount, amountToTransfer)) {
+                throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, balance overflow");
+            }
+            try {
+                ledgerMetrics.timeWrite(() -> {
+                    insertTransaction(connection, transactionKey, fromAccount, toAccount, amountToTransfer);
+                    return null;
+                });
+                idempotencyKeys.markCommitted(transactionKey);
+            } catch (SQLIntegrityConstraintViolationException e) {
+                //transaction was inserted on parallel transaction, we may return success response, ours is rolled back
+                if (e.getMessage().contains("TRANSACTION_UNIQUE_KEY")) {
+                    ledgerMetrics.uniqueKeyViolation();
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void insertTransaction(Connection connection, String transactionKey, AccountRow fromAccount, AccountRow toAccount, long amount) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            try (var insert = connection.prepareStatement("" +
+                    "INSERT INTO transaction (amount, from_account_id, to_account_id, unique_key)" +
+                    "   VALUES (?, ?, ?, ?)"
+            )) {
+                insert.setLong(1, amount);
+                insert.setLong(2, fromAccount.id);
+                insert.setLong(3, toAccount.id);
+                insert.setString(4, transactionKey);
+                insert.executeUpdate();
+            }
+            transferAmount(connection, fromAccount, -amount);
+            transferAmount(connection, toAccount, amount);
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private static void transferAmount(Connection connection, AccountRow account, long toTransfer) throws SQLException {
+        try (var update = connection.prepareStatement("" +
+                "UPDATE account " +
+                "   SET amount = amount + ?, version = version + 1" +
+                "   WHERE id = ? AND version = ?"
+        )) {
+            update.setLong(1, toTransfer);
+            update.setLong(2, account.id);
+            update.setInt(3, account.version);
+            if (update.executeUpdate() == 0) {
+                throw new OptimisticLockException();
+            }
+        }
+    }
+
+    private static AccountRow findAccount(Connection connection, long accountId) throws SQLException {
+        try (var select = connection.prepareStatement("SELECT amount, version FROM account WHERE id = ?")) {
+            select.setLong(1, accountId);
+            try (var rows = select.executeQuery()) {
+                if (!rows.next()) {
+                    throw new IllegalArgumentException("account not found");
+                }
+                return new AccountRow(accountId, rows.getLong("amount"), rows.getInt("version"));
+            }
+        }
+    }
+
+    private static boolean isInDatabase(Connection connection, String transactionKey) throws SQLException {
+        try (var select = connection.prepareStatement("SELECT 1 FROM transaction WHERE unique_key = ?")) {
+            select.setString(1, transactionKey);
+            try (var rows = select.executeQuery()) {
+                return rows.next();
+            }
+        }
+    }
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} of JDK 21+, looked up at runtime because the build targets Java 11.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class AccountRow {
+        private final long id;
+        private final long amount;
+        private final int version;
+    }
+}
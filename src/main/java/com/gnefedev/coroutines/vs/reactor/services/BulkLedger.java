@@ -0,0 +1,216 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferResult;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import com.gnefedev.coroutines.vs.reactor.util.LoggerHelper;
+import com.gnefedev.coroutines.vs.reactor.util.Money;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Applies a stream of transfers in chunks, one DB transaction per chunk.
+ * Rules are the same as in {@link Ledger#transfer}: a known transactionKey is a duplicate
+ * and the source account never goes below zero.
+ */
+@Component
+@RequiredArgsConstructor
+@Log4j2
+public class BulkLedger {
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final LedgerProperties properties;
+    private final IdempotencyKeys idempotencyKeys;
+    private final ConflictRetries conflictRetries;
+    private final ObjectProvider<InMemoryLedger> inMemoryLedger;
+    private final ObjectProvider<ShardedLedger> shardedLedger;
+    private final ObjectProvider<JournalLedger> journalLedger;
+    private final ObjectProvider<StripedLedger> stripedLedger;
+
+    /**
+     * A rejection is confirmed against the database, the engine may have skipped the lookup of a committed key.
+     */
+    public Flux<TransferResult> transfer(Flux<TransferRequest> requests) {
+        return route(requests)
+                .concatMap(result -> result.getStatus() != TransferResult.Status.INSUFFICIENT_FUNDS
+                        ? Mono.just(result)
+                        : idempotencyKeys.recheck(result.getTransactionKey())
+                        .map(committed -> committed ? result(result.getTransactionKey(), TransferResult.Status.DUPLICATE) : result));
+    }
+
+    private Flux<TransferResult> route(Flux<TransferRequest> requests) {
+        var inMemory = inMemoryLedger.getIfAvailable();
+        if (inMemory != null) {
+            //balances live in memory, the database is written behind
+            return requests
+                    .buffer(properties.getBulk().getChunkSize())
+                    .concatMap(chunk -> inMemory.transferAll(chunk).flatMapIterable(Function.identity()));
+        }
+        var sharded = shardedLedger.getIfAvailable();
+        if (sharded != null) {
+            return requests.concatMap(sharded::transfer);
+        }
+        var journal = journalLedger.getIfAvailable();
+        if (journal != null) {
+            //journaled debits don't bump versions, chunks would overdraw an account debited on a lane meanwhile
+            return requests.concatMap(journal::transfer);
+        }
+        var striped = stripedLedger.getIfAvailable();
+        if (striped != null) {
+            //a chunk would race the lanes on the versions of hot accounts
+            return requests.concatMap(striped::transfer);
+        }
+        return requests
+                .buffer(properties.getBulk().getChunkSize())
+                .concatMap(this::transferChunk);
+    }
+
+    private Flux<TransferResult> transferChunk(List<TransferRequest> chunk) {
+        var attempts = new AtomicInteger();
+        var accountIds = chunk.stream()
+                .flatMapToLong(request -> LongStream.of(request.getFromAccountId(), request.getToAccountId()))
+                .distinct()
+                .toArray();
+        return Mono.defer(() -> transactionalOperator.transactional(applyChunk(chunk, attempts.getAndIncrement() == 0)))
+                .doOnNext(results -> results.stream()
+                        .filter(result -> result.getStatus() == TransferResult.Status.APPLIED)
+                        .forEach(result -> idempotencyKeys.markCommitted(result.getTransactionKey())))
+                .retryWhen(conflictRetries.forAccounts(BulkLedger::isConflict, accountIds))
+                .onErrorResume(BulkLedger::isConflict, e -> LoggerHelper.logWithMdc(() -> log.warn("conflict on chunk of {} transfers", chunk.size()))
+                        .thenReturn(chunk.stream()
+                                .map(request -> result(request, TransferResult.Status.CONFLICT))
+                                .collect(Collectors.toList())))
+                .flatMapIterable(Function.identity());
+    }
+
+    /**
+     * @param skipNewKeys look up only keys the local filter may have seen, a retry after a unique key conflict looks up all of them
+     */
+    private Mono<List<TransferResult>> applyChunk(List<TransferRequest> chunk, boolean skipNewKeys) {
+        var keys = new HashSet<String>();
+        var accountIds = new HashSet<Long>();
+        for (var request : chunk) {
+            if (!skipNewKeys || idempotencyKeys.mightBeCommitted(request.getTransactionKey())) {
+                keys.add(request.getTransactionKey());
+            }
+            accountIds.add(request.getFromAccountId());
+            accountIds.add(request.getToAccountId());
+        }
+        return Mono.zip(
+                keys.isEmpty()
+                        ? Mono.just(Set.<String>of())
+                        : transactionRepository.findAllByUniqueKeyIn(keys)
+                        .map(Transaction::getUniqueKey)
+                        .collect(Collectors.toSet()),
+                accountRepository.findAllByIdIn(accountIds)
+                        .collectMap(Account::getId)
+        ).flatMap(fetched -> {
+            var committedKeys = new HashSet<>(fetched.getT1());
+            var accounts = fetched.getT2();
+            var balances = new HashMap<Long, Long>();
+            accounts.forEach((id, account) -> balances.put(id, account.getAmountMinorUnits()));
+
+            var results = new ArrayList<TransferResult>(chunk.size());
+            var transactionsToInsert = new ArrayList<Transaction>();
+            for (var request : chunk) {
+                if (committedKeys.contains(request.getTransactionKey())) {
+                    results.add(result(request, TransferResult.Status.DUPLICATE));
+                    continue;
+                }
+                var fromBalance = balances.get(request.getFromAccountId());
+                if (fromBalance == null || !balances.containsKey(request.getToAccountId())) {
+                    results.add(result(request, TransferResult.Status.ACCOUNT_NOT_FOUND));
+                    continue;
+                }
+                long amount = request.getAmountMinorUnits();
+                var toBalance = balances.get(request.getToAccountId());
+                if (fromBalance < amount || Money.creditOverflows(toBalance, amount)) {
+                    results.add(result(request, TransferResult.Status.INSUFFICIENT_FUNDS));
+                    continue;
+                }
+                balances.put(request.getFromAccountId(), fromBalance - amount);
+                balances.put(request.getToAccountId(), balances.get(request.getToAccountId()) + amount);
+                committedKeys.add(request.getTransactionKey());
+                transactionsToInsert.add(Transaction.builder()
+                        .amountMinorUnits(amount)
+                        .fromAccountId(request.getFromAccountId())
+                        .toAccountId(request.getToAccountId())
+                        .uniqueKey(request.getTransactionKey())
+                        .build());
+                results.add(result(request, TransferResult.Status.APPLIED));
+            }
+
+            var accountUpdates = Flux.fromIterable(accounts.values())
+                    .concatMap(account -> {
+                        long delta = balances.get(account.getId()) - account.getAmountMinorUnits();
+                        if (delta == 0) {
+                            return Mono.empty();
+                        }
+                        return accountRepository.transferAmount(account.getId(), account.getVersion(), delta);
+                    });
+            return transactionRepository.insertAll(transactionsToInsert)
+                    .thenMany(accountUpdates)
+                    .then(Mono.just(results));
+        });
+    }
+
+    private static TransferResult result(TransferRequest request, TransferResult.Status status) {
+        return result(request.getTransactionKey(), status);
+    }
+
+    private static TransferResult result(String transactionKey, TransferResult.Status status) {
+        return TransferResult.builder()
+                .transactionKey(transactionKey)
+                .status(status)
+                .build();
+    }
+
+    /**
+     * Status of a transfer of an engine that runs bulk requests one by one, for the errors {@link Ledger#transfer} answers with.
+     */
+    static Mono<TransferResult.Status> rejectedStatus(Throwable e) {
+        if (e instanceof IllegalArgumentException) {
+            return Mono.just(TransferResult.Status.ACCOUNT_NOT_FOUND);
+        }
+        if (e instanceof ResponseStatusException) {
+            var status = ((ResponseStatusException) e).getStatus();
+            if (status == HttpStatus.UNPROCESSABLE_ENTITY) {
+                return Mono.just(TransferResult.Status.INSUFFICIENT_FUNDS);
+            }
+            if (status == HttpStatus.BANDWIDTH_LIMIT_EXCEEDED) {
+                return Mono.just(TransferResult.Status.CONFLICT);
+            }
+        }
+        return Mono.error(e);
+    }
+
+    private static boolean isConflict(Throwable error) {
+        //concurrent transfer changed an account or inserted one of our keys, whole chunk is re-read on retry
+        return error instanceof OptimisticLockException
+                || error instanceof DataIntegrityViolationException && error.getMessage().contains("TRANSACTION_UNIQUE_KEY");
+    }
+}
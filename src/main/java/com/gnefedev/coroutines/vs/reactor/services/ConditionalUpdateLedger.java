@@ -0,0 +1,95 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+
+/**
+ * Transfers without reading accounts first: the debit is {@code UPDATE ... WHERE amount >= :amount},
+ * the credit is unconditional and both run with the transaction insert in one DB transaction.
+ * Rows are locked in account id order, so two opposite transfers can't deadlock.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = ConditionalUpdateLedger.NAME)
+@RequiredArgsConstructor
+@Log4j2
+public class ConditionalUpdateLedger implements TransferEngine {
+    public static final String NAME = "conditional";
+
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final IdempotencyKeys idempotencyKeys;
+    private final LedgerMetrics ledgerMetrics;
+    private final ConflictRetries conflictRetries;
+    private final TransferLog transferLog;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return ledgerMetrics.timeLookup(idempotencyKeys.isCommitted(transactionKey))
+                .flatMap(alreadyCommitted -> {
+                    if (alreadyCommitted) {
+                        ledgerMetrics.knownKey();
+                        return transferLog.logDuplicate(log, transactionKey);
+                    }
+                    var transactionToInsert = Transaction.builder()
+                            .amountMinorUnits(amountToTransfer)
+                            .fromAccountId(fromAccountId)
+                            .toAccountId(toAccountId)
+                            .uniqueKey(transactionKey)
+                            .build();
+                    Mono<Void> debit = accountRepository.withdraw(fromAccountId, amountToTransfer)
+                            .flatMap(withdrawn -> withdrawn ? Mono.<Void>empty() : withdrawFailure(fromAccountId));
+                    Mono<Void> credit = accountRepository.deposit(toAccountId, amountToTransfer)
+                            .flatMap(deposited -> deposited ? Mono.<Void>empty() : Mono.<Void>error(new IllegalArgumentException("account not found")));
+                    return ledgerMetrics.timeWrite(transactionalOperator.transactional(
+                            transactionRepository.save(transactionToInsert)
+                                    .then(fromAccountId <= toAccountId ? debit.then(credit) : credit.then(debit))
+                    ))
+                            .doOnSuccess(__ -> idempotencyKeys.markCommitted(transactionKey))
+                            .onErrorResume(error -> {
+                                //transaction was inserted on parallel transaction, we may return success response, ours is rolled back
+                                if (error instanceof DataIntegrityViolationException && error.getMessage().contains("TRANSACTION_UNIQUE_KEY")) {
+                                    ledgerMetrics.uniqueKeyViolation();
+                                    return Mono.empty();
+                                } else {
+                                    return Mono.error(error);
+                                }
+                            });
+                })
+                .retryWhen(conflictRetries.forAccounts(ConditionalUpdateLedger::isLockFailure, fromAccountId, toAccountId))
+                .onErrorMap(
+                        ConditionalUpdateLedger::isLockFailure,
+                        e -> new ResponseStatusException(HttpStatus.BANDWIDTH_LIMIT_EXCEEDED, "limit of lock failures exceeded", e)
+                )
+                .onErrorResume(e -> transferLog.failed(log, e));
+    }
+
+    private Mono<Void> withdrawFailure(long fromAccountId) {
+        //slow path only, tells a missing account from a low balance
+        return accountRepository.findById(fromAccountId)
+                .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                .flatMap(__ -> Mono.<Void>error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money")));
+    }
+
+    private static boolean isLockFailure(Throwable error) {
+        return error instanceof ConcurrencyFailureException || error instanceof TransientDataAccessException;
+    }
+}
@@ -0,0 +1,41 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.util.function.Predicate;
+
+/**
+ * {@link RetryPolicy} for {@link reactor.core.publisher.Mono#retryWhen}.
+ */
+@Component
+@RequiredArgsConstructor
+public class ConflictRetries {
+    private final RetryPolicy retryPolicy;
+    private final LedgerMetrics ledgerMetrics;
+
+    /**
+     * Retries errors matching isConflict, any other error and the last conflict are passed downstream.
+     */
+    public Retry forAccounts(Predicate<? super Throwable> isConflict, long... accountIds) {
+        return Retry.from(retrySignals -> {
+            var attempts = retryPolicy.begin(accountIds);
+            return retrySignals.concatMap(retrySignal -> {
+                var failure = retrySignal.failure();
+                if (!isConflict.test(failure)) {
+                    return Mono.error(failure);
+                }
+                var attempt = retrySignal.totalRetries() + 1;
+                var delay = attempts.nextDelay();
+                if (delay.isEmpty()) {
+                    ledgerMetrics.retriesExhausted(attempt);
+                    return Mono.error(failure);
+                }
+                ledgerMetrics.retry(attempt);
+                return Mono.delay(delay.get());
+            });
+        });
+    }
+}
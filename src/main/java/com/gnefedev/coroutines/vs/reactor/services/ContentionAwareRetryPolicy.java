@@ -0,0 +1,66 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.util.DecayingCounters;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Scales retries to recent conflicts on the accounts of a transfer.
+ * <p>
+ * Every conflict is counted for all accounts of the transfer in {@link DecayingCounters}, contention of a transfer is
+ * the highest count among its accounts. Accounts without recent conflicts get {@code minRetries} retries from
+ * {@code baseDelay}, every doubling of contention adds a retry up to {@code maxRetries} and widens the delay.
+ * The delay is half fixed and half random, so transfers that conflicted once don't meet again on the next attempt.
+ * No retry starts after {@code budget} since the first attempt.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.retry.policy", havingValue = ContentionAwareRetryPolicy.NAME, matchIfMissing = true)
+public class ContentionAwareRetryPolicy implements RetryPolicy {
+    public static final String NAME = "contention-aware";
+
+    private final LedgerProperties.Retry properties;
+    private final DecayingCounters conflicts;
+    private final Timer delays;
+
+    public ContentionAwareRetryPolicy(LedgerProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties.getRetry();
+        this.conflicts = new DecayingCounters(this.properties.getConflictCounters(), this.properties.getConflictHalfLife());
+        this.delays = Timer.builder("ledger.transfer.retry_delay")
+                .description("delays chosen before retries")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Attempts begin(long... accountIds) {
+        var deadline = System.nanoTime() + properties.getBudget().toNanos();
+        var retries = new int[1];
+        return () -> {
+            long contention = 0;
+            for (var accountId : accountIds) {
+                contention = Math.max(contention, conflicts.increment(accountId));
+            }
+            var level = 63 - Long.numberOfLeadingZeros(contention);
+            if (retries[0] >= Math.min(properties.getMaxRetries(), properties.getMinRetries() + level)) {
+                return Optional.empty();
+            }
+            var ceiling = Math.min(
+                    properties.getMaxDelay().toNanos(),
+                    (properties.getBaseDelay().toNanos() << Math.min(retries[0], 20)) * (1 + level)
+            );
+            var delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+            if (System.nanoTime() + delay > deadline) {
+                return Optional.empty();
+            }
+            retries[0]++;
+            delays.record(Duration.ofNanos(delay));
+            return Optional.of(Duration.ofNanos(delay));
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Former behaviour: 3 retries, exponential delay from 1ms with Reactor's default jitter of 50%, whatever the accounts.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.retry.policy", havingValue = FixedRetryPolicy.NAME)
+public class FixedRetryPolicy implements RetryPolicy {
+    public static final String NAME = "fixed";
+
+    private static final int MAX_RETRIES = 3;
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(1);
+
+    @Override
+    public Attempts begin(long... accountIds) {
+        var retries = new int[1];
+        return () -> {
+            if (retries[0] >= MAX_RETRIES) {
+                return Optional.empty();
+            }
+            var backoff = FIRST_BACKOFF.toNanos() << retries[0]++;
+            var jitter = (long) (backoff * 0.5 * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+            return Optional.of(Duration.ofNanos(backoff + jitter));
+        };
+    }
+}
@@ -0,0 +1,229 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import com.gnefedev.coroutines.vs.reactor.util.Money;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues concurrent transfers for a short time and commits them in one DB transaction.
+ * Every transfer of a batch runs behind its own savepoint, so a failed one is rolled back alone
+ * and its caller gets the same error {@link Ledger#transfer} would return.
+ * <p>
+ * Batches wait for their commit in a bounded buffer, callers of a batch that doesn't fit get 503.
+ * An error that ends the pipeline fails the callers queued on it and starts a new one.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = GroupCommitLedger.NAME)
+@RequiredArgsConstructor
+@Log4j2
+public class GroupCommitLedger implements TransferEngine {
+    public static final String NAME = "group-commit";
+
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final DatabaseClient databaseClient;
+    private final LedgerProperties properties;
+    private final IdempotencyKeys idempotencyKeys;
+    private final LedgerMetrics ledgerMetrics;
+    private final ConflictRetries conflictRetries;
+    private final TransferLog transferLog;
+
+    private volatile Pipeline pipeline;
+    private volatile boolean stopped;
+
+    @PostConstruct
+    public void start() {
+        var groupCommit = properties.getGroupCommit();
+        var started = new Pipeline();
+        //bufferTimeout emits on the timer whether or not a batch was requested, the buffer holds them while a commit runs
+        started.batches = started.queue.asFlux()
+                .bufferTimeout(groupCommit.getMaxBatchSize(), Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(groupCommit.getMaxWaitMicros())))
+                .onBackpressureBuffer(groupCommit.getMaxPendingBatches(), this::reject, BufferOverflowStrategy.DROP_LATEST)
+                .concatMap(this::commitBatch)
+                .subscribe(null, error -> restart(started, error));
+        pipeline = started;
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+        pipeline.batches.dispose();
+    }
+
+    /**
+     * The queue of a failed pipeline is cancelled, so nothing joins it after its callers are failed here.
+     */
+    private void restart(Pipeline failed, Throwable error) {
+        log.error("group commit pipeline failed, {} queued transfers are failed", failed.pending.size(), error);
+        if (!stopped) {
+            start();
+        }
+        failed.pending.forEach(pending -> pending.result.tryEmitError(error));
+    }
+
+    private void reject(List<PendingTransfer> batch) {
+        var error = new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "group commit queue is full");
+        batch.forEach(pending -> pending.result.tryEmitError(error));
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return Mono.defer(() -> {
+                    var pending = new PendingTransfer(transactionKey, fromAccountId, toAccountId, amountToTransfer);
+                    var current = pipeline;
+                    current.pending.add(pending);
+                    if (!current.enqueue(pending)) {
+                        current.pending.remove(pending);
+                        return Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "group commit is restarting"));
+                    }
+                    return pending.result.asMono()
+                            .doFinally(__ -> current.pending.remove(pending));
+                })
+                .retryWhen(conflictRetries.forAccounts(OptimisticLockException.class::isInstance, fromAccountId, toAccountId))
+                .onErrorMap(
+                        OptimisticLockException.class,
+                        e -> new ResponseStatusException(HttpStatus.BANDWIDTH_LIMIT_EXCEEDED, "limit of OptimisticLockException exceeded", e)
+                )
+                .onErrorResume(e -> transferLog.failed(log, e));
+    }
+
+    private Mono<Void> commitBatch(List<PendingTransfer> batch) {
+        return transactionalOperator.transactional(
+                Flux.fromIterable(batch)
+                        .index()
+                        .concatMap(indexed -> applyIsolated("transfer_" + indexed.getT1(), indexed.getT2()))
+                        .then()
+        )
+                .doOnSuccess(__ -> batch.forEach(pending -> {
+                    if (pending.applied) {
+                        idempotencyKeys.markCommitted(pending.transactionKey);
+                    }
+                    pending.complete();
+                }))
+                .onErrorResume(e -> {
+                    //nothing of the batch is committed, every caller gets the commit error
+                    log.error("error on commit of {} transfers", batch.size(), e);
+                    batch.forEach(pending -> pending.result.tryEmitError(e));
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> applyIsolated(String savepoint, PendingTransfer pending) {
+        return databaseClient.inConnection(connection -> Mono.from(connection.createSavepoint(savepoint)))
+                .then(apply(pending))
+                .onErrorResume(error -> databaseClient.inConnection(connection -> Mono.from(connection.rollbackTransactionToSavepoint(savepoint)))
+                        .then(Mono.fromRunnable(() -> {
+                            //transaction was inserted on parallel transaction, we may return success response
+                            if (error instanceof DataIntegrityViolationException && error.getMessage().contains("TRANSACTION_UNIQUE_KEY")) {
+                                ledgerMetrics.uniqueKeyViolation();
+                            } else {
+                                pending.error = error;
+                            }
+                        }))
+                );
+    }
+
+    private Mono<Void> apply(PendingTransfer pending) {
+        return idempotencyKeys.isCommitted(pending.transactionKey)
+                .flatMap(alreadyCommitted -> {
+                    if (alreadyCommitted) {
+                        ledgerMetrics.knownKey();
+                        return transferLog.logDuplicate(log, pending.transactionKey);
+                    }
+                    return accountRepository.findById(pending.fromAccountId)
+                            .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                            .flatMap(fromAccount -> accountRepository.findById(pending.toAccountId)
+                                    .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                                    .flatMap(toAccount -> {
+                                        if (fromAccount.getAmountMinorUnits() < pending.amount) {
+                                            return Mono.error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money"));
+                                        }
+                                        if (Money.creditOverflows(toAccount.getAmountMinorUnits(), pending.amount)) {
+                                            return Mono.error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, balance overflow"));
+                                        }
+                                        var transactionToInsert = Transaction.builder()
+                                                .amountMinorUnits(pending.amount)
+                                                .fromAccountId(pending.fromAccountId)
+                                                .toAccountId(pending.toAccountId)
+                                                .uniqueKey(pending.transactionKey)
+                                                .build();
+                                        return transactionRepository.save(transactionToInsert)
+                                                .then(accountRepository.transferAmount(fromAccount.getId(), fromAccount.getVersion(), -pending.amount))
+                                                .then(accountRepository.transferAmount(toAccount.getId(), toAccount.getVersion(), pending.amount))
+                                                .then(Mono.fromRunnable(() -> pending.applied = true));
+                                    }));
+                });
+    }
+
+    private static class Pipeline {
+        private final Sinks.Many<PendingTransfer> queue = Sinks.many().unicast().onBackpressureBuffer();
+        /**
+         * Queued transfers without a result yet.
+         */
+        private final Set<PendingTransfer> pending = ConcurrentHashMap.newKeySet();
+        private Disposable batches;
+
+        /**
+         * @return false when the pipeline has failed
+         */
+        boolean enqueue(PendingTransfer transfer) {
+            while (true) {
+                var emitResult = queue.tryEmitNext(transfer);
+                if (emitResult != Sinks.EmitResult.FAIL_NON_SERIALIZED) {
+                    return emitResult.isSuccess();
+                }
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class PendingTransfer {
+        private final String transactionKey;
+        private final long fromAccountId;
+        private final long toAccountId;
+        private final long amount;
+        private final Sinks.One<Void> result = Sinks.one();
+        //set on the commit thread, read when the batch completes
+        private volatile boolean applied;
+        private volatile Throwable error;
+
+        void complete() {
+            if (error == null) {
+                result.tryEmitEmpty();
+            } else {
+                result.tryEmitError(error);
+            }
+        }
+    }
+}
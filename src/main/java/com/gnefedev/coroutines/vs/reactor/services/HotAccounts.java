@@ -0,0 +1,89 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.repos.StripedAccountRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+
+/**
+ * Flags accounts as hot for {@link StripedAccountRepository} and periodically folds their stripes back
+ * into the account rows, so debits mostly find the money in the row and stripes don't grow without bound.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.balance-stripes.enabled", havingValue = "true")
+@Log4j2
+public class HotAccounts {
+    private final StripedAccountRepository stripedAccountRepository;
+    private final LedgerProperties.BalanceStripes properties;
+    private final Counter compacted;
+    private Disposable compaction;
+
+    public HotAccounts(StripedAccountRepository stripedAccountRepository, LedgerProperties properties, MeterRegistry meterRegistry) {
+        this.stripedAccountRepository = stripedAccountRepository;
+        this.properties = properties.getBalanceStripes();
+        this.compacted = Counter.builder("ledger.balance_stripes.compacted")
+                .description("minor units moved from stripes into account rows")
+                .register(meterRegistry);
+        Gauge.builder("ledger.balance_stripes.hot_accounts", stripedAccountRepository, repository -> repository.getHotAccountIds().size())
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        compaction = Flux.interval(properties.getCompactionInterval())
+                .onBackpressureDrop()
+                .concatMap(__ -> compactAll())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        compaction.dispose();
+    }
+
+    /**
+     * @param stripes null for the configured default
+     */
+    public Mono<Void> markHot(long accountId, Integer stripes) {
+        int count = stripes == null ? properties.getDefaultCount() : stripes;
+        if (count < 1) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "stripes should be positive"));
+        }
+        return stripedAccountRepository.findById(accountId)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "account not found")))
+                .then(stripedAccountRepository.markHot(accountId, count))
+                .doOnSuccess(__ -> log.info("account {} is hot, {} stripes", accountId, count));
+    }
+
+    /**
+     * An error of one account leaves its stripes till the next tick.
+     */
+    Mono<Void> compactAll() {
+        return stripedAccountRepository.refreshHotAccounts()
+                .thenMany(Flux.defer(() -> Flux.fromIterable(new ArrayList<>(stripedAccountRepository.getHotAccountIds()))))
+                .concatMap(accountId -> stripedAccountRepository.compact(accountId)
+                        .doOnNext(moved -> compacted.increment(moved))
+                        .onErrorResume(e -> {
+                            log.error("compaction of account {} stripes failed", accountId, e);
+                            return Mono.empty();
+                        }))
+                .then()
+                .onErrorResume(e -> {
+                    log.error("hot accounts refresh failed", e);
+                    return Mono.empty();
+                });
+    }
+}
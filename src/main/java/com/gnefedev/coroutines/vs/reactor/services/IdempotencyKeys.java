@@ -0,0 +1,218 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import com.gnefedev.coroutines.vs.reactor.util.BloomFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Local answer to "is this transactionKey already committed" in front of {@link TransactionRepository#findByUniqueKey}.
+ * <p>
+ * Recently committed keys are kept in a bounded cache, all keys committed by this process go to a Bloom filter.
+ * A key missing in the filter is certainly not committed by this process, any other key falls through to the database.
+ * <p>
+ * Keys committed before a restart, by another instance or before the last rotation are missing in the filter too.
+ * A new transfer with such a key is caught by the unique index on insert, a transfer rejected for its balance
+ * is checked with {@link #recheck(String)}, so a retry of a committed transfer is never answered with a rejection.
+ * Engines that answer before the transaction is inserted have no unique index to catch such a key,
+ * they ask {@link #isCommittedInDatabase(String)} instead.
+ */
+@Component
+public class IdempotencyKeys {
+    private final TransactionRepository transactionRepository;
+    private final LedgerProperties.Idempotency properties;
+    private final Cache<String, Boolean> recentlyCommitted;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter lookups;
+    private final Counter falsePositives;
+    private final Counter staleMisses;
+    private volatile BloomFilter currentFilter;
+    private volatile BloomFilter previousFilter;
+
+    public IdempotencyKeys(TransactionRepository transactionRepository, LedgerProperties properties, MeterRegistry meterRegistry) {
+        this.transactionRepository = transactionRepository;
+        this.properties = properties.getIdempotency();
+        this.recentlyCommitted = Caffeine.newBuilder()
+                .maximumSize(this.properties.getCacheSize())
+                .expireAfterWrite(this.properties.getCacheTtl())
+                .build();
+        this.currentFilter = newFilter();
+        this.previousFilter = newFilter();
+        this.hits = idempotencyCounter(meterRegistry, "hit");
+        this.misses = idempotencyCounter(meterRegistry, "miss");
+        this.lookups = idempotencyCounter(meterRegistry, "lookup");
+        this.falsePositives = idempotencyCounter(meterRegistry, "false_positive");
+        this.staleMisses = idempotencyCounter(meterRegistry, "stale_miss");
+    }
+
+    /**
+     * Emits true when a transfer with the key is committed.
+     * Counted as hit when answered by the cache, as miss when the filter proves the key is new,
+     * as lookup when the database found it and as false_positive when the filter sent a new key to the database.
+     */
+    public Mono<Boolean> isCommitted(String transactionKey) {
+        var known = localAnswer(transactionKey);
+        if (known != null) {
+            return Mono.just(known);
+        }
+        return findInDatabase(transactionKey)
+                .doOnNext(found -> countLookup(transactionKey, found));
+    }
+
+    /**
+     * {@link #isCommitted(String)} for blocking callers, findInDatabase is called when the local answer isn't certain.
+     */
+    public <E extends Exception> boolean isCommitted(String transactionKey, BlockingLookup<E> findInDatabase) throws E {
+        var known = localAnswer(transactionKey);
+        if (known != null) {
+            return known;
+        }
+        var found = findInDatabase.isCommitted(transactionKey);
+        countLookup(transactionKey, found);
+        return found;
+    }
+
+    /**
+     * Asks the database whatever the local answer is, for transfers rejected after the filter reported the key as new.
+     * Counted as stale_miss when the key turns out committed.
+     */
+    public Mono<Boolean> recheck(String transactionKey) {
+        return findInDatabase(transactionKey)
+                .doOnNext(found -> {
+                    if (found && properties.isEnabled()) {
+                        staleMisses.increment();
+                        markCommitted(transactionKey);
+                    }
+                });
+    }
+
+    /**
+     * Emits true when a transfer with the key is committed anywhere. The cache answers keys it has,
+     * a miss in the filter isn't trusted and the database is asked. Counted as hit or lookup.
+     */
+    public Mono<Boolean> isCommittedInDatabase(String transactionKey) {
+        return findCommittedInDatabase(Set.of(transactionKey))
+                .map(committed -> !committed.isEmpty());
+    }
+
+    /**
+     * {@link #isCommittedInDatabase(String)} for several keys with one query.
+     *
+     * @return the committed ones among the keys
+     */
+    public Mono<Set<String>> findCommittedInDatabase(Collection<String> transactionKeys) {
+        return Mono.defer(() -> {
+            var committed = new HashSet<String>();
+            var unknown = new ArrayList<String>(transactionKeys.size());
+            for (var transactionKey : transactionKeys) {
+                if (properties.isEnabled() && recentlyCommitted.getIfPresent(transactionKey) != null) {
+                    hits.increment();
+                    committed.add(transactionKey);
+                } else {
+                    unknown.add(transactionKey);
+                }
+            }
+            if (unknown.isEmpty()) {
+                return Mono.just(committed);
+            }
+            return transactionRepository.findAllByUniqueKeyIn(unknown)
+                    .doOnNext(transaction -> countLookup(transaction.getUniqueKey(), true))
+                    .map(Transaction::getUniqueKey)
+                    .collect(Collectors.toCollection(() -> committed));
+        });
+    }
+
+    /**
+     * False only for keys that are certainly not committed by this process.
+     */
+    public boolean mightBeCommitted(String transactionKey) {
+        if (!properties.isEnabled()) {
+            return true;
+        }
+        return currentFilter.mightContain(transactionKey) || previousFilter.mightContain(transactionKey);
+    }
+
+    /**
+     * Should be called only after the transaction with the key is committed.
+     */
+    public void markCommitted(String transactionKey) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (currentFilter.isFull()) {
+            rotateFilters();
+        }
+        currentFilter.put(transactionKey);
+        recentlyCommitted.put(transactionKey, Boolean.TRUE);
+    }
+
+    private synchronized void rotateFilters() {
+        if (currentFilter.isFull()) {
+            previousFilter = currentFilter;
+            currentFilter = newFilter();
+        }
+    }
+
+    /**
+     * True or false when the cache or the filter is sure, null when the database should be asked.
+     */
+    private Boolean localAnswer(String transactionKey) {
+        if (!properties.isEnabled()) {
+            return null;
+        }
+        if (recentlyCommitted.getIfPresent(transactionKey) != null) {
+            hits.increment();
+            return true;
+        }
+        if (!mightBeCommitted(transactionKey)) {
+            misses.increment();
+            return false;
+        }
+        return null;
+    }
+
+    private void countLookup(String transactionKey, boolean found) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (found) {
+            lookups.increment();
+            markCommitted(transactionKey);
+        } else {
+            falsePositives.increment();
+        }
+    }
+
+    private Mono<Boolean> findInDatabase(String transactionKey) {
+        return transactionRepository.findByUniqueKey(transactionKey)
+                .map(transaction -> true)
+                .defaultIfEmpty(false);
+    }
+
+    private BloomFilter newFilter() {
+        return new BloomFilter(properties.getFilterCapacity(), properties.getFilterFalsePositiveProbability());
+    }
+
+    private static Counter idempotencyCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("ledger.idempotency")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    public interface BlockingLookup<E extends Exception> {
+        boolean isCommitted(String transactionKey) throws E;
+    }
+}
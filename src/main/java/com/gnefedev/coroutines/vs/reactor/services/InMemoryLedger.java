@@ -0,0 +1,603 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferResult;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.WriteBehindRepository;
+import com.gnefedev.coroutines.vs.reactor.util.LongLongMap;
+import com.gnefedev.coroutines.vs.reactor.util.Money;
+import com.gnefedev.coroutines.vs.reactor.util.WriteAheadLog;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Keeps balances in memory and applies transfers one at a time on a single sequencer thread,
+ * so there are no conflicts to retry. A transfer is appended to the {@link WriteAheadLog} before it changes the balances
+ * and answered when the log is forced to disk. The database is updated behind, by {@link WriteBehind}.
+ * <p>
+ * Only the transactionKeys the database may not have yet are kept in memory, about write-behind-max-queued of them.
+ * Any other key is looked up with {@link IdempotencyKeys#isCommittedInDatabase} before the transfer is sequenced,
+ * so keys committed before a restart, by another instance or by another engine are known too.
+ * <p>
+ * Balances are snapshotted periodically, startup loads the last snapshot and replays the log after it.
+ * An account is loaded from the database the first time it is used.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = InMemoryLedger.NAME)
+//recovery reads the write-behind checkpoint, the schema has to be there
+@DependsOn("initializer")
+@Log4j2
+public class InMemoryLedger implements TransferEngine {
+    public static final String NAME = "in-memory";
+    private static final byte TRANSFER_RECORD = 1;
+    private static final byte ACCOUNT_RECORD = 2;
+    private static final byte BALANCE_RECORD = 3;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    /**
+     * Version 1 also had every committed key, they are in the database or in the log after the snapshot.
+     */
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private final AccountRepository accountRepository;
+    private final IdempotencyKeys idempotencyKeys;
+    private final LedgerMetrics ledgerMetrics;
+    private final TransferLog transferLog;
+    private final LedgerProperties.InMemory properties;
+    private final WriteAheadLog wal;
+    private final WriteBehind writeBehind;
+    private final Path dir;
+    private final Scheduler sequencer = Schedulers.newSingle("ledger-sequencer");
+    private final Scheduler flusher = Schedulers.newSingle("ledger-wal-flush");
+
+    //owned by the sequencer thread
+    private final LongLongMap balances;
+    private final LongLongMap versions;
+    //keys of transfers the database may not have yet, in sequence order
+    private final Map<String, Long> unwrittenKeys = new LinkedHashMap<>();
+    //keys up to this sequence were dropped from unwrittenKeys
+    private long forgottenSequence;
+    private long sequence;
+    private long lastQueuedSequence;
+    private volatile long lastSnapshotSequence;
+
+    private Disposable snapshots;
+
+    public InMemoryLedger(
+            @Qualifier("accountRepository") AccountRepository accountRepository,
+            TransactionRepository transactionRepository,
+            WriteBehindRepository writeBehindRepository,
+            IdempotencyKeys idempotencyKeys,
+            TransactionalOperator transactionalOperator,
+            LedgerMetrics ledgerMetrics,
+            TransferLog transferLog,
+            LedgerProperties properties
+    ) throws IOException {
+        this.accountRepository = accountRepository;
+        this.idempotencyKeys = idempotencyKeys;
+        this.ledgerMetrics = ledgerMetrics;
+        this.transferLog = transferLog;
+        this.properties = properties.getInMemory();
+        this.dir = Path.of(this.properties.getWalDir());
+        this.wal = new WriteAheadLog(dir, (int) this.properties.getSegmentSize().toBytes());
+        this.writeBehind = new WriteBehind(
+                accountRepository, transactionRepository, writeBehindRepository, idempotencyKeys, transactionalOperator, wal::awaitDurable
+        );
+        this.balances = new LongLongMap(this.properties.getExpectedAccounts());
+        this.versions = new LongLongMap(this.properties.getExpectedAccounts());
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        var persistedSequence = recover();
+        writeBehind.start(persistedSequence, properties);
+        flusher.schedulePeriodically(wal::flush, 0, properties.getFlushInterval().toNanos(), TimeUnit.NANOSECONDS);
+        snapshots = Flux.interval(properties.getSnapshotInterval())
+                .onBackpressureDrop()
+                .concatMap(__ -> snapshot())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        snapshots.dispose();
+        flusher.dispose();
+        wal.flush();
+        writeBehind.stop();
+        sequencer.dispose();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return ledgerMetrics.timeWrite(applyChecked(transactionKey, fromAccountId, toAccountId, amountToTransfer))
+                .flatMap(applied -> {
+                    switch (applied.getT1()) {
+                        case DUPLICATE:
+                            ledgerMetrics.knownKey();
+                            //the first transfer may still wait for its fsync
+                            return transferLog.logDuplicate(log, transactionKey).then(wal.awaitDurable(applied.getT2()));
+                        case APPLIED:
+                            return wal.awaitDurable(applied.getT2());
+                        case UNKNOWN_ACCOUNT:
+                            return Mono.<Void>error(new IllegalArgumentException("account not found"));
+                        case NOT_ENOUGH_MONEY:
+                            return Mono.<Void>error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money"));
+                        case BACKLOGGED:
+                            return Mono.<Void>error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "database is behind, try later"));
+                        default:
+                            return Mono.<Void>error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, balance overflow"));
+                    }
+                })
+                .onErrorResume(e -> transferLog.failed(log, e));
+    }
+
+    /**
+     * Applies a chunk of the bulk endpoint in one go on the sequencer, with the same rules as {@link BulkLedger}.
+     */
+    public Mono<List<TransferResult>> transferAll(List<TransferRequest> chunk) {
+        var accountIds = chunk.stream()
+                .flatMapToLong(request -> LongStream.of(request.getFromAccountId(), request.getToAccountId()))
+                .distinct()
+                .boxed()
+                .collect(Collectors.toList());
+        return Flux.fromIterable(accountIds)
+                .concatMap(this::findAccount)
+                .then(applyAllChecked(chunk))
+                .flatMap(applied -> wal.awaitDurable(applied.getT2()).thenReturn(applied.getT1()));
+    }
+
+    private Mono<Tuple2<List<TransferResult>, Long>> applyAllChecked(List<TransferRequest> chunk) {
+        return Mono.defer(() -> {
+            long checkedUpTo = writeBehind.getPersistedSequence();
+            var keys = chunk.stream()
+                    .map(TransferRequest::getTransactionKey)
+                    .collect(Collectors.toSet());
+            return idempotencyKeys.findCommittedInDatabase(keys)
+                    .flatMap(committed -> sequenced(() -> {
+                        forgetWrittenKeys();
+                        if (forgottenSequence > checkedUpTo) {
+                            return null;
+                        }
+                        var results = new ArrayList<TransferResult>(chunk.size());
+                        for (var request : chunk) {
+                            var outcome = committed.contains(request.getTransactionKey())
+                                    ? Outcome.DUPLICATE
+                                    : apply(request.getTransactionKey(), request.getFromAccountId(), request.getToAccountId(), request.getAmountMinorUnits(), checkedUpTo);
+                            results.add(TransferResult.builder()
+                                    .transactionKey(request.getTransactionKey())
+                                    .status(outcome.status)
+                                    .build());
+                        }
+                        return Tuples.of(results, sequence);
+                    }))
+                    //a key written meanwhile may have been dropped from unwrittenKeys, the lookup is repeated
+                    .switchIfEmpty(Mono.defer(() -> applyAllChecked(chunk)));
+        });
+    }
+
+    /**
+     * The account with its in-memory balance, loaded from the database when it isn't known yet.
+     */
+    public Mono<Account> findAccount(long accountId) {
+        return sequenced(() -> balances.containsKey(accountId) ? account(accountId) : null)
+                .switchIfEmpty(Mono.defer(() -> accountRepository.findById(accountId)
+                        .flatMap(loaded -> sequenced(() -> {
+                            if (!balances.containsKey(accountId)) {
+                                putAccount(loaded);
+                            }
+                            return account(accountId);
+                        }))));
+    }
+
+    /**
+     * Takes the balance of an account just saved to the database.
+     */
+    public Mono<Void> register(Account account) {
+        return sequenced(() -> {
+            putAccount(account);
+            return sequence;
+        }).flatMap(wal::awaitDurable);
+    }
+
+    /**
+     * Same as {@link AccountRepository#transferAmount}: fails with {@link OptimisticLockException} when the account
+     * is missing or its version isn't the given one.
+     */
+    public Mono<Void> transferAmount(long accountId, int version, long amount) {
+        return changeBalance(accountId, amount, () -> versions.get(accountId, 0) == version)
+                .flatMap(changed -> changed ? Mono.<Void>empty() : Mono.<Void>error(new OptimisticLockException()));
+    }
+
+    /**
+     * Same as {@link AccountRepository#withdraw}.
+     */
+    public Mono<Boolean> withdraw(long accountId, long amount) {
+        return changeBalance(accountId, -amount, () -> balances.get(accountId, 0) >= amount);
+    }
+
+    /**
+     * Same as {@link AccountRepository#deposit}.
+     */
+    public Mono<Boolean> deposit(long accountId, long amount) {
+        return changeBalance(accountId, amount, () -> true);
+    }
+
+    /**
+     * Completes when the database has every transfer and balance change applied so far.
+     */
+    public Mono<Void> awaitWriteBehind() {
+        return sequenced(() -> lastQueuedSequence)
+                .flatMap(writeBehind::awaitPersisted);
+    }
+
+    /**
+     * Looks the key up in the database first, a key written between the lookup and the sequencer
+     * is still in unwrittenKeys unless it was dropped meanwhile, then the lookup is repeated.
+     */
+    private Mono<Tuple2<Outcome, Long>> applyChecked(String transactionKey, long fromAccountId, long toAccountId, long amount) {
+        return Mono.defer(() -> {
+            long checkedUpTo = writeBehind.getPersistedSequence();
+            return idempotencyKeys.isCommittedInDatabase(transactionKey)
+                    .flatMap(committed -> committed
+                            ? Mono.just(Tuples.of(Outcome.DUPLICATE, 0L))
+                            : applyLoadingAccounts(transactionKey, fromAccountId, toAccountId, amount, checkedUpTo))
+                    .flatMap(applied -> applied.getT1() != Outcome.UNCHECKED
+                            ? Mono.just(applied)
+                            : applyChecked(transactionKey, fromAccountId, toAccountId, amount));
+        });
+    }
+
+    private Mono<Tuple2<Outcome, Long>> applyLoadingAccounts(String transactionKey, long fromAccountId, long toAccountId, long amount, long checkedUpTo) {
+        Callable<Tuple2<Outcome, Long>> apply = () -> {
+            forgetWrittenKeys();
+            return Tuples.of(apply(transactionKey, fromAccountId, toAccountId, amount, checkedUpTo), sequence);
+        };
+        return sequenced(apply)
+                .flatMap(applied -> applied.getT1() != Outcome.UNKNOWN_ACCOUNT
+                        ? Mono.just(applied)
+                        : findAccount(fromAccountId).then(findAccount(toAccountId)).then(sequenced(apply)));
+    }
+
+    /**
+     * @param checkedUpTo persisted sequence when the key was looked up in the database
+     */
+    private Outcome apply(String transactionKey, long fromAccountId, long toAccountId, long amount, long checkedUpTo) {
+        if (unwrittenKeys.containsKey(transactionKey)) {
+            return Outcome.DUPLICATE;
+        }
+        if (forgottenSequence > checkedUpTo) {
+            return Outcome.UNCHECKED;
+        }
+        if (!balances.containsKey(fromAccountId) || !balances.containsKey(toAccountId)) {
+            return Outcome.UNKNOWN_ACCOUNT;
+        }
+        if (balances.get(fromAccountId, 0) < amount) {
+            return Outcome.NOT_ENOUGH_MONEY;
+        }
+        if (fromAccountId != toAccountId && Money.creditOverflows(balances.get(toAccountId, 0), amount)) {
+            return Outcome.OVERFLOW;
+        }
+        if (writeBehind.isFull()) {
+            return Outcome.BACKLOGGED;
+        }
+        var key = transactionKey.getBytes(StandardCharsets.UTF_8);
+        var record = ByteBuffer.allocate(1 + Long.BYTES * 3 + Integer.BYTES + key.length)
+                .put(TRANSFER_RECORD)
+                .putLong(fromAccountId)
+                .putLong(toAccountId)
+                .putLong(amount)
+                .putInt(key.length)
+                .put(key)
+                .flip();
+        wal.append(++sequence, record);
+        applyChange(fromAccountId, -amount);
+        applyChange(toAccountId, amount);
+        unwrittenKeys.put(transactionKey, sequence);
+        lastQueuedSequence = sequence;
+        writeBehind.enqueue(sequence, transaction(transactionKey, fromAccountId, toAccountId, amount));
+        return Outcome.APPLIED;
+    }
+
+    /**
+     * Emits false when the account is missing or the condition, checked on the sequencer, doesn't hold.
+     */
+    private Mono<Boolean> changeBalance(long accountId, long change, BooleanSupplier condition) {
+        return findAccount(accountId)
+                .flatMap(__ -> sequenced(() -> {
+                    if (!condition.getAsBoolean()) {
+                        return -1L;
+                    }
+                    if (Money.creditOverflows(balances.get(accountId, 0), change)) {
+                        throw new ArithmeticException("balance of account " + accountId + " overflows");
+                    }
+                    if (writeBehind.isFull()) {
+                        throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "database is behind, try later");
+                    }
+                    var record = ByteBuffer.allocate(1 + Long.BYTES * 2)
+                            .put(BALANCE_RECORD)
+                            .putLong(accountId)
+                            .putLong(change)
+                            .flip();
+                    wal.append(++sequence, record);
+                    applyChange(accountId, change);
+                    lastQueuedSequence = sequence;
+                    writeBehind.enqueue(sequence, accountId, change);
+                    return sequence;
+                }))
+                .flatMap(changed -> changed < 0 ? Mono.just(false) : wal.awaitDurable(changed).thenReturn(true))
+                .defaultIfEmpty(false);
+    }
+
+    private void applyChange(long accountId, long change) {
+        balances.put(accountId, balances.get(accountId, 0) + change);
+        versions.put(accountId, versions.get(accountId, 0) + 1);
+    }
+
+    /**
+     * Drops the keys the database has once there are more than write-behind-max-queued keys,
+     * so a lookup rarely has to be repeated because of it.
+     */
+    private void forgetWrittenKeys() {
+        if (unwrittenKeys.size() <= properties.getWriteBehindMaxQueued()) {
+            return;
+        }
+        long persisted = writeBehind.getPersistedSequence();
+        var keys = unwrittenKeys.values().iterator();
+        while (keys.hasNext()) {
+            long keySequence = keys.next();
+            if (keySequence > persisted) {
+                break;
+            }
+            keys.remove();
+            forgottenSequence = keySequence;
+        }
+    }
+
+    private void putAccount(Account account) {
+        var record = ByteBuffer.allocate(1 + Long.BYTES * 3)
+                .put(ACCOUNT_RECORD)
+                .putLong(account.getId())
+                .putLong(account.getAmountMinorUnits())
+                .putLong(account.getVersion())
+                .flip();
+        wal.append(++sequence, record);
+        balances.put(account.getId(), account.getAmountMinorUnits());
+        versions.put(account.getId(), account.getVersion());
+    }
+
+    private Account account(long accountId) {
+        return Account.builder()
+                .id(accountId)
+                .amountMinorUnits(balances.get(accountId, 0))
+                .version((int) versions.get(accountId, 0))
+                .build();
+    }
+
+    private <T> Mono<T> sequenced(Callable<T> task) {
+        return Mono.fromCallable(task).subscribeOn(sequencer);
+    }
+
+    /**
+     * Loads the last snapshot and replays the log after it, records not yet in the database go to the write behind again.
+     *
+     * @return sequence of the last record in the database
+     */
+    private long recover() throws IOException {
+        long logStart = 0;
+        var snapshot = lastSnapshot();
+        if (snapshot != null) {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                var version = in.readInt();
+                if (version != SNAPSHOT_VERSION && version != 1) {
+                    throw new IllegalStateException("unknown snapshot version in " + snapshot);
+                }
+                sequence = in.readLong();
+                logStart = in.readLong();
+                for (int i = in.readInt(); i > 0; i--) {
+                    long id = in.readLong();
+                    balances.put(id, in.readLong());
+                    versions.put(id, in.readLong());
+                }
+                if (version == 1) {
+                    for (int i = in.readInt(); i > 0; i--) {
+                        in.readFully(new byte[in.readInt()]);
+                    }
+                }
+            }
+            lastSnapshotSequence = sequence;
+            log.info("loaded snapshot {} of {} accounts", snapshot, balances.size());
+        }
+        long snapshotSequence = sequence;
+        long persistedSequence = writeBehind.loadPersistedSequence();
+        var replayed = new int[1];
+        sequence = wal.replay(logStart, (recordSequence, payload) -> {
+            var type = payload.get();
+            if (type == TRANSFER_RECORD) {
+                long from = payload.getLong();
+                long to = payload.getLong();
+                long amount = payload.getLong();
+                var key = new byte[payload.getInt()];
+                payload.get(key);
+                var transactionKey = new String(key, StandardCharsets.UTF_8);
+                if (recordSequence > snapshotSequence) {
+                    applyChange(from, -amount);
+                    applyChange(to, amount);
+                }
+                if (recordSequence > persistedSequence) {
+                    unwrittenKeys.put(transactionKey, recordSequence);
+                    lastQueuedSequence = recordSequence;
+                    writeBehind.enqueue(recordSequence, transaction(transactionKey, from, to, amount));
+                    replayed[0]++;
+                }
+            } else if (type == BALANCE_RECORD) {
+                long id = payload.getLong();
+                long change = payload.getLong();
+                if (recordSequence > snapshotSequence) {
+                    applyChange(id, change);
+                }
+                if (recordSequence > persistedSequence) {
+                    lastQueuedSequence = recordSequence;
+                    writeBehind.enqueue(recordSequence, id, change);
+                    replayed[0]++;
+                }
+            } else if (type == ACCOUNT_RECORD && recordSequence > snapshotSequence) {
+                long id = payload.getLong();
+                balances.put(id, payload.getLong());
+                versions.put(id, payload.getLong());
+            }
+        });
+        sequence = Math.max(sequence, snapshotSequence);
+        if (persistedSequence > sequence) {
+            if (sequence > 0) {
+                throw new IllegalStateException("the database has records up to " + persistedSequence + ", the log in " + dir
+                        + " ends at " + sequence + ", its tail is lost or it belongs to another database");
+            }
+            //a new log over the database of an old one, balances are loaded from the database
+            sequence = persistedSequence;
+        }
+        forgottenSequence = persistedSequence;
+        log.info("replayed log up to {}, {} records queued for the database", sequence, replayed[0]);
+        return persistedSequence;
+    }
+
+    Mono<Void> snapshot() {
+        return sequenced(() -> sequence == lastSnapshotSequence ? null : new Snapshot(
+                sequence,
+                writeBehind.getPersistedSequence(),
+                balances.copy(),
+                versions.copy()
+        ))
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(snapshot -> {
+                    try {
+                        writeSnapshot(snapshot);
+                        lastSnapshotSequence = snapshot.sequence;
+                        wal.truncate(snapshot.persistedSequence);
+                    } catch (IOException e) {
+                        log.error("snapshot at {} failed", snapshot.sequence, e);
+                    }
+                })
+                .then();
+    }
+
+    private void writeSnapshot(Snapshot snapshot) throws IOException {
+        var file = dir.resolve(String.format("%s%020d", SNAPSHOT_PREFIX, snapshot.sequence));
+        var tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(snapshot.sequence);
+            out.writeLong(snapshot.persistedSequence);
+            out.writeInt(snapshot.balances.size());
+            IOException[] failure = new IOException[1];
+            snapshot.balances.forEach((id, balance) -> {
+                try {
+                    out.writeLong(id);
+                    out.writeLong(balance);
+                    out.writeLong(snapshot.versions.get(id, 0));
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        try (var files = Files.list(dir)) {
+            for (var old : files.filter(other -> isSnapshot(other) && other.compareTo(file) < 0).collect(Collectors.toList())) {
+                Files.deleteIfExists(old);
+            }
+        }
+    }
+
+    private Path lastSnapshot() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(InMemoryLedger::isSnapshot)
+                    .max(Path::compareTo)
+                    .orElse(null);
+        }
+    }
+
+    private static boolean isSnapshot(Path file) {
+        var name = file.getFileName().toString();
+        return name.startsWith(SNAPSHOT_PREFIX) && !name.endsWith(".tmp");
+    }
+
+    private static Transaction transaction(String transactionKey, long fromAccountId, long toAccountId, long amount) {
+        return Transaction.builder()
+                .amountMinorUnits(amount)
+                .fromAccountId(fromAccountId)
+                .toAccountId(toAccountId)
+                .uniqueKey(transactionKey)
+                .build();
+    }
+
+    @RequiredArgsConstructor
+    private enum Outcome {
+        APPLIED(TransferResult.Status.APPLIED),
+        DUPLICATE(TransferResult.Status.DUPLICATE),
+        UNKNOWN_ACCOUNT(TransferResult.Status.ACCOUNT_NOT_FOUND),
+        NOT_ENOUGH_MONEY(TransferResult.Status.INSUFFICIENT_FUNDS),
+        OVERFLOW(TransferResult.Status.INSUFFICIENT_FUNDS),
+        BACKLOGGED(TransferResult.Status.CONFLICT),
+        /**
+         * The key may have been written and dropped from unwrittenKeys after it was looked up, never answered.
+         */
+        UNCHECKED(TransferResult.Status.CONFLICT);
+
+        private final TransferResult.Status status;
+    }
+
+    @RequiredArgsConstructor
+    private static class Snapshot {
+        private final long sequence;
+        private final long persistedSequence;
+        private final LongLongMap balances;
+        private final LongLongMap versions;
+    }
+}
@@ -0,0 +1,133 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferResult;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.JournalRepository;
+import com.gnefedev.coroutines.vs.reactor.util.StripedExecutor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Transfers as one insert into the journal, no account row is written or locked on the way.
+ * The insert checks the projected balances, {@link JournalMaterializer} applies it to the accounts later.
+ * <p>
+ * Two debits of one account would both pass the check before either is committed,
+ * so debits of an account are appended one at a time on its lane. Lanes are per process,
+ * several instances of the app need a single writer per account in front of them.
+ * <p>
+ * A journaled debit doesn't bump the version of the account row, so the versioned chunks of {@link BulkLedger}
+ * can't see it: bulk transfers go through the lanes too, see {@link #transfer(TransferRequest)}.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = JournalLedger.NAME)
+@Log4j2
+public class JournalLedger implements TransferEngine {
+    public static final String NAME = "journal";
+
+    private final JournalRepository journalRepository;
+    private final AccountRepository accountRepository;
+    private final IdempotencyKeys idempotencyKeys;
+    private final LedgerMetrics ledgerMetrics;
+    private final TransferLog transferLog;
+    private final TransactionalOperator transactionalOperator;
+    private final StripedExecutor lanes;
+
+    public JournalLedger(
+            JournalRepository journalRepository,
+            TransactionalOperator transactionalOperator,
+            AccountRepository accountRepository,
+            IdempotencyKeys idempotencyKeys,
+            LedgerMetrics ledgerMetrics,
+            TransferLog transferLog,
+            LedgerProperties properties
+    ) {
+        this.journalRepository = journalRepository;
+        this.transactionalOperator = transactionalOperator;
+        this.accountRepository = accountRepository;
+        this.idempotencyKeys = idempotencyKeys;
+        this.ledgerMetrics = ledgerMetrics;
+        this.transferLog = transferLog;
+        this.lanes = new StripedExecutor(properties.getStriped().getLanes(), properties.getStriped().getMaxQueuedPerLane());
+    }
+
+    @PreDestroy
+    public void stop() {
+        lanes.dispose();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return execute(transactionKey, fromAccountId, toAccountId, amountToTransfer)
+                .then()
+                .onErrorResume(e -> transferLog.failed(log, e));
+    }
+
+    /**
+     * For {@link BulkLedger}, transfers of a chunk are appended one by one on the lanes of their source accounts.
+     */
+    public Mono<TransferResult> transfer(TransferRequest request) {
+        return execute(request.getTransactionKey(), request.getFromAccountId(), request.getToAccountId(), request.getAmountMinorUnits())
+                .onErrorResume(BulkLedger::rejectedStatus)
+                .map(status -> TransferResult.builder()
+                        .transactionKey(request.getTransactionKey())
+                        .status(status)
+                        .build());
+    }
+
+    private Mono<TransferResult.Status> execute(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return ledgerMetrics.timeLookup(idempotencyKeys.isCommitted(transactionKey))
+                .flatMap(alreadyCommitted -> {
+                    if (alreadyCommitted) {
+                        ledgerMetrics.knownKey();
+                        return transferLog.logDuplicate(log, transactionKey).thenReturn(TransferResult.Status.DUPLICATE);
+                    }
+                    var transactionToInsert = Transaction.builder()
+                            .amountMinorUnits(amountToTransfer)
+                            .fromAccountId(fromAccountId)
+                            .toAccountId(toAccountId)
+                            .uniqueKey(transactionKey)
+                            .build();
+                    return lanes.execute(fromAccountId, () -> ledgerMetrics.timeWrite(transactionalOperator.transactional(journalRepository.append(transactionToInsert))))
+                            .flatMap(appended -> appended ? Mono.<Void>empty() : appendFailure(fromAccountId, toAccountId, amountToTransfer))
+                            .doOnSuccess(__ -> idempotencyKeys.markCommitted(transactionKey))
+                            .onErrorResume(error -> {
+                                //transaction was appended by a parallel request, we may return success response
+                                if (error instanceof DataIntegrityViolationException && error.getMessage().contains("TRANSACTION_UNIQUE_KEY")) {
+                                    ledgerMetrics.uniqueKeyViolation();
+                                    return Mono.empty();
+                                } else {
+                                    return Mono.error(error);
+                                }
+                            })
+                            .thenReturn(TransferResult.Status.APPLIED);
+                });
+    }
+
+    private Mono<Void> appendFailure(long fromAccountId, long toAccountId, long amount) {
+        //slow path only, tells a missing account from a low or an overflowing balance
+        return accountRepository.findById(fromAccountId)
+                .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                .zipWith(accountRepository.findById(toAccountId)
+                        .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found"))))
+                .flatMap(accounts -> Mono.error(new ResponseStatusException(
+                        HttpStatus.UNPROCESSABLE_ENTITY,
+                        accounts.getT1().getAmountMinorUnits() < amount ? "can't transfer, not enough money" : "can't transfer, balance overflow"
+                )));
+    }
+}
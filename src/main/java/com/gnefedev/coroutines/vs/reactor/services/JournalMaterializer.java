@@ -0,0 +1,117 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.JournalRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies journaled transfers to {@code account} in batches. A batch sums the pending changes of every account,
+ * updates each account once and deletes the pending rows it read in the same DB transaction,
+ * so the projected balances read by {@link JournalRepository} never count a transfer twice.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = JournalLedger.NAME)
+@Log4j2
+public class JournalMaterializer {
+    private final JournalRepository journalRepository;
+    private final AccountRepository accountRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final LedgerProperties.Journal properties;
+    private final Timer batches;
+    private Disposable materialization;
+
+    public JournalMaterializer(
+            JournalRepository journalRepository,
+            AccountRepository accountRepository,
+            TransactionalOperator transactionalOperator,
+            LedgerProperties properties,
+            MeterRegistry meterRegistry
+    ) {
+        this.journalRepository = journalRepository;
+        this.accountRepository = accountRepository;
+        this.transactionalOperator = transactionalOperator;
+        this.properties = properties.getJournal();
+        this.batches = Timer.builder("ledger.journal.materialize")
+                .description("batches of journaled transfers applied to accounts")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        materialization = Flux.interval(properties.getMaterializeInterval())
+                .onBackpressureDrop()
+                .concatMap(__ -> catchUp())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        materialization.dispose();
+    }
+
+    /**
+     * Runs batches while they come full, an error leaves the pending rows as they were till the next tick.
+     */
+    Mono<Void> catchUp() {
+        return materializeBatch()
+                .expand(applied -> applied >= properties.getBatchSize() ? materializeBatch() : Mono.empty())
+                .then()
+                .onErrorResume(e -> {
+                    log.error("journal materialization failed", e);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * @return number of pending rows applied, 0 when nothing was pending
+     */
+    private Mono<Integer> materializeBatch() {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            return transactionalOperator.transactional(
+                    journalRepository.lockMaterializer()
+                            .thenMany(journalRepository.findPending(properties.getBatchSize()))
+                            .collectList()
+                            .flatMap(pending -> pending.isEmpty() ? Mono.just(0) : apply(pending))
+            )
+                    .doOnSuccess(applied -> {
+                        if (applied != null && applied > 0) {
+                            batches.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                    });
+        });
+    }
+
+    private Mono<Integer> apply(List<JournalRepository.PendingChange> pending) {
+        //account id order, so concurrent materialisers would lock rows in the same order
+        var deltas = new TreeMap<Long, Long>();
+        var ids = new ArrayList<Long>(pending.size());
+        for (var change : pending) {
+            deltas.merge(change.getAccountId(), change.getDelta(), Math::addExact);
+            ids.add(change.getId());
+        }
+        return Flux.fromIterable(deltas.entrySet())
+                //deposit adds the signed change, a net debit lowers the row
+                .concatMap(delta -> delta.getValue() == 0
+                        ? Mono.<Boolean>empty()
+                        : accountRepository.deposit(delta.getKey(), delta.getValue()))
+                .then(journalRepository.deletePending(ids))
+                .thenReturn(pending.size());
+    }
+}
@@ -1,9 +1,11 @@
 package com.gnefedev.coroutines.vs.reactor.services;
 
 import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
 import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
 import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
 import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import com.gnefedev.coroutines.vs.reactor.util.Money;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import org.springframework.dao.DataIntegrityViolationException;
@@ -12,125 +14,137 @@ import org.springframework.stereotype.Component;
 import org.springframework.transaction.reactive.TransactionalOperator;
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
-import reactor.util.retry.Retry;
 
-import java.math.BigDecimal;
-import java.time.Duration;
-import java.util.Optional;
-
-import static com.gnefedev.coroutines.vs.reactor.util.LoggerHelper.withMDC;
 
 @Component
 @RequiredArgsConstructor
 @Log4j2
-public class Ledger {
+public class Ledger implements TransferEngine {
+    public static final String NAME = "sequential";
+
     private final AccountRepository accountRepository;
     private final TransactionRepository transactionRepository;
     private final TransactionalOperator transactionalOperator;
+    private final IdempotencyKeys idempotencyKeys;
+    private final LedgerMetrics ledgerMetrics;
+    private final ConflictRetries conflictRetries;
+    private final TransferLog transferLog;
 
-    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, BigDecimal amountToTransfer) {
-        return transactionRepository.findByUniqueKey(transactionKey)
-                .map(Optional::of)
-                .defaultIfEmpty(Optional.empty())
-                .flatMap(withMDC(foundTransaction -> {
-                    if (foundTransaction.isPresent()) {
-                        log.warn("retry of transaction " + transactionKey);
-                        return Mono.empty();
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return ledgerMetrics.timeLookup(idempotencyKeys.isCommitted(transactionKey))
+                .flatMap(alreadyCommitted -> {
+                    if (alreadyCommitted) {
+                        ledgerMetrics.knownKey();
+                        return transferLog.logDuplicate(log, transactionKey);
                     }
-                    return accountRepository.findById(fromAccountId)
+                    return ledgerMetrics.timeReadAccounts(accountRepository.findById(fromAccountId)
                             .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
-                            .flatMap(fromAccount -> accountRepository.findById(toAccountId)
-                                    .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
-                                    .flatMap(toAccount -> {
-                                        var transactionToInsert = Transaction.builder()
-                                                .amount(amountToTransfer)
-                                                .fromAccountId(fromAccountId)
-                                                .toAccountId(toAccountId)
-                                                .uniqueKey(transactionKey)
-                                                .build();
-                                        if (fromAccount.getAmount().subtract(amountToTransfer).compareTo(BigDecimal.ZERO) < 0) {
-                                            return Mono.error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money"));
-                                        }
-                                        return transactionalOperator.transactional(
-                                                transactionRepository.save(transactionToInsert)
-                                                        .onErrorResume(error -> {
-                                                            //transaction was inserted on parallel transaction, we may return success response
-                                                            if (error instanceof DataIntegrityViolationException && error.getMessage().contains("TRANSACTION_UNIQUE_KEY")) {
-                                                                return Mono.empty();
-                                                            } else {
-                                                                return Mono.error(error);
-                                                            }
-                                                        })
-                                                        .then(accountRepository.transferAmount(fromAccount.getId(), fromAccount.getVersion(), amountToTransfer.negate()))
-                                                        .then(accountRepository.transferAmount(toAccount.getId(), toAccount.getVersion(), amountToTransfer))
-                                        );
-                                    }));
-                }))
-                .retryWhen(Retry.backoff(3, Duration.ofMillis(1))
-                        .filter(OptimisticLockException.class::isInstance)
-                        .onRetryExhaustedThrow((__, retrySignal) -> retrySignal.failure())
-                )
+                            .zipWhen(fromAccount -> accountRepository.findById(toAccountId)
+                                    .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))))
+                            .flatMap(accounts -> {
+                                var fromAccount = accounts.getT1();
+                                var toAccount = accounts.getT2();
+                                var transactionToInsert = Transaction.builder()
+                                        .amountMinorUnits(amountToTransfer)
+                                        .fromAccountId(fromAccountId)
+                                        .toAccountId(toAccountId)
+                                        .uniqueKey(transactionKey)
+                                        .build();
+                                return checkAndInsert(transactionToInsert, fromAccount, toAccount);
+                            });
+                })
+                .retryWhen(conflictRetries.forAccounts(OptimisticLockException.class::isInstance, fromAccountId, toAccountId))
                 .onErrorMap(
                         OptimisticLockException.class,
                         e -> new ResponseStatusException(HttpStatus.BANDWIDTH_LIMIT_EXCEEDED, "limit of OptimisticLockException exceeded", e)
                 )
-                .onErrorResume(withMDC(e -> {
-                    log.error("error on transfer", e);
-                    return Mono.error(e);
-                }));
+                .onErrorResume(e -> transferLog.failed(log, e));
     }
 
-    public Mono<Void> transferParallel(String transactionKey, long fromAccountId, long toAccountId, BigDecimal amountToTransfer) {
+    public Mono<Void> transferParallel(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
         return Mono.zip(
-                transactionRepository.findByUniqueKey(transactionKey)
-                        .map(Optional::of)
-                        .defaultIfEmpty(Optional.empty()),
-                accountRepository.findById(fromAccountId)
-                        .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found"))),
-                accountRepository.findById(toAccountId)
-                        .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
-        ).flatMap(withMDC(fetched -> {
-            var foundTransaction = fetched.getT1();
-            var fromAccount = fetched.getT2();
-            var toAccount = fetched.getT3();
-            if (foundTransaction.isPresent()) {
-                log.warn("retry of transaction " + transactionKey);
-                return Mono.empty();
+                ledgerMetrics.timeLookup(idempotencyKeys.isCommitted(transactionKey)),
+                ledgerMetrics.timeReadAccounts(Mono.zip(
+                        accountRepository.findById(fromAccountId)
+                                .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found"))),
+                        accountRepository.findById(toAccountId)
+                                .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                ))
+        ).flatMap(fetched -> {
+            var alreadyCommitted = fetched.getT1();
+            var fromAccount = fetched.getT2().getT1();
+            var toAccount = fetched.getT2().getT2();
+            if (alreadyCommitted) {
+                ledgerMetrics.knownKey();
+                return transferLog.logDuplicate(log, transactionKey);
             }
             var transactionToInsert = Transaction.builder()
-                    .amount(amountToTransfer)
+                    .amountMinorUnits(amountToTransfer)
                     .fromAccountId(fromAccountId)
                     .toAccountId(toAccountId)
                     .uniqueKey(transactionKey)
                     .build();
-            if (fromAccount.getAmount().subtract(amountToTransfer).compareTo(BigDecimal.ZERO) < 0 || toAccount.getAmount().add(amountToTransfer).compareTo(BigDecimal.ZERO) < 0) {
-                return Mono.error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money"));
-            }
-            return transactionalOperator.transactional(
-                    transactionRepository.save(transactionToInsert)
-                            .onErrorResume(error -> {
-                                //transaction was inserted on parallel transaction, we may return success response
-                                if (error instanceof DataIntegrityViolationException && error.getMessage().contains("TRANSACTION_UNIQUE_KEY")) {
-                                    return Mono.empty();
-                                } else {
-                                    return Mono.error(error);
-                                }
-                            })
-                            .then(accountRepository.transferAmount(fromAccount.getId(), fromAccount.getVersion(), amountToTransfer.negate()))
-                            .then(accountRepository.transferAmount(toAccount.getId(), toAccount.getVersion(), amountToTransfer))
-            );
-        }))
-                .retryWhen(Retry.backoff(3, Duration.ofMillis(1))
-                        .filter(OptimisticLockException.class::isInstance)
-                        .onRetryExhaustedThrow((__, retrySignal) -> retrySignal.failure())
-                )
+            return checkAndInsert(transactionToInsert, fromAccount, toAccount);
+        })
+                .retryWhen(conflictRetries.forAccounts(OptimisticLockException.class::isInstance, fromAccountId, toAccountId))
                 .onErrorMap(
                         OptimisticLockException.class,
                         e -> new ResponseStatusException(HttpStatus.BANDWIDTH_LIMIT_EXCEEDED, "limit of OptimisticLockException exceeded", e)
                 )
-                .onErrorResume(withMDC(e -> {
-                    log.error("error on transfer", e);
-                    return Mono.error(e);
-                }));
+                .onErrorResume(e -> transferLog.failed(log, e));
+    }
+
+    /**
+     * The accounts may be snapshots behind their rows, so a failed check is repeated once on reloaded accounts
+     * before the transfer is rejected.
+     */
+    private Mono<Void> checkAndInsert(Transaction transactionToInsert, Account fromAccount, Account toAccount) {
+        var amountToTransfer = transactionToInsert.getAmountMinorUnits();
+        if (canTransfer(fromAccount, toAccount, amountToTransfer)) {
+            return insertTransaction(transactionToInsert, fromAccount, toAccount);
+        }
+        return accountRepository.reloadById(fromAccount.getId()).defaultIfEmpty(fromAccount)
+                .zipWith(accountRepository.reloadById(toAccount.getId()).defaultIfEmpty(toAccount))
+                .flatMap(reloaded -> {
+                    var reloadedFrom = reloaded.getT1();
+                    var reloadedTo = reloaded.getT2();
+                    if (canTransfer(reloadedFrom, reloadedTo, amountToTransfer)) {
+                        return insertTransaction(transactionToInsert, reloadedFrom, reloadedTo);
+                    }
+                    if (reloadedFrom.getAmountMinorUnits() < amountToTransfer) {
+                        return Mono.error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money"));
+                    }
+                    return Mono.error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, balance overflow"));
+                });
+    }
+
+    private static boolean canTransfer(Account fromAccount, Account toAccount, long amountToTransfer) {
+        return fromAccount.getAmountMinorUnits() >= amountToTransfer
+                && !Money.creditOverflows(toAccount.getAmountMinorUnits(), amountToTransfer);
+    }
+
+    private Mono<Void> insertTransaction(Transaction transactionToInsert, Account fromAccount, Account toAccount) {
+        var amountToTransfer = transactionToInsert.getAmountMinorUnits();
+        return ledgerMetrics.timeWrite(transactionalOperator.transactional(
+                transactionRepository.save(transactionToInsert)
+                        .then(accountRepository.transferAmount(fromAccount.getId(), fromAccount.getVersion(), -amountToTransfer))
+                        .then(accountRepository.transferAmount(toAccount.getId(), toAccount.getVersion(), amountToTransfer))
+        ))
+                .doOnSuccess(__ -> idempotencyKeys.markCommitted(transactionToInsert.getUniqueKey()))
+                .onErrorResume(error -> {
+                    //transaction was inserted on parallel transaction, we may return success response, ours is rolled back
+                    if (error instanceof DataIntegrityViolationException && error.getMessage().contains("TRANSACTION_UNIQUE_KEY")) {
+                        ledgerMetrics.uniqueKeyViolation();
+                        return Mono.empty();
+                    } else {
+                        return Mono.error(error);
+                    }
+                });
     }
 }
@@ -0,0 +1,145 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the transfer pipeline, registered once so recording on the hot path doesn't build tags.
+ */
+@Component
+public class LedgerMetrics {
+    public static final String RETRIES = "ledger.transfer.retries";
+    public static final String STAGE_TIMER_NAME = "ledger.transfer.stage";
+    /**
+     * Conflicts of later attempts share the last tag.
+     */
+    private static final int TAGGED_ATTEMPTS = 4;
+
+    private final Counter retries;
+    private final Counter retriesExhausted;
+    private final Counter[] conflicts = new Counter[TAGGED_ATTEMPTS];
+    private final Counter knownKeys;
+    private final Counter uniqueKeyViolations;
+    private final Timer lookup;
+    private final Timer readAccounts;
+    private final Timer write;
+
+    public LedgerMetrics(MeterRegistry meterRegistry) {
+        this.retries = Counter.builder(RETRIES)
+                .description("transfer attempts repeated after a conflict")
+                .register(meterRegistry);
+        this.retriesExhausted = Counter.builder("ledger.transfer.retries_exhausted")
+                .description("transfers failed because every attempt had a conflict")
+                .register(meterRegistry);
+        for (int i = 0; i < TAGGED_ATTEMPTS; i++) {
+            conflicts[i] = Counter.builder("ledger.transfer.conflicts")
+                    .description("attempts failed with a conflict")
+                    .tag("attempt", i + 1 < TAGGED_ATTEMPTS ? String.valueOf(i + 1) : TAGGED_ATTEMPTS + "+")
+                    .register(meterRegistry);
+        }
+        this.knownKeys = duplicateCounter(meterRegistry, "lookup");
+        this.uniqueKeyViolations = duplicateCounter(meterRegistry, "unique_key");
+        this.lookup = stageTimer(meterRegistry, "lookup");
+        this.readAccounts = stageTimer(meterRegistry, "read_accounts");
+        this.write = stageTimer(meterRegistry, "write");
+    }
+
+    /**
+     * @param attempt number of the attempt failed with a conflict, from 1
+     */
+    public void retry(long attempt) {
+        conflict(attempt);
+        retries.increment();
+    }
+
+    /**
+     * @param attempt number of the last attempt, it failed with a conflict too
+     */
+    public void retriesExhausted(long attempt) {
+        conflict(attempt);
+        retriesExhausted.increment();
+    }
+
+    /**
+     * Transfer short-circuited because its transactionKey was found committed before the write.
+     */
+    public void knownKey() {
+        knownKeys.increment();
+    }
+
+    /**
+     * Transfer rolled back because a concurrent one committed the same transactionKey.
+     */
+    public void uniqueKeyViolation() {
+        uniqueKeyViolations.increment();
+    }
+
+    public <T> Mono<T> timeLookup(Mono<T> stage) {
+        return time(lookup, stage);
+    }
+
+    public <T> Mono<T> timeReadAccounts(Mono<T> stage) {
+        return time(readAccounts, stage);
+    }
+
+    public <T> Mono<T> timeWrite(Mono<T> stage) {
+        return time(write, stage);
+    }
+
+    public <T, E extends Exception> T timeLookup(BlockingStage<T, E> stage) throws E {
+        return time(lookup, stage);
+    }
+
+    public <T, E extends Exception> T timeReadAccounts(BlockingStage<T, E> stage) throws E {
+        return time(readAccounts, stage);
+    }
+
+    public <T, E extends Exception> T timeWrite(BlockingStage<T, E> stage) throws E {
+        return time(write, stage);
+    }
+
+    private void conflict(long attempt) {
+        conflicts[(int) Math.min(attempt, TAGGED_ATTEMPTS) - 1].increment();
+    }
+
+    private static <T> Mono<T> time(Timer timer, Mono<T> stage) {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            return stage.doFinally(__ -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    private static <T, E extends Exception> T time(Timer timer, BlockingStage<T, E> stage) throws E {
+        var start = System.nanoTime();
+        try {
+            return stage.run();
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static Counter duplicateCounter(MeterRegistry meterRegistry, String detectedBy) {
+        return Counter.builder("ledger.transfer.duplicates")
+                .description("transfers answered as duplicates of a committed one")
+                .tag("detected_by", detectedBy)
+                .register(meterRegistry);
+    }
+
+    private static Timer stageTimer(MeterRegistry meterRegistry, String stage) {
+        return Timer.builder(STAGE_TIMER_NAME)
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Stage of a transfer that blocks the calling thread.
+     */
+    public interface BlockingStage<T, E extends Exception> {
+        T run() throws E;
+    }
+}
@@ -0,0 +1,27 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+
+/**
+ * {@link Ledger#transferParallel}: lower latency, but holds up to three pooled connections per transfer.
+ */
+@Component
+@RequiredArgsConstructor
+public class ParallelLedger implements TransferEngine {
+    public static final String NAME = "parallel";
+
+    private final Ledger ledger;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return ledger.transferParallel(transactionKey, fromAccountId, toAccountId, amountToTransfer);
+    }
+}
@@ -0,0 +1,354 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.OpeningBalanceCallback;
+import com.gnefedev.coroutines.vs.reactor.repos.ReconciliationRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.ReconciliationRepository.AccountAmount;
+import com.gnefedev.coroutines.vs.reactor.repos.ReconciliationRepository.Discrepancy;
+import com.gnefedev.coroutines.vs.reactor.util.LongLongMap;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.ReactiveTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the balance of every account equals its opening balance plus credits minus debits in {@code transaction}.
+ * <p>
+ * A run streams the committed transactions after its checkpoint in id order, page by page under a rows per second cap,
+ * and sums the change of every account in partitions of {@link LongLongMap}, one core each. Then, in one short
+ * REPEATABLE READ transaction, it compares every touched account with its expected balance, keeps the result
+ * in {@code reconciliation_balance} and moves the checkpoint, so the next run covers only newer rows.
+ * <p>
+ * Ids are taken before commit, so an id the run skipped may belong to a transfer still in flight. It is kept
+ * as a gap: counted by a later run once its row shows up, or dropped as rolled back after ledger.reconciliation.gap-expiry.
+ * <p>
+ * The opening balance is recorded when the account is saved, see {@link OpeningBalanceCallback}; an account
+ * without one is reported. Accounts listed as discrepancies are checked again on every run,
+ * with or without new transactions, and dropped once they match.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.reconciliation.enabled", havingValue = "true")
+@Log4j2
+public class Reconciler {
+    private static final int VERIFY_CHUNK = 500;
+
+    private final ReconciliationRepository reconciliationRepository;
+    private final AccountRepository accountRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final LedgerProperties.Reconciliation properties;
+    /**
+     * The in-memory and sharded engines keep balances outside the database the transactions are read from.
+     */
+    private final boolean supported;
+    private final int partitions;
+    private final Counter rows;
+    private final Counter mismatches;
+    private final Timer runs;
+    private Disposable reconciliation;
+
+    public Reconciler(
+            ReconciliationRepository reconciliationRepository,
+            AccountRepository accountRepository,
+            ReactiveTransactionManager transactionManager,
+            LedgerProperties properties,
+            MeterRegistry meterRegistry
+    ) {
+        this.reconciliationRepository = reconciliationRepository;
+        this.accountRepository = accountRepository;
+        var definition = new DefaultTransactionDefinition();
+        definition.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.transactionalOperator = TransactionalOperator.create(transactionManager, definition);
+        this.properties = properties.getReconciliation();
+        this.supported = !InMemoryLedger.NAME.equals(properties.getEngine()) && !ShardedLedger.NAME.equals(properties.getEngine());
+        this.partitions = this.properties.getPartitions() > 0
+                ? this.properties.getPartitions()
+                : Runtime.getRuntime().availableProcessors();
+        this.rows = Counter.builder("ledger.reconciliation.rows")
+                .description("transactions summed by the reconciliation")
+                .register(meterRegistry);
+        this.mismatches = Counter.builder("ledger.reconciliation.mismatches")
+                .description("account balances that differed from their transactions when checked")
+                .register(meterRegistry);
+        this.runs = Timer.builder("ledger.reconciliation.run")
+                .description("batches of transactions reconciled with balances")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!supported) {
+            log.info("reconciliation is not available for the in-memory and sharded engines");
+            return;
+        }
+        reconciliation = Flux.interval(properties.getInterval())
+                .onBackpressureDrop()
+                .concatMap(__ -> catchUp())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (reconciliation != null) {
+            reconciliation.dispose();
+        }
+    }
+
+    public Flux<Discrepancy> discrepancies() {
+        if (!supported) {
+            return Flux.error(new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "reconciliation is not available for the engine"));
+        }
+        return reconciliationRepository.findDiscrepancies();
+    }
+
+    /**
+     * Runs batches while they come full, an error leaves the checkpoint as it was till the next tick.
+     */
+    Mono<Void> catchUp() {
+        return reconcileBatch()
+                .expand(covered -> covered >= properties.getBatchSize() ? reconcileBatch() : Mono.empty())
+                .then()
+                .onErrorResume(e -> {
+                    log.error("reconciliation failed", e);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * @return number of transaction ids the checkpoint moved by, 0 when there were no new transactions
+     */
+    private Mono<Long> reconcileBatch() {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            return reconciliationRepository.findCheckpoint()
+                    //with no new transactions filled gaps and listed discrepancies are still checked
+                    .flatMap(after -> reconciliationRepository.findEnd(after, properties.getBatchSize())
+                            .flatMap(upto -> {
+                                var deltas = new LongLongMap[partitions];
+                                for (int i = 0; i < partitions; i++) {
+                                    deltas[i] = new LongLongMap(properties.getPageSize() / partitions);
+                                }
+                                var gaps = new ArrayList<Long>();
+                                //committed rows never change, so they are read without holding a connection for the whole batch
+                                return sumPages(after, upto, deltas, gaps)
+                                        .then(transactionalOperator.transactional(
+                                                reconciliationRepository.lockCheckpoint()
+                                                        //another instance has covered the batch meanwhile
+                                                        .filter(after::equals)
+                                                        .flatMap(locked -> saveGaps(gaps)
+                                                                .then(sumFilledGaps(deltas))
+                                                                .then(expireGaps())
+                                                                .then(verify(deltas, upto))
+                                                                .then(reconciliationRepository.moveCheckpoint(upto))
+                                                                .thenReturn(upto - after))
+                                        ));
+                            }))
+                    .defaultIfEmpty(0L)
+                    .doOnSuccess(covered -> {
+                        if (covered != null && covered > 0) {
+                            runs.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                    });
+        });
+    }
+
+    private Mono<Void> sumPages(long after, long upto, LongLongMap[] deltas, List<Long> gaps) {
+        return sumPage(after, upto, deltas, gaps)
+                .expand(last -> last < upto ? sumPage(last, upto, deltas, gaps) : Mono.empty())
+                .then();
+    }
+
+    /**
+     * @return id of the last transaction of the page, empty when there are no more
+     */
+    private Mono<Long> sumPage(long after, long upto, LongLongMap[] deltas, List<Long> gaps) {
+        return reconciliationRepository.findPage(after, upto, properties.getPageSize())
+                .collectList()
+                .filter(page -> !page.isEmpty())
+                .doOnNext(page -> collectGaps(after, page, gaps))
+                .flatMap(page -> Flux.range(0, partitions)
+                        .parallel(partitions)
+                        .runOn(Schedulers.parallel())
+                        .doOnNext(partition -> sum(page, partition, deltas[partition]))
+                        .sequential()
+                        .then(pace(page.size()))
+                        .doOnSuccess(__ -> rows.increment(page.size()))
+                        .thenReturn(page.get(page.size() - 1).getId()));
+    }
+
+    /**
+     * Adds the ids between after and the page, and between rows of the page, that have no row yet.
+     */
+    private static void collectGaps(long after, List<Transaction> page, List<Long> gaps) {
+        var next = after + 1;
+        for (var transaction : page) {
+            for (var id = next; id < transaction.getId(); id++) {
+                gaps.add(id);
+            }
+            next = transaction.getId() + 1;
+        }
+    }
+
+    private Mono<Void> saveGaps(List<Long> gaps) {
+        return Flux.fromIterable(gaps)
+                .buffer(VERIFY_CHUNK)
+                .concatMap(reconciliationRepository::saveGaps)
+                .then();
+    }
+
+    /**
+     * Adds transactions committed since their ids were skipped and forgets their gaps.
+     */
+    private Mono<Void> sumFilledGaps(LongLongMap[] deltas) {
+        return reconciliationRepository.findFilledGaps()
+                .collectList()
+                .flatMap(filled -> {
+                    var ids = new ArrayList<Long>(filled.size());
+                    for (var transaction : filled) {
+                        ids.add(transaction.getId());
+                    }
+                    for (int partition = 0; partition < partitions; partition++) {
+                        sum(filled, partition, deltas[partition]);
+                    }
+                    rows.increment(filled.size());
+                    return reconciliationRepository.deleteGaps(ids);
+                });
+    }
+
+    /**
+     * Rolled back transfers and unique key violations leave ids without rows, so expiry is routine.
+     */
+    private Mono<Void> expireGaps() {
+        return reconciliationRepository.deleteGapsOlderThan(properties.getGapExpiry())
+                .doOnNext(expired -> {
+                    if (expired > 0) {
+                        log.info("{} transaction ids had no row for {}, taken as rolled back", expired, properties.getGapExpiry());
+                    }
+                })
+                .then();
+    }
+
+    /**
+     * Adds the page to the partition of accounts with id mod partitions equal to partition, only the rail of the partition
+     * touches its map.
+     */
+    private void sum(List<Transaction> page, int partition, LongLongMap deltas) {
+        for (var transaction : page) {
+            var from = transaction.getFromAccountId();
+            if (from != null && Math.floorMod(from, partitions) == partition) {
+                deltas.add(from, -transaction.getAmountMinorUnits());
+            }
+            var to = transaction.getToAccountId();
+            if (to != null && Math.floorMod(to, partitions) == partition) {
+                deltas.add(to, transaction.getAmountMinorUnits());
+            }
+        }
+    }
+
+    /**
+     * Delays the next page so the reads stay under max-rows-per-second.
+     */
+    private Mono<Void> pace(int pageRows) {
+        if (properties.getMaxRowsPerSecond() <= 0) {
+            return Mono.empty();
+        }
+        return Mono.delay(Duration.ofNanos(pageRows * 1_000_000_000L / properties.getMaxRowsPerSecond()))
+                .then();
+    }
+
+    private Mono<Void> verify(LongLongMap[] deltas, long upto) {
+        return reconciliationRepository.findDiscrepantAccountIds()
+                .collectList()
+                .flatMap(discrepant -> Flux.range(0, partitions)
+                        .concatMap(partition -> {
+                            var ids = new ArrayList<Long>(deltas[partition].size());
+                            deltas[partition].forEach((id, delta) -> ids.add(id));
+                            for (var id : discrepant) {
+                                if (Math.floorMod(id, partitions) == partition && !deltas[partition].containsKey(id)) {
+                                    ids.add(id);
+                                }
+                            }
+                            //the transaction holds one connection, so chunks go one after another
+                            return Flux.fromIterable(ids)
+                                    .buffer(VERIFY_CHUNK)
+                                    .concatMap(chunk -> verifyChunk(chunk, deltas[partition], upto));
+                        })
+                        .then());
+    }
+
+    /**
+     * Transactions after upto or in a gap are already in the balance, so they are added to the expected one before comparing.
+     */
+    private Mono<Void> verifyChunk(List<Long> ids, LongLongMap deltas, long upto) {
+        return accountRepository.findAllByIdIn(ids)
+                .collectMap(Account::getId, Account::getAmountMinorUnits)
+                .flatMap(actual -> reconciliationRepository.findExpected(ids)
+                        .collectMap(AccountAmount::getAccountId, AccountAmount::getAmount)
+                        .flatMap(previous -> reconciliationRepository.findChangesAfter(upto, ids)
+                                .collectMap(AccountAmount::getAccountId, AccountAmount::getAmount)
+                                .flatMap(pending -> compare(ids, deltas, actual, previous, pending))));
+    }
+
+    private Mono<Void> compare(
+            List<Long> ids,
+            LongLongMap deltas,
+            Map<Long, Long> actual,
+            Map<Long, Long> previous,
+            Map<Long, Long> pending
+    ) {
+        var expected = new ArrayList<AccountAmount>(ids.size());
+        var matching = new ArrayList<Long>(ids.size());
+        var found = new ArrayList<Discrepancy>();
+        for (var id : ids) {
+            var balance = actual.get(id);
+            if (balance == null) {
+                continue;
+            }
+            long later = pending.getOrDefault(id, 0L);
+            var known = previous.get(id);
+            if (known == null) {
+                //created before openings were recorded or its opening failed to save, counted from zero
+                log.warn("account {} has no opening balance", id);
+            }
+            long upToCheckpoint = (known == null ? 0 : known) + deltas.get(id, 0);
+            expected.add(new AccountAmount(id, upToCheckpoint));
+            if (upToCheckpoint + later == balance) {
+                matching.add(id);
+            } else {
+                found.add(new Discrepancy(id, upToCheckpoint + later, balance, null));
+            }
+        }
+        return reconciliationRepository.saveExpected(expected)
+                .then(reconciliationRepository.deleteDiscrepancies(matching))
+                .then(Flux.fromIterable(found)
+                        .concatMap(discrepancy -> {
+                            mismatches.increment();
+                            log.error("account {} has balance {}, its transactions add up to {}",
+                                    discrepancy.getAccountId(), discrepancy.getActual(), discrepancy.getExpected());
+                            return reconciliationRepository.saveDiscrepancy(discrepancy);
+                        })
+                        .then());
+    }
+}
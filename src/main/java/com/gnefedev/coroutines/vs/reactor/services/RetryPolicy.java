@@ -0,0 +1,26 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Decides if and when a transfer failed with a conflict is attempted again.
+ * Doesn't depend on Reactor, blocking code sleeps for {@link Attempts#nextDelay} itself.
+ */
+public interface RetryPolicy {
+    /**
+     * Called before the first attempt of a transfer, the time budget starts here.
+     *
+     * @param accountIds accounts written by the transfer
+     */
+    Attempts begin(long... accountIds);
+
+    interface Attempts {
+        /**
+         * Called after every conflict.
+         *
+         * @return delay before the next attempt, empty when the transfer should fail with the last conflict
+         */
+        Optional<Duration> nextDelay();
+    }
+}
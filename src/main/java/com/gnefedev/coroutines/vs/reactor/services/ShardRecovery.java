@@ -0,0 +1,84 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.Shards;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Completes cross-shard transfers of {@link ShardedLedger} left reserved longer than {@code in-doubt-after},
+ * after a crash or a lost connection between the steps. The steps are idempotent, so taking over a transfer
+ * whose first attempt is merely slow ends the same way.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = ShardedLedger.NAME)
+@Log4j2
+public class ShardRecovery {
+    private final Shards shards;
+    private final ShardRepository shardRepository;
+    private final ShardedLedger shardedLedger;
+    private final LedgerProperties.Sharding properties;
+    private final Counter recovered;
+    private Disposable sweeps;
+
+    public ShardRecovery(
+            Shards shards,
+            ShardRepository shardRepository,
+            ShardedLedger shardedLedger,
+            LedgerProperties properties,
+            MeterRegistry meterRegistry
+    ) {
+        this.shards = shards;
+        this.shardRepository = shardRepository;
+        this.shardedLedger = shardedLedger;
+        this.properties = properties.getSharding();
+        this.recovered = Counter.builder("ledger.sharded.recovered")
+                .description("in-doubt cross-shard transfers completed by the sweeper")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        sweeps = Flux.interval(properties.getRecoveryInterval())
+                .onBackpressureDrop()
+                .concatMap(__ -> sweep())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        sweeps.dispose();
+    }
+
+    /**
+     * An error leaves the transfer reserved till the next sweep.
+     */
+    Mono<Void> sweep() {
+        return Flux.fromIterable(shards.all())
+                .concatMap(source -> shardRepository.findInDoubt(source, properties.getInDoubtAfter(), properties.getRecoveryBatchSize())
+                        .concatMap(transfer -> shardedLedger.complete(source, transfer)
+                                .doOnSuccess(applied -> {
+                                    recovered.increment();
+                                    log.warn("in-doubt transfer {} {}", transfer.getUniqueKey(), Boolean.TRUE.equals(applied) ? "committed" : "cancelled");
+                                })
+                                .onErrorResume(e -> {
+                                    log.error("recovery of transfer {} failed", transfer.getUniqueKey(), e);
+                                    return Mono.empty();
+                                }))
+                        .onErrorResume(e -> {
+                            log.error("sweep of shard {} failed", source.getIndex(), e);
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+}
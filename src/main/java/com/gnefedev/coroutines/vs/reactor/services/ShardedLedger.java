@@ -0,0 +1,271 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferResult;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository.InState;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository.OutState;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository.ShardTransfer;
+import com.gnefedev.coroutines.vs.reactor.repos.Shards;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+/**
+ * Transfers over {@link Shards}. A transfer within one shard is a conditional update in one DB transaction of the shard,
+ * as in {@link ConditionalUpdateLedger}.
+ * <p>
+ * A transfer across shards runs in three local transactions:
+ * <ol>
+ *     <li>reserve: the source shard withdraws the amount and records a RESERVED {@code transfer_out}</li>
+ *     <li>apply: the target shard records an APPLIED {@code transfer_in} and credits the amount,
+ *     or an ABORTED one when the credit is refused</li>
+ *     <li>finish: the source shard marks the transfer COMMITTED, or CANCELLED and refunds the amount</li>
+ * </ol>
+ * Both records are keyed by transactionKey, so every step can be repeated: a retry of the client and
+ * {@link ShardRecovery}, which completes transfers left reserved, end in the same outcome.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = ShardedLedger.NAME)
+@Log4j2
+public class ShardedLedger implements TransferEngine {
+    public static final String NAME = "sharded";
+
+    private final Shards shards;
+    private final ShardRepository shardRepository;
+    private final LedgerMetrics ledgerMetrics;
+    private final ConflictRetries conflictRetries;
+    private final TransferLog transferLog;
+    private final Counter localTransfers;
+    private final Counter crossShardTransfers;
+    private final Counter cancelledTransfers;
+
+    public ShardedLedger(
+            Shards shards,
+            ShardRepository shardRepository,
+            LedgerMetrics ledgerMetrics,
+            ConflictRetries conflictRetries,
+            TransferLog transferLog,
+            MeterRegistry meterRegistry
+    ) {
+        this.shards = shards;
+        this.shardRepository = shardRepository;
+        this.ledgerMetrics = ledgerMetrics;
+        this.conflictRetries = conflictRetries;
+        this.transferLog = transferLog;
+        this.localTransfers = transfersCounter(meterRegistry, "local");
+        this.crossShardTransfers = transfersCounter(meterRegistry, "cross_shard");
+        this.cancelledTransfers = transfersCounter(meterRegistry, "cancelled");
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return execute(transactionKey, fromAccountId, toAccountId, amountToTransfer)
+                .then()
+                .onErrorResume(e -> transferLog.failed(log, e));
+    }
+
+    /**
+     * For {@link BulkLedger}, no DB transaction spans shards, so transfers of a chunk run one by one.
+     */
+    public Mono<TransferResult> transfer(TransferRequest request) {
+        return execute(request.getTransactionKey(), request.getFromAccountId(), request.getToAccountId(), request.getAmountMinorUnits())
+                .onErrorResume(BulkLedger::rejectedStatus)
+                .map(status -> TransferResult.builder()
+                        .transactionKey(request.getTransactionKey())
+                        .status(status)
+                        .build());
+    }
+
+    /**
+     * Completes a reserved transfer, emits true when the target has taken the amount.
+     */
+    Mono<Boolean> complete(Shards.Shard source, ShardTransfer transfer) {
+        return apply(shards.forAccount(transfer.getToAccountId()), transfer)
+                .flatMap(applied -> finish(source, transfer, applied).thenReturn(applied));
+    }
+
+    private Mono<TransferResult.Status> execute(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        var source = shards.forAccount(fromAccountId);
+        var target = shards.forAccount(toAccountId);
+        var transfer = new ShardTransfer(transactionKey, fromAccountId, toAccountId, amountToTransfer);
+        return Mono.defer(() -> source == target ? transferLocal(source, transfer) : transferAcross(source, target, transfer))
+                .flatMap(status -> {
+                    if (status != TransferResult.Status.DUPLICATE) {
+                        return Mono.just(status);
+                    }
+                    ledgerMetrics.knownKey();
+                    return transferLog.logDuplicate(log, transactionKey).thenReturn(status);
+                })
+                .retryWhen(conflictRetries.forAccounts(ShardedLedger::isLockFailure, fromAccountId, toAccountId))
+                .onErrorMap(
+                        ShardedLedger::isLockFailure,
+                        e -> new ResponseStatusException(HttpStatus.BANDWIDTH_LIMIT_EXCEEDED, "limit of lock failures exceeded", e)
+                );
+    }
+
+    private Mono<TransferResult.Status> transferLocal(Shards.Shard shard, ShardTransfer transfer) {
+        var accounts = shard.getAccounts();
+        Mono<Void> debit = accounts.withdraw(transfer.getFromAccountId(), transfer.getAmount())
+                .flatMap(withdrawn -> withdrawn ? Mono.<Void>empty() : this.<Void>withdrawFailure(shard, transfer.getFromAccountId()));
+        Mono<Void> credit = shardRepository.credit(shard, transfer.getToAccountId(), transfer.getAmount())
+                .flatMap(credited -> credited ? Mono.<Void>empty() : this.<Void>creditFailure(shard, transfer.getToAccountId()));
+        //rows are locked in account id order, so two opposite transfers can't deadlock
+        var updates = transfer.getFromAccountId() <= transfer.getToAccountId() ? debit.then(credit) : credit.then(debit);
+        return ledgerMetrics.timeWrite(shard.getTransactionalOperator().transactional(
+                shardRepository.insertTransaction(shard, transfer.toTransaction())
+                        .then(updates)
+        ))
+                .doOnSuccess(__ -> localTransfers.increment())
+                .thenReturn(TransferResult.Status.APPLIED)
+                .onErrorResume(
+                        e -> isUniqueKeyViolation(e, "TRANSACTION_UNIQUE_KEY"),
+                        e -> {
+                            ledgerMetrics.uniqueKeyViolation();
+                            return Mono.just(TransferResult.Status.DUPLICATE);
+                        }
+                );
+    }
+
+    private Mono<TransferResult.Status> transferAcross(Shards.Shard source, Shards.Shard target, ShardTransfer transfer) {
+        //a missing target is the common refusal, found before anything is reserved
+        return shardRepository.findAccount(target, transfer.getToAccountId())
+                .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                .then(reserve(source, transfer))
+                .flatMap(reserved -> {
+                    if (!reserved) {
+                        return resume(source, transfer);
+                    }
+                    crossShardTransfers.increment();
+                    return complete(source, transfer)
+                            .flatMap(applied -> applied
+                                    ? Mono.just(TransferResult.Status.APPLIED)
+                                    : this.<TransferResult.Status>creditFailure(target, transfer.getToAccountId()));
+                });
+    }
+
+    /**
+     * Emits false when the transfer is already known to the source shard.
+     */
+    private Mono<Boolean> reserve(Shards.Shard source, ShardTransfer transfer) {
+        return ledgerMetrics.timeWrite(source.getTransactionalOperator().transactional(
+                shardRepository.insertTransferOut(source, transfer)
+                        .then(source.getAccounts().withdraw(transfer.getFromAccountId(), transfer.getAmount()))
+                        .flatMap(withdrawn -> withdrawn ? Mono.just(true) : this.<Boolean>withdrawFailure(source, transfer.getFromAccountId()))
+        ))
+                .onErrorResume(e -> isUniqueKeyViolation(e, "TRANSFER_OUT_UNIQUE_KEY"), e -> Mono.just(false));
+    }
+
+    /**
+     * A known transactionKey: the transfer is finished or another attempt of it is still running, which would finish it the same way.
+     */
+    private Mono<TransferResult.Status> resume(Shards.Shard source, ShardTransfer transfer) {
+        return shardRepository.findTransferOutState(source, transfer.getUniqueKey())
+                .flatMap(state -> {
+                    if (state == OutState.RESERVED) {
+                        return complete(source, transfer)
+                                .flatMap(applied -> applied
+                                        ? Mono.just(TransferResult.Status.DUPLICATE)
+                                        : this.<TransferResult.Status>creditFailure(shards.forAccount(transfer.getToAccountId()), transfer.getToAccountId()));
+                    }
+                    if (state == OutState.CANCELLED) {
+                        return creditFailure(shards.forAccount(transfer.getToAccountId()), transfer.getToAccountId());
+                    }
+                    return Mono.just(TransferResult.Status.DUPLICATE);
+                });
+    }
+
+    /**
+     * Emits true when the target has taken the amount, now or by an earlier attempt.
+     */
+    private Mono<Boolean> apply(Shards.Shard target, ShardTransfer transfer) {
+        return target.getTransactionalOperator().transactional(
+                shardRepository.insertTransferIn(target, transfer, InState.APPLIED)
+                        .then(shardRepository.credit(target, transfer.getToAccountId(), transfer.getAmount()))
+                        .flatMap(credited -> credited
+                                ? shardRepository.insertTransaction(target, transfer.toTransaction()).thenReturn(true)
+                                : Mono.error(new CreditRefusedException()))
+        )
+                //the refusal is recorded, so a late attempt can't apply the credit after the source is refunded
+                .onErrorResume(CreditRefusedException.class, e -> shardRepository.insertTransferIn(target, transfer, InState.ABORTED)
+                        .thenReturn(false))
+                .onErrorResume(
+                        e -> isUniqueKeyViolation(e, "TRANSFER_IN_UNIQUE_KEY"),
+                        e -> shardRepository.findTransferInState(target, transfer.getUniqueKey())
+                                .map(state -> state == InState.APPLIED)
+                );
+    }
+
+    private Mono<Void> finish(Shards.Shard source, ShardTransfer transfer, boolean applied) {
+        if (applied) {
+            return source.getTransactionalOperator().transactional(
+                    shardRepository.finishTransferOut(source, transfer.getUniqueKey(), OutState.COMMITTED)
+                            .flatMap(finished -> finished
+                                    ? shardRepository.insertTransaction(source, transfer.toTransaction())
+                                    : Mono.empty())
+            );
+        }
+        return source.getTransactionalOperator().transactional(
+                shardRepository.finishTransferOut(source, transfer.getUniqueKey(), OutState.CANCELLED)
+                        .flatMap(finished -> {
+                            if (!finished) {
+                                return Mono.empty();
+                            }
+                            cancelledTransfers.increment();
+                            return source.getAccounts().deposit(transfer.getFromAccountId(), transfer.getAmount()).then();
+                        })
+        );
+    }
+
+    private <T> Mono<T> withdrawFailure(Shards.Shard shard, long fromAccountId) {
+        //slow path only, tells a missing account from a low balance
+        return shardRepository.findAccount(shard, fromAccountId)
+                .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                .flatMap(__ -> Mono.<T>error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, not enough money")));
+    }
+
+    /**
+     * Also the answer to a transfer the target shard refused.
+     */
+    private <T> Mono<T> creditFailure(Shards.Shard shard, long toAccountId) {
+        return shardRepository.findAccount(shard, toAccountId)
+                .switchIfEmpty(Mono.error(new IllegalArgumentException("account not found")))
+                .flatMap(__ -> Mono.<T>error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "can't transfer, balance overflow")));
+    }
+
+    private static boolean isUniqueKeyViolation(Throwable error, String index) {
+        return error instanceof DataIntegrityViolationException && error.getMessage().contains(index);
+    }
+
+    private static boolean isLockFailure(Throwable error) {
+        return error instanceof ConcurrencyFailureException || error instanceof TransientDataAccessException;
+    }
+
+    private static Counter transfersCounter(MeterRegistry meterRegistry, String kind) {
+        return Counter.builder("ledger.sharded.transfers")
+                .tag("kind", kind)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Rolls back the credit of {@link #apply}, never leaves this class.
+     */
+    private static class CreditRefusedException extends RuntimeException {
+        CreditRefusedException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferResult;
+import com.gnefedev.coroutines.vs.reactor.util.StripedExecutor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Runs {@link Ledger#transfer} on per-account lanes, so transfers of the same account don't race on version in this process.
+ * <p>
+ * Versioned chunks of {@link BulkLedger} would conflict with the lanes on a hot account,
+ * so bulk transfers go through the lanes too, see {@link #transfer(TransferRequest)}.
+ */
+@Component
+@ConditionalOnProperty(name = "ledger.engine", havingValue = StripedLedger.NAME)
+public class StripedLedger implements TransferEngine {
+    public static final String NAME = "striped";
+
+    private final Ledger ledger;
+    private final IdempotencyKeys idempotencyKeys;
+    private final StripedExecutor lanes;
+
+    public StripedLedger(Ledger ledger, IdempotencyKeys idempotencyKeys, LedgerProperties properties) {
+        this.ledger = ledger;
+        this.idempotencyKeys = idempotencyKeys;
+        this.lanes = new StripedExecutor(properties.getStriped().getLanes(), properties.getStriped().getMaxQueuedPerLane());
+    }
+
+    @PreDestroy
+    public void stop() {
+        lanes.dispose();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return lanes.execute(fromAccountId, toAccountId, () -> ledger.transfer(transactionKey, fromAccountId, toAccountId, amountToTransfer));
+    }
+
+    /**
+     * For {@link BulkLedger}, transfers of a chunk run one by one on the lanes of their accounts.
+     */
+    public Mono<TransferResult> transfer(TransferRequest request) {
+        var transactionKey = request.getTransactionKey();
+        return idempotencyKeys.isCommitted(transactionKey)
+                .flatMap(committed -> committed
+                        ? Mono.just(TransferResult.Status.DUPLICATE)
+                        : transfer(transactionKey, request.getFromAccountId(), request.getToAccountId(), request.getAmountMinorUnits())
+                        .thenReturn(TransferResult.Status.APPLIED))
+                .onErrorResume(BulkLedger::rejectedStatus)
+                .map(status -> TransferResult.builder()
+                        .transactionKey(transactionKey)
+                        .status(status)
+                        .build());
+    }
+}
@@ -0,0 +1,13 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import reactor.core.publisher.Mono;
+
+
+/**
+ * Strategy that executes a single transfer, selected by {@code ledger.engine}.
+ */
+public interface TransferEngine {
+    String getName();
+
+    Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer);
+}
@@ -0,0 +1,138 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.util.SingleFlight;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+@Component
+public class TransferEngines {
+    public static final String TIMER_NAME = "ledger.transfer";
+    public static final String WARMUP_TIMER_NAME = "ledger.warmup.transfer";
+
+    private final Map<String, MeteredEngine> engines = new HashMap<>();
+    private final Supplier<MeteredEngine> current;
+    private final SingleFlight<String, Void> inFlightTransfers = new SingleFlight<>();
+    private final IdempotencyKeys idempotencyKeys;
+
+    public TransferEngines(
+            List<TransferEngine> engines,
+            IdempotencyKeys idempotencyKeys,
+            ObjectProvider<AdaptiveEnginePolicy> adaptivePolicy,
+            LedgerProperties properties,
+            MeterRegistry meterRegistry
+    ) {
+        this.idempotencyKeys = idempotencyKeys;
+        for (TransferEngine engine : engines) {
+            this.engines.put(engine.getName(), new MeteredEngine(engine, meterRegistry));
+        }
+        if (AdaptiveEnginePolicy.NAME.equals(properties.getEngine())) {
+            var policy = adaptivePolicy.getObject();
+            engine(properties.getAdaptive().getLowLoadEngine());
+            engine(properties.getAdaptive().getHighLoadEngine());
+            this.current = () -> this.engines.get(policy.getCurrentEngine());
+        } else {
+            var engine = engine(properties.getEngine());
+            this.current = () -> engine;
+        }
+        FunctionCounter.builder("ledger.transfer.coalesced", inFlightTransfers, SingleFlight::getCoalesced)
+                .description("requests that joined an in-flight transfer with the same transactionKey")
+                .register(meterRegistry);
+        Gauge.builder("ledger.transfer.in_flight", inFlightTransfers, SingleFlight::getInFlight)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Concurrent requests with the same transactionKey share one execution and its outcome.
+     * A rejection is confirmed against the database first, the engine may have skipped the lookup of a committed key.
+     */
+    public Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return execute(transactionKey, engine -> engine.transfer(transactionKey, fromAccountId, toAccountId, amountToTransfer));
+    }
+
+    /**
+     * Same path as {@link #transfer}, timed under ledger.warmup.transfer instead of ledger.transfer,
+     * so synthetic transfers don't count in the latency the adaptive policy reads.
+     */
+    public Mono<Void> warmUp(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+        return execute(transactionKey, engine -> engine.warmUp(transactionKey, fromAccountId, toAccountId, amountToTransfer));
+    }
+
+    private Mono<Void> execute(String transactionKey, Function<MeteredEngine, Mono<Void>> transfer) {
+        return inFlightTransfers.execute(
+                transactionKey,
+                () -> transfer.apply(current.get())
+                        .onErrorResume(TransferEngines::isRejectedBalance, e -> idempotencyKeys.recheck(transactionKey)
+                                .flatMap(committed -> committed ? Mono.<Void>empty() : Mono.<Void>error(e)))
+        );
+    }
+
+    private static boolean isRejectedBalance(Throwable error) {
+        return error instanceof ResponseStatusException && ((ResponseStatusException) error).getStatus() == HttpStatus.UNPROCESSABLE_ENTITY;
+    }
+
+    private MeteredEngine engine(String name) {
+        var engine = engines.get(name);
+        if (engine == null) {
+            throw new IllegalStateException("unknown ledger engine " + name + ", available: " + engines.keySet());
+        }
+        return engine;
+    }
+
+    private static class MeteredEngine {
+        private final TransferEngine engine;
+        private final Timer success;
+        private final Timer error;
+        private final Timer warmup;
+
+        MeteredEngine(TransferEngine engine, MeterRegistry meterRegistry) {
+            this.engine = engine;
+            this.success = timer(engine, "success", meterRegistry);
+            this.error = timer(engine, "error", meterRegistry);
+            this.warmup = Timer.builder(WARMUP_TIMER_NAME)
+                    .tag("engine", engine.getName())
+                    .register(meterRegistry);
+        }
+
+        Mono<Void> transfer(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+            return timed(() -> engine.transfer(transactionKey, fromAccountId, toAccountId, amountToTransfer), success, error);
+        }
+
+        Mono<Void> warmUp(String transactionKey, long fromAccountId, long toAccountId, long amountToTransfer) {
+            return timed(() -> engine.transfer(transactionKey, fromAccountId, toAccountId, amountToTransfer), warmup, warmup);
+        }
+
+        private static Mono<Void> timed(Supplier<Mono<Void>> transfer, Timer success, Timer error) {
+            return Mono.defer(() -> {
+                long start = System.nanoTime();
+                return transfer.get()
+                        .doOnSuccess(__ -> success.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                        .doOnError(__ -> error.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+            });
+        }
+
+        private static Timer timer(TransferEngine engine, String outcome, MeterRegistry meterRegistry) {
+            return Timer.builder(TIMER_NAME)
+                    .tag("engine", engine.getName())
+                    .tag("outcome", outcome)
+                    .publishPercentiles(0.5, 0.99)
+                    .distributionStatisticExpiry(Duration.ofSeconds(30))
+                    .register(meterRegistry);
+        }
+    }
+}
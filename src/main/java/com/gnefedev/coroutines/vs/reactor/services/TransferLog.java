@@ -0,0 +1,71 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.util.LogRateLimiter;
+import com.gnefedev.coroutines.vs.reactor.util.LoggerHelper;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Logging of expected outcomes of transfers: duplicates and rejections are logged without stack traces
+ * and at most a few per second, so a burst of them doesn't flood the appender.
+ * Anything else is logged as error with the stack trace.
+ * <p>
+ * Reactive callers log through Monos that set MDC from the subscriber context, see {@link LoggerHelper#logWithMdc}.
+ */
+@Component
+public class TransferLog {
+    private final LogRateLimiter duplicates;
+    private final LogRateLimiter rejections;
+
+    public TransferLog(LedgerProperties properties) {
+        var logging = properties.getLogging();
+        this.duplicates = new LogRateLimiter(logging.getDuplicatesPerSecond(), Duration.ofSeconds(1));
+        this.rejections = new LogRateLimiter(logging.getRejectionsPerSecond(), Duration.ofSeconds(1));
+    }
+
+    /**
+     * For chains, logs with MDC of the subscriber.
+     */
+    public Mono<Void> logDuplicate(Logger log, String transactionKey) {
+        return LoggerHelper.logWithMdc(() -> duplicate(log, transactionKey));
+    }
+
+    /**
+     * For blocking code, MDC of the thread is used.
+     */
+    public void duplicate(Logger log, String transactionKey) {
+        var suppressed = duplicates.acquire();
+        if (suppressed >= 0) {
+            log.warn("retry of transaction {}, {} retries not logged before", transactionKey, suppressed);
+        }
+    }
+
+    /**
+     * For onErrorResume at the end of a transfer, passes the error on.
+     */
+    public <T> Mono<T> failed(Logger log, Throwable error) {
+        return LoggerHelper.logWithMdc(() -> {
+            if (isRejection(error)) {
+                var suppressed = rejections.acquire();
+                if (suppressed >= 0) {
+                    log.warn("transfer rejected: {}, {} rejections not logged before", error.getMessage(), suppressed);
+                }
+            } else {
+                log.error("error on transfer", error);
+            }
+        })
+                .then(Mono.error(error));
+    }
+
+    /**
+     * Not enough money, exhausted retries and missing accounts are answers to the client, not failures of the service.
+     */
+    private static boolean isRejection(Throwable error) {
+        return error instanceof ResponseStatusException || error instanceof IllegalArgumentException;
+    }
+}
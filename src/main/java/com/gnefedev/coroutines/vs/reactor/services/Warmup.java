@@ -0,0 +1,241 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequestValidator;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.ScratchAccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.Shards;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.spi.ConnectionFactory;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.Decoder;
+import org.springframework.core.codec.Encoder;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.DecoderHttpMessageReader;
+import org.springframework.http.codec.EncoderHttpMessageWriter;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs before the app reports ready: Spring Boot moves readiness to ACCEPTING_TRAFFIC only after the application runners,
+ * and {@link com.gnefedev.coroutines.vs.reactor.util.AdmissionControlFilter} refuses transfers till then.
+ * <p>
+ * Opens the pool connections up to spring.r2dbc.pool.initial-size, runs transfer requests through the JSON and CBOR codecs
+ * and the validator, then runs synthetic transfers, reads and a duplicate on pairs of scratch accounts, one pair per
+ * connection, so every connection has parsed the ledger statements and the JIT has compiled the transfer path.
+ * The scratch accounts are deleted afterwards. The in-memory and sharded engines keep accounts where they can't be
+ * deleted from, so they warm the pools and codecs only. Synthetic transfers are timed under ledger.warmup.transfer,
+ * apart from ledger.transfer.
+ * <p>
+ * ledger.startup.time_to_ready is the JVM uptime when the app became ready, with the warm-up switched on or off.
+ */
+@Component
+@Log4j2
+public class Warmup implements ApplicationRunner {
+    private static final long SCRATCH_BALANCE = 1_000_000;
+    private static final List<MediaType> MEDIA_TYPES = List.of(MediaType.APPLICATION_JSON, MediaType.APPLICATION_CBOR);
+
+    private final LedgerProperties.Warmup properties;
+    private final boolean scratchAccountsRemovable;
+    private final ConnectionFactory connectionFactory;
+    private final ObjectProvider<Shards> shards;
+    private final ServerCodecConfigurer codecConfigurer;
+    private final TransferEngines transferEngines;
+    private final AccountStatements accountStatements;
+    private final AccountRepository accountRepository;
+    private final ScratchAccountRepository scratchAccountRepository;
+    private final Timer warmups;
+    private volatile long timeToReadyMillis;
+
+    public Warmup(
+            LedgerProperties properties,
+            ConnectionFactory connectionFactory,
+            ObjectProvider<Shards> shards,
+            ServerCodecConfigurer codecConfigurer,
+            TransferEngines transferEngines,
+            AccountStatements accountStatements,
+            AccountRepository accountRepository,
+            ScratchAccountRepository scratchAccountRepository,
+            MeterRegistry meterRegistry
+    ) {
+        this.properties = properties.getWarmup();
+        this.scratchAccountsRemovable = scratchAccountsRemovable(properties);
+        this.connectionFactory = connectionFactory;
+        this.shards = shards;
+        this.codecConfigurer = codecConfigurer;
+        this.transferEngines = transferEngines;
+        this.accountStatements = accountStatements;
+        this.accountRepository = accountRepository;
+        this.scratchAccountRepository = scratchAccountRepository;
+        this.warmups = Timer.builder("ledger.warmup")
+                .description("warm-up before the app reports ready")
+                .register(meterRegistry);
+        TimeGauge.builder("ledger.startup.time_to_ready", this, TimeUnit.MILLISECONDS, warmup -> warmup.timeToReadyMillis)
+                .description("JVM uptime when the app started accepting traffic")
+                .register(meterRegistry);
+    }
+
+    @EventListener
+    public void onReadiness(AvailabilityChangeEvent<ReadinessState> event) {
+        if (event.getState() == ReadinessState.ACCEPTING_TRAFFIC && timeToReadyMillis == 0) {
+            timeToReadyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+            log.info("ready in {} ms", timeToReadyMillis);
+        }
+    }
+
+    /**
+     * A failed or slow warm-up is logged, the app becomes ready anyway.
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        var start = System.nanoTime();
+        try {
+            warmPools()
+                    .then(warmCodecs())
+                    .then(scratchAccountsRemovable ? warmTransfers() : Mono.<Void>empty())
+                    .block(properties.getTimeout());
+            warmups.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            log.info("warm-up took {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (RuntimeException e) {
+            log.warn("warm-up didn't finish, the app becomes ready cold", e);
+        }
+    }
+
+    private Mono<Void> warmPools() {
+        var factories = new ArrayList<ConnectionFactory>();
+        factories.add(connectionFactory);
+        var sharded = shards.getIfAvailable();
+        if (sharded != null) {
+            for (var shard : sharded.all()) {
+                factories.add(shard.getConnectionFactory());
+            }
+        }
+        return Flux.fromIterable(factories)
+                .filter(factory -> factory instanceof ConnectionPool)
+                .flatMap(factory -> ((ConnectionPool) factory).warmup())
+                .then();
+    }
+
+    private Mono<Void> warmCodecs() {
+        var type = ResolvableType.forClass(TransferRequest.class);
+        return Flux.fromIterable(MEDIA_TYPES)
+                .concatMap(mediaType -> {
+                    var encoder = encoder(type, mediaType);
+                    var decoder = decoder(type, mediaType);
+                    if (encoder == null || decoder == null) {
+                        return Mono.<Void>empty();
+                    }
+                    return Flux.range(0, properties.getCodecRounds())
+                            .concatMap(round -> decoder.decodeToMono(
+                                    Mono.fromCallable(() -> encoder.encodeValue(
+                                            request(round, round + 1), DefaultDataBufferFactory.sharedInstance, type, mediaType, Map.of()
+                                    )),
+                                    type,
+                                    mediaType,
+                                    Map.of()
+                            ))
+                            .doOnNext(decoded -> TransferRequestValidator.validate((TransferRequest) decoded))
+                            .then();
+                })
+                .then();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Encoder<Object> encoder(ResolvableType type, MediaType mediaType) {
+        return codecConfigurer.getWriters().stream()
+                .filter(writer -> writer instanceof EncoderHttpMessageWriter && writer.canWrite(type, mediaType))
+                .map(writer -> (Encoder<Object>) ((EncoderHttpMessageWriter<?>) writer).getEncoder())
+                .findFirst()
+                .orElse(null);
+    }
+
+    private Decoder<?> decoder(ResolvableType type, MediaType mediaType) {
+        return codecConfigurer.getReaders().stream()
+                .filter(reader -> reader instanceof DecoderHttpMessageReader && reader.canRead(type, mediaType))
+                .map(reader -> ((DecoderHttpMessageReader<?>) reader).getDecoder())
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Transfers go back and forth between the accounts of a pair, so they never run out of money.
+     */
+    private Mono<Void> warmTransfers() {
+        var pairs = Math.max(1, properties.getConcurrency());
+        var transfersPerPair = Math.max(1, properties.getTransfers() / pairs);
+        return Flux.range(0, pairs * 2)
+                .concatMap(__ -> accountRepository.save(Account.builder()
+                        .amountMinorUnits(SCRATCH_BALANCE)
+                        .version(0)
+                        .build()))
+                .map(Account::getId)
+                .collectList()
+                .flatMap(ids -> Flux.range(0, pairs)
+                        .flatMap(pair -> warmPair(ids.get(pair * 2), ids.get(pair * 2 + 1), transfersPerPair), pairs)
+                        .then()
+                        .onErrorResume(e -> {
+                            log.warn("synthetic transfers failed", e);
+                            return Mono.empty();
+                        })
+                        .then(Mono.defer(() -> scratchAccountRepository.deleteAll(ids))));
+    }
+
+    private Mono<Void> warmPair(long first, long second, int transfers) {
+        var last = new TransferRequest[1];
+        return Flux.range(0, transfers)
+                .concatMap(i -> {
+                    last[0] = i % 2 == 0 ? request(first, second) : request(second, first);
+                    return transfer(last[0]);
+                })
+                //a retried request with a known key
+                .then(Mono.defer(() -> transfer(last[0])))
+                .then(accountStatements.account(first))
+                .thenMany(accountStatements.history(first, 0))
+                .then();
+    }
+
+    private Mono<Void> transfer(TransferRequest request) {
+        return transferEngines.warmUp(request.getTransactionKey(), request.getFromAccountId(), request.getToAccountId(), request.getAmountMinorUnits());
+    }
+
+    private static TransferRequest request(long fromAccountId, long toAccountId) {
+        return TransferRequest.builder()
+                .transactionKey("warmup-" + UUID.randomUUID())
+                .fromAccountId(fromAccountId)
+                .toAccountId(toAccountId)
+                .amountMinorUnits(1L)
+                .build();
+    }
+
+    private static boolean scratchAccountsRemovable(LedgerProperties properties) {
+        var engines = AdaptiveEnginePolicy.NAME.equals(properties.getEngine())
+                ? List.of(properties.getAdaptive().getLowLoadEngine(), properties.getAdaptive().getHighLoadEngine())
+                : List.of(properties.getEngine());
+        return !engines.contains(InMemoryLedger.NAME) && !engines.contains(ShardedLedger.NAME);
+    }
+}
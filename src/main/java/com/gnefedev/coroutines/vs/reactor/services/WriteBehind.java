@@ -0,0 +1,211 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.WriteBehindRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Copies transfers and balance changes of {@link InMemoryLedger} to the database in batches, in the order they were sequenced.
+ * A batch is written only after its records are durable in the log. It moves the checkpoint of {@link WriteBehindRepository}
+ * in its DB transaction, and records up to the checkpoint are skipped, so replaying the log writes nothing twice.
+ * <p>
+ * A transfer past the checkpoint whose transactionKey is already in the database was committed by another writer
+ * after the ledger had looked the key up. Its balance change is already made in memory, so the batch fails
+ * rather than drop it, and is retried with an error logged each time, until the conflicting row is dealt with.
+ * <p>
+ * A failed batch is retried until it is written, so records queue up while the database is down;
+ * {@link #isFull} tells the ledger to refuse new ones before the queue outgrows write-behind-max-queued.
+ */
+@Log4j2
+class WriteBehind {
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(5);
+
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final WriteBehindRepository writeBehindRepository;
+    private final IdempotencyKeys idempotencyKeys;
+    private final TransactionalOperator transactionalOperator;
+    private final LongFunction<Mono<Void>> awaitDurable;
+    private final Sinks.Many<Sequenced> queue = Sinks.many().unicast().onBackpressureBuffer();
+    private final Sinks.Many<Long> persisted = Sinks.many().replay().latest();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile long persistedSequence;
+    private volatile int maxQueued = Integer.MAX_VALUE;
+    private Disposable writes;
+
+    WriteBehind(
+            AccountRepository accountRepository,
+            TransactionRepository transactionRepository,
+            WriteBehindRepository writeBehindRepository,
+            IdempotencyKeys idempotencyKeys,
+            TransactionalOperator transactionalOperator,
+            LongFunction<Mono<Void>> awaitDurable
+    ) {
+        this.accountRepository = accountRepository;
+        this.transactionRepository = transactionRepository;
+        this.writeBehindRepository = writeBehindRepository;
+        this.idempotencyKeys = idempotencyKeys;
+        this.transactionalOperator = transactionalOperator;
+        this.awaitDurable = awaitDurable;
+    }
+
+    /**
+     * Sequence of the last record in the database, read before the log is replayed.
+     */
+    long loadPersistedSequence() {
+        return writeBehindRepository.findCheckpoint().blockOptional().orElse(0L);
+    }
+
+    void start(long persistedSequence, LedgerProperties.InMemory properties) {
+        this.persistedSequence = persistedSequence;
+        persisted.tryEmitNext(persistedSequence);
+        this.maxQueued = properties.getWriteBehindMaxQueued();
+        writes = queue.asFlux()
+                .bufferTimeout(properties.getWriteBehindBatchSize(), properties.getWriteBehindMaxWait())
+                //bufferTimeout emits on the timer without demand, batches wait here while one is written, bounded by isFull
+                .onBackpressureBuffer()
+                .concatMap(batch -> {
+                    long last = batch.get(batch.size() - 1).sequence;
+                    return awaitDurable.apply(last)
+                            .then(Mono.defer(() -> transactionalOperator.transactional(write(batch))))
+                            .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofMillis(100))
+                                    .maxBackoff(MAX_BACKOFF)
+                                    .doBeforeRetry(signal -> log.error("write behind of {} records failed, retrying", batch.size(), signal.failure())))
+                            .doOnSuccess(__ -> {
+                                for (var sequenced : batch) {
+                                    if (sequenced.transaction != null) {
+                                        idempotencyKeys.markCommitted(sequenced.transaction.getUniqueKey());
+                                    }
+                                }
+                                queued.addAndGet(-batch.size());
+                                this.persistedSequence = last;
+                                persisted.tryEmitNext(last);
+                            });
+                })
+                .subscribe();
+    }
+
+    void stop() {
+        writes.dispose();
+    }
+
+    /**
+     * Called by the sequencer only, in sequence order.
+     */
+    void enqueue(long sequence, Transaction transaction) {
+        enqueue(new Sequenced(sequence, transaction, 0, 0));
+    }
+
+    /**
+     * A balance change without a transfer, called by the sequencer only, in sequence order.
+     */
+    void enqueue(long sequence, long accountId, long change) {
+        enqueue(new Sequenced(sequence, null, accountId, change));
+    }
+
+    private void enqueue(Sequenced sequenced) {
+        queued.incrementAndGet();
+        queue.emitNext(sequenced, (signalType, emitResult) -> emitResult == Sinks.EmitResult.FAIL_NON_SERIALIZED);
+    }
+
+    /**
+     * True while write-behind-max-queued transfers wait for the database.
+     */
+    boolean isFull() {
+        return queued.get() >= maxQueued;
+    }
+
+    long getPersistedSequence() {
+        return persistedSequence;
+    }
+
+    Mono<Void> awaitPersisted(long sequence) {
+        return persisted.asFlux()
+                .filter(written -> written >= sequence)
+                .next()
+                .then();
+    }
+
+    private Mono<Void> write(List<Sequenced> batch) {
+        long last = batch.get(batch.size() - 1).sequence;
+        return writeBehindRepository.lockCheckpoint()
+                .flatMap(checkpoint -> {
+                    //written before a restart, the log was replayed from the persisted sequence of an older snapshot
+                    var unwritten = batch.stream()
+                            .filter(sequenced -> sequenced.sequence > checkpoint)
+                            .collect(Collectors.toList());
+                    var transactions = unwritten.stream()
+                            .map(sequenced -> sequenced.transaction)
+                            .filter(Objects::nonNull)
+                            .collect(Collectors.toList());
+                    return findWritten(transactions)
+                            .flatMap(written -> {
+                                if (!written.isEmpty()) {
+                                    return Mono.<Void>error(new IllegalStateException("transactionKeys " + written
+                                            + " are applied in memory but committed to the database by another writer,"
+                                            + " balances in memory differ from the database"));
+                                }
+                                //account id order, so rows are locked in the same order as other writers do
+                                var changes = new TreeMap<Long, Long>();
+                                for (var sequenced : unwritten) {
+                                    var transaction = sequenced.transaction;
+                                    if (transaction == null) {
+                                        changes.merge(sequenced.accountId, sequenced.change, Long::sum);
+                                    } else {
+                                        changes.merge(transaction.getFromAccountId(), -transaction.getAmountMinorUnits(), Long::sum);
+                                        changes.merge(transaction.getToAccountId(), transaction.getAmountMinorUnits(), Long::sum);
+                                    }
+                                }
+                                return transactionRepository.insertAll(transactions)
+                                        .thenMany(Flux.fromIterable(changes.entrySet())
+                                                .concatMap(change -> change.getValue() == 0
+                                                        ? Mono.<Void>empty()
+                                                        : accountRepository.deposit(change.getKey(), change.getValue())
+                                                        .flatMap(deposited -> deposited
+                                                                ? Mono.<Void>empty()
+                                                                : Mono.error(new IllegalStateException("account " + change.getKey() + " is missing in the database")))))
+                                        .then(writeBehindRepository.moveCheckpoint(Math.max(checkpoint, last)));
+                            });
+                });
+    }
+
+    private Mono<List<String>> findWritten(List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return Mono.just(List.of());
+        }
+        return transactionRepository.findAllByUniqueKeyIn(transactions.stream()
+                .map(Transaction::getUniqueKey)
+                .collect(Collectors.toSet()))
+                .map(Transaction::getUniqueKey)
+                .collectList();
+    }
+
+    @RequiredArgsConstructor
+    private static class Sequenced {
+        private final long sequence;
+        /**
+         * Null for a balance change without a transfer.
+         */
+        private final Transaction transaction;
+        private final long accountId;
+        private final long change;
+    }
+}
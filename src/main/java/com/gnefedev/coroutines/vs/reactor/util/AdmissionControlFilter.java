@@ -0,0 +1,175 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Admission control of {@code PUT /api/ledger/transfer}: a transfer over the {@link GradientLimit} is answered
+ * with 503 and Retry-After at once instead of queueing for a pool connection.
+ * <p>
+ * An admitted transfer gets a deadline, the configured timeout or a shorter one from the X-Request-Timeout header.
+ * When it passes, or the client goes away, the transfer is cancelled, which also drops its pending connection acquire.
+ * <p>
+ * Until the app is ready single and bulk transfers are refused, admission control on or off, unless
+ * refuse-until-ready is switched off. Transfers of the first minute after that are timed apart, to compare
+ * a warmed start with a cold one.
+ */
+@Component
+public class AdmissionControlFilter implements WebFilter {
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+    private static final String TRANSFER_PATH = "/api/ledger/transfer";
+    private static final String BULK_TRANSFER_PATH = "/api/ledger/transfers";
+    private static final Duration FIRST_MINUTE = Duration.ofMinutes(1);
+
+    private final LedgerProperties.Admission properties;
+    private final ApplicationAvailability availability;
+    private final GradientLimit limit;
+    private final Counter shedOverLimit;
+    private final Counter shedOverDeadline;
+    private final Counter shedNotReady;
+    private final Timer firstMinute;
+    private volatile boolean timingFirstMinute;
+    private volatile long firstMinuteEnd;
+
+    public AdmissionControlFilter(LedgerProperties properties, ApplicationAvailability availability, MeterRegistry meterRegistry) {
+        this.properties = properties.getAdmission();
+        this.availability = availability;
+        this.limit = new GradientLimit(
+                this.properties.getInitialLimit(),
+                this.properties.getMinLimit(),
+                this.properties.getMaxLimit(),
+                this.properties.getSmoothing(),
+                this.properties.getLongWindow()
+        );
+        Gauge.builder("ledger.admission.limit", limit, GradientLimit::getLimit)
+                .register(meterRegistry);
+        Gauge.builder("ledger.admission.in_flight", limit, GradientLimit::getInFlight)
+                .register(meterRegistry);
+        this.shedOverLimit = shedCounter(meterRegistry, "limit");
+        this.shedOverDeadline = shedCounter(meterRegistry, "deadline");
+        this.shedNotReady = shedCounter(meterRegistry, "not_ready");
+        this.firstMinute = Timer.builder("ledger.transfer.first_minute")
+                .description("transfers answered in the first minute after the app became ready")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    @EventListener
+    public void onReadiness(AvailabilityChangeEvent<ReadinessState> event) {
+        if (event.getState() == ReadinessState.ACCEPTING_TRAFFIC && firstMinuteEnd == 0) {
+            firstMinuteEnd = System.nanoTime() + FIRST_MINUTE.toNanos();
+            timingFirstMinute = true;
+        }
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        var request = exchange.getRequest();
+        var path = request.getPath().value();
+        if (request.getMethod() != HttpMethod.PUT || !(TRANSFER_PATH.equals(path) || BULK_TRANSFER_PATH.equals(path))) {
+            return chain.filter(exchange);
+        }
+        if (properties.isRefuseUntilReady() && availability.getReadinessState() != ReadinessState.ACCEPTING_TRAFFIC) {
+            shedNotReady.increment();
+            return shed(exchange.getResponse());
+        }
+        if (BULK_TRANSFER_PATH.equals(path)) {
+            //a bulk stream runs as long as the client sends, neither the limit nor the deadline fit it
+            return chain.filter(exchange);
+        }
+        if (!properties.isEnabled()) {
+            return Mono.defer(() -> {
+                var start = System.nanoTime();
+                return chain.filter(exchange)
+                        .doFinally(__ -> recordFirstMinute(start));
+            });
+        }
+        if (!limit.tryAcquire()) {
+            shedOverLimit.increment();
+            return shed(exchange.getResponse());
+        }
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            var timedOut = new boolean[1];
+            return chain.filter(exchange)
+                    .timeout(deadline(exchange))
+                    .onErrorResume(TimeoutException.class, e -> {
+                        timedOut[0] = true;
+                        shedOverDeadline.increment();
+                        return exchange.getResponse().isCommitted() ? Mono.error(e) : shed(exchange.getResponse());
+                    })
+                    .doFinally(signal -> {
+                        if (timedOut[0] || exchange.getResponse().getStatusCode() == HttpStatus.BANDWIDTH_LIMIT_EXCEEDED) {
+                            limit.releaseDropped();
+                        } else if (signal == SignalType.CANCEL) {
+                            limit.releaseIgnored();
+                        } else {
+                            limit.release(System.nanoTime() - start);
+                        }
+                        recordFirstMinute(start);
+                    });
+        });
+    }
+
+    private void recordFirstMinute(long start) {
+        if (!timingFirstMinute) {
+            return;
+        }
+        if (start - firstMinuteEnd > 0) {
+            timingFirstMinute = false;
+            return;
+        }
+        firstMinute.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private Duration deadline(ServerWebExchange exchange) {
+        var timeout = properties.getRequestTimeout();
+        var requested = exchange.getRequest().getHeaders().getFirst(TIMEOUT_HEADER);
+        if (requested != null) {
+            try {
+                var requestedTimeout = Duration.ofMillis(Long.parseLong(requested.trim()));
+                if (!requestedTimeout.isNegative() && requestedTimeout.compareTo(timeout) < 0) {
+                    return requestedTimeout;
+                }
+            } catch (NumberFormatException e) {
+                //a malformed header gets the default deadline
+            }
+        }
+        return timeout;
+    }
+
+    private Mono<Void> shed(ServerHttpResponse response) {
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        long retryAfterSeconds = Math.max(1, (properties.getRetryAfter().toMillis() + 999) / 1000);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        return response.setComplete();
+    }
+
+    private static Counter shedCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("ledger.admission.shed")
+                .description("transfers answered with 503 by admission control")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+}
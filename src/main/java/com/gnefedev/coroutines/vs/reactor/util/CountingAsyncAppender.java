@@ -0,0 +1,42 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link AsyncAppender} that counts events it didn't pass to the delegate appenders:
+ * discarded below the discarding threshold and, with neverBlock, lost on a full queue.
+ * Overflows are detected by the remaining capacity before the offer, so concurrent appends may be miscounted by a few.
+ */
+public class CountingAsyncAppender extends AsyncAppender {
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+
+    @Override
+    protected boolean isDiscardable(ILoggingEvent event) {
+        //called only when the queue is below the discarding threshold
+        var discardable = super.isDiscardable(event);
+        if (discardable) {
+            discarded.increment();
+        }
+        return discardable;
+    }
+
+    @Override
+    protected void preprocess(ILoggingEvent event) {
+        super.preprocess(event);
+        if (isNeverBlock() && getRemainingCapacity() == 0) {
+            overflowed.increment();
+        }
+    }
+
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+}
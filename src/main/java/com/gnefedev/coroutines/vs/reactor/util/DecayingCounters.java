@@ -0,0 +1,67 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed number of counters addressed by hash of a long key, every counter halves each half-life.
+ * <p>
+ * A slot packs the half-life epoch of its last update in the high 32 bits and the count in the low ones,
+ * decay is applied lazily on read and on increment, so nothing has to sweep the slots.
+ * Keys sharing a slot share the count.
+ */
+public class DecayingCounters {
+    private static final long COUNT_MASK = 0xFFFF_FFFFL;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long halfLifeNanos;
+    private final long origin = System.nanoTime();
+
+    public DecayingCounters(int size, Duration halfLife) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size should be positive, got " + size);
+        }
+        var slotCount = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+        this.slots = new AtomicLongArray(slotCount);
+        this.mask = slotCount - 1;
+        this.halfLifeNanos = Math.max(1, halfLife.toNanos());
+    }
+
+    /**
+     * @return the decayed count including this increment
+     */
+    public long increment(long key) {
+        var index = index(key);
+        var epoch = epoch();
+        while (true) {
+            var slot = slots.get(index);
+            var count = Math.min(decayed(slot, epoch) + 1, COUNT_MASK);
+            if (slots.compareAndSet(index, slot, epoch << 32 | count)) {
+                return count;
+            }
+        }
+    }
+
+    public long get(long key) {
+        return decayed(slots.get(index(key)), epoch());
+    }
+
+    private long epoch() {
+        return (System.nanoTime() - origin) / halfLifeNanos;
+    }
+
+    private int index(long key) {
+        //murmur3 finalizer, sequential ids should not land in neighbouring slots only
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private static long decayed(long slot, long epoch) {
+        //a concurrent increment may be from a newer epoch than the one read by this thread
+        var age = Math.max(0, epoch - (slot >>> 32));
+        return age >= 32 ? 0 : (slot & COUNT_MASK) >>> age;
+    }
+}
@@ -0,0 +1,110 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive concurrency limit driven by latency, in the spirit of Netflix's Gradient2.
+ * <p>
+ * Latency is tracked as a fast and a slow moving average. While the fast one stays within tolerance of the slow one
+ * the limit grows by its square root, the allowed queue; when requests slow down it shrinks by the ratio of the two.
+ * A dropped request, a timeout or a rejection downstream, cuts the limit multiplicatively like AIMD.
+ */
+public class GradientLimit {
+    private static final double SHORT_WINDOW_ALPHA = 2.0 / (10 + 1);
+    private static final double TOLERANCE = 1.5;
+    private static final double DROP_BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double smoothing;
+    private final double longWindowAlpha;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    //guarded by this
+    private double shortRtt;
+    private double longRtt;
+
+    /**
+     * @param smoothing  share of the computed limit taken on each sample, 0..1
+     * @param longWindow number of samples the slow latency average spans
+     */
+    public GradientLimit(int initialLimit, int minLimit, int maxLimit, double smoothing, int longWindow) {
+        if (minLimit <= 0 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits should be 0 < minLimit <= initialLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.smoothing = smoothing;
+        this.longWindowAlpha = 2.0 / (longWindow + 1);
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Takes a slot when fewer than limit requests are in flight, every acquired slot must be released once.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a slot of a request that completed normally, its latency adjusts the limit.
+     */
+    public void release(long rttNanos) {
+        int inFlightBefore = inFlight.getAndDecrement();
+        onSample(rttNanos, inFlightBefore);
+    }
+
+    /**
+     * Releases a slot of a request that timed out or was shed downstream.
+     */
+    public void releaseDropped() {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            limit = Math.max(minLimit, limit * DROP_BACKOFF);
+        }
+    }
+
+    /**
+     * Releases a slot of a request cancelled by the client, it tells nothing about the limit.
+     */
+    public void releaseIgnored() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private synchronized void onSample(long rttNanos, int inFlightBefore) {
+        if (longRtt == 0) {
+            shortRtt = rttNanos;
+            longRtt = rttNanos;
+            return;
+        }
+        shortRtt += (rttNanos - shortRtt) * SHORT_WINDOW_ALPHA;
+        longRtt += (rttNanos - longRtt) * longWindowAlpha;
+        if (longRtt > shortRtt * 2) {
+            //latency dropped for good, don't wait a whole long window to notice
+            longRtt = longRtt * 0.95;
+        }
+        if (inFlightBefore < limit / 2) {
+            //the app is not the bottleneck, the latency says nothing about a higher limit
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - smoothing) + newLimit * smoothing));
+    }
+}
@@ -0,0 +1,40 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets through at most {@code permits} log events per interval and counts the rest,
+ * so the next logged event can say how many were skipped.
+ * Windows are switched without a lock, a few extra events may pass at the border of two windows.
+ */
+public class LogRateLimiter {
+    private final int permits;
+    private final long intervalNanos;
+    private final AtomicLong window = new AtomicLong();
+    private final AtomicInteger used = new AtomicInteger();
+    private final LongAdder suppressed = new LongAdder();
+
+    public LogRateLimiter(int permits, Duration interval) {
+        this.permits = permits;
+        this.intervalNanos = Math.max(1, interval.toNanos());
+    }
+
+    /**
+     * @return number of events suppressed since the previous permitted one, -1 when this one should be suppressed too
+     */
+    public long acquire() {
+        var current = System.nanoTime() / intervalNanos;
+        var known = window.get();
+        if (current != known && window.compareAndSet(known, current)) {
+            used.set(0);
+        }
+        if (used.incrementAndGet() > permits) {
+            suppressed.increment();
+            return -1;
+        }
+        return suppressed.sumThenReset();
+    }
+}
@@ -3,23 +3,66 @@ package com.gnefedev.coroutines.vs.reactor.util;
 import org.slf4j.MDC;
 import reactor.core.publisher.Mono;
 import reactor.util.context.Context;
+import reactor.util.context.ContextView;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Function;
 
+/**
+ * MDC lives in the Reactor context and is set on the thread only where something is logged,
+ * so operators of a request stay fused and no thread is left with MDC of another request.
+ */
 public class LoggerHelper {
     private static final String MDC_ID_KEY = "MDC_context";
 
+    /**
+     * The MDC map of a context is never modified, a new entry makes a new map, so contexts can be shared between subscribers.
+     */
     public static Context addEntryToMDCContext(Context context, String key, String value) {
-        Map<String, String> MDCContext = Objects.requireNonNull(context.getOrDefault(MDC_ID_KEY, new HashMap<>()));
+        Map<String, String> MDCContext = new HashMap<>(context.getOrDefault(MDC_ID_KEY, Map.<String, String>of()));
         MDCContext.put(key, value);
-        return context.put(MDC_ID_KEY, MDCContext);
+        return context.put(MDC_ID_KEY, Map.copyOf(MDCContext));
     }
 
+    /**
+     * Logs with MDC of the subscriber, for logging inside operators.
+     */
+    public static Mono<Void> logWithMdc(Runnable logging) {
+        return Mono.deferContextual(context -> {
+            withMdc(context, logging::run);
+            return Mono.empty();
+        });
+    }
+
+    /**
+     * Runs the block with MDC from the context and puts back what the thread had, for blocking code
+     * started from a reactive chain.
+     */
+    public static <E extends Exception> void withMdc(ContextView context, Block<E> block) throws E {
+        Map<String, String> mdc = context.getOrDefault(MDC_ID_KEY, null);
+        if (mdc == null) {
+            block.run();
+            return;
+        }
+        var previous = MDC.getCopyOfContextMap();
+        MDC.setContextMap(mdc);
+        try {
+            block.run();
+        } finally {
+            if (previous == null) {
+                MDC.clear();
+            } else {
+                MDC.setContextMap(previous);
+            }
+        }
+    }
 
+    /**
+     * @deprecated sets MDC for the whole block and clears it after, use {@link #logWithMdc} where something is logged
+     */
+    @Deprecated
     public static <T, R> Function<T, Mono<R>> withMDC(Function<T, Mono<R>> block) {
         return value -> Mono.deferContextual(context -> {
             Optional<Map<String, String>> mdcContext = context.getOrEmpty(MDC_ID_KEY);
@@ -35,4 +78,9 @@ public class LoggerHelper {
             }
         });
     }
+
+    @FunctionalInterface
+    public interface Block<E extends Exception> {
+        void run() throws E;
+    }
 }
@@ -0,0 +1,41 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Dropped events and queue size of every {@link CountingAsyncAppender} of the root logger.
+ */
+@Component
+public class LoggingMetrics implements MeterBinder {
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (!(LoggerFactory.getILoggerFactory() instanceof LoggerContext)) {
+            return;
+        }
+        var root = ((LoggerContext) LoggerFactory.getILoggerFactory()).getLogger(Logger.ROOT_LOGGER_NAME);
+        root.iteratorForAppenders().forEachRemaining(appender -> {
+            if (!(appender instanceof CountingAsyncAppender)) {
+                return;
+            }
+            var async = (CountingAsyncAppender) appender;
+            FunctionCounter.builder("logback.events.dropped", async, CountingAsyncAppender::getDiscarded)
+                    .description("events discarded below the discarding threshold")
+                    .tags("appender", async.getName(), "reason", "discarded")
+                    .register(registry);
+            FunctionCounter.builder("logback.events.dropped", async, CountingAsyncAppender::getOverflowed)
+                    .description("events lost on a full queue")
+                    .tags("appender", async.getName(), "reason", "overflow")
+                    .register(registry);
+            Gauge.builder("logback.queue.size", async, CountingAsyncAppender::getNumberOfElementsInQueue)
+                    .tag("appender", async.getName())
+                    .register(registry);
+        });
+    }
+}
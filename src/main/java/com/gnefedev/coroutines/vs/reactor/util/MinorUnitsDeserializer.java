@@ -0,0 +1,36 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+
+import java.io.IOException;
+
+/**
+ * Reads an amount of minor units straight into long.
+ * Integers are read without BigDecimal, a decimal is accepted only when it is a whole number like {@code 100.00}.
+ */
+public class MinorUnitsDeserializer extends StdDeserializer<Long> {
+    public MinorUnitsDeserializer() {
+        super(Long.class);
+    }
+
+    @Override
+    public Long deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NUMBER_INT:
+                //fails with InputCoercionException out of long range
+                return parser.getLongValue();
+            case VALUE_NUMBER_FLOAT:
+                var decimal = parser.getDecimalValue();
+                try {
+                    return Money.toMinorUnits(decimal);
+                } catch (ArithmeticException e) {
+                    throw InvalidFormatException.from(parser, "amount should be a whole number of minor units", decimal, Long.class);
+                }
+            default:
+                return (Long) context.handleUnexpectedToken(Long.class, parser);
+        }
+    }
+}
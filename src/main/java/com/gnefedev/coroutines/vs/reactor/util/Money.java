@@ -0,0 +1,32 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import java.math.BigDecimal;
+
+/**
+ * Amounts are whole numbers of minor units in a long, the same as the bigint columns.
+ * Conversions from {@link BigDecimal} are exact: a fraction of a minor unit or a value out of long range is an error.
+ */
+public class Money {
+    private Money() {
+    }
+
+    /**
+     * @throws ArithmeticException when the amount has a fractional part or doesn't fit in long
+     */
+    public static long toMinorUnits(BigDecimal amount) {
+        return amount.longValueExact();
+    }
+
+    public static BigDecimal toBigDecimal(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits);
+    }
+
+    /**
+     * True when balance + amount doesn't fit in long.
+     */
+    public static boolean creditOverflows(long balance, long amount) {
+        var result = balance + amount;
+        //same check as Math.addExact, without the exception
+        return ((balance ^ result) & (amount ^ result)) < 0;
+    }
+}
@@ -0,0 +1,63 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Shares one in-flight call between concurrent callers with the same key, late callers get the outcome of the first one.
+ * The key is released as soon as the call terminates, so the next caller after that starts a new call.
+ */
+public class SingleFlight<K, V> {
+    private static final Abandoned ABANDONED = new Abandoned();
+
+    private final ConcurrentHashMap<K, Sinks.One<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    public Mono<V> execute(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            Sinks.One<V> flight = Sinks.one();
+            var existing = inFlight.putIfAbsent(key, flight);
+            if (existing != null) {
+                coalesced.increment();
+                //first caller went away before the outcome was known, somebody has to run the call again
+                return existing.asMono()
+                        .onErrorResume(Abandoned.class::isInstance, e -> execute(key, call));
+            }
+            return Mono.defer(call)
+                    .doOnSuccess(value -> {
+                        inFlight.remove(key, flight);
+                        if (value == null) {
+                            flight.tryEmitEmpty();
+                        } else {
+                            flight.tryEmitValue(value);
+                        }
+                    })
+                    .doOnError(e -> {
+                        inFlight.remove(key, flight);
+                        flight.tryEmitError(e);
+                    })
+                    .doOnCancel(() -> {
+                        inFlight.remove(key, flight);
+                        flight.tryEmitError(ABANDONED);
+                    });
+        });
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    private static class Abandoned extends RuntimeException {
+        Abandoned() {
+            super("in-flight call was cancelled", null, false, false);
+        }
+    }
+}
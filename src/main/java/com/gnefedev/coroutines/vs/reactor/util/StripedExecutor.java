@@ -0,0 +1,108 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs asynchronous tasks one after another per lane, the lane is chosen by hashing a key.
+ * A task for two keys holds both lanes, they are always taken from the lower to the higher index,
+ * so two such tasks can't wait for each other.
+ * <p>
+ * A lane holds at most maxQueuedPerLane tasks, running one included, a task over it fails with 503 at once.
+ */
+public class StripedExecutor implements Disposable {
+    private final Lane[] lanes;
+
+    public StripedExecutor(int laneCount, int maxQueuedPerLane) {
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException("laneCount should be positive");
+        }
+        if (maxQueuedPerLane <= 0) {
+            throw new IllegalArgumentException("maxQueuedPerLane should be positive");
+        }
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(maxQueuedPerLane);
+        }
+    }
+
+    public <T> Mono<T> execute(long key, Supplier<Mono<T>> task) {
+        return lanes[laneOf(key)].submit(task);
+    }
+
+    public <T> Mono<T> execute(long firstKey, long secondKey, Supplier<Mono<T>> task) {
+        int first = laneOf(firstKey);
+        int second = laneOf(secondKey);
+        if (first == second) {
+            return lanes[first].submit(task);
+        }
+        var lower = lanes[Math.min(first, second)];
+        var higher = lanes[Math.max(first, second)];
+        return lower.submit(() -> higher.submit(task));
+    }
+
+    int laneOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return Math.floorMod((int) (hash >>> 32), lanes.length);
+    }
+
+    @Override
+    public void dispose() {
+        for (Lane lane : lanes) {
+            lane.dispose();
+        }
+    }
+
+    private static class Lane implements Disposable {
+        private final int maxQueued;
+        /**
+         * The buffer of the sink is unbounded, tasks are counted here instead.
+         */
+        private final AtomicInteger queued = new AtomicInteger();
+        private final Sinks.Many<Mono<Void>> tasks = Sinks.many().unicast().onBackpressureBuffer();
+        private final Disposable subscription = tasks.asFlux()
+                .concatMap(Function.identity())
+                .subscribe();
+
+        Lane(int maxQueued) {
+            this.maxQueued = maxQueued;
+        }
+
+        <T> Mono<T> submit(Supplier<Mono<T>> task) {
+            return Mono.deferContextual(context -> {
+                if (queued.incrementAndGet() > maxQueued) {
+                    queued.decrementAndGet();
+                    return Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "lane is full, try later"));
+                }
+                Sinks.One<T> result = Sinks.one();
+                Mono<Void> run = Mono.defer(task)
+                        .contextWrite(context)
+                        .doOnSuccess(value -> {
+                            if (value == null) {
+                                result.tryEmitEmpty();
+                            } else {
+                                result.tryEmitValue(value);
+                            }
+                        })
+                        .doOnError(result::tryEmitError)
+                        .onErrorResume(e -> Mono.empty())
+                        .doFinally(__ -> queued.decrementAndGet())
+                        .then();
+                tasks.emitNext(run, (signalType, emitResult) -> emitResult == Sinks.EmitResult.FAIL_NON_SERIALIZED);
+                return result.asMono();
+            });
+        }
+
+        @Override
+        public void dispose() {
+            subscription.dispose();
+        }
+    }
+}
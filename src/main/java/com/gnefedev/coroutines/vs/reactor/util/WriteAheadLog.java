@@ -0,0 +1,188 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log in memory-mapped segment files.
+ * <p>
+ * Records are appended by one thread and forced to disk by {@link #flush} on another one,
+ * so all appends between two flushes share one fsync. A record is
+ * {@code [int length][int crc32][long sequence][payload]}, the length is written last
+ * and replay stops at the first record with a bad length or checksum, the torn tail of a crash.
+ */
+@Log4j2
+public class WriteAheadLog {
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    private static final String SUFFIX = ".wal";
+
+    private final Path dir;
+    private final int segmentSize;
+    private volatile MappedByteBuffer current;
+    private volatile long appendedSequence;
+    private volatile long durableSequence;
+    private volatile Sinks.Empty<Void> nextFlush = Sinks.empty();
+
+    public WriteAheadLog(Path dir, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize should be greater than " + HEADER_SIZE);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Passes payloads of all valid records with sequence greater than afterSequence to the consumer, in order.
+     * Must be called before the first {@link #append}.
+     *
+     * @return the last sequence found in the log, afterSequence when the log has nothing after it
+     */
+    public long replay(long afterSequence, RecordConsumer consumer) throws IOException {
+        long last = afterSequence;
+        segments:
+        for (var segment : segments()) {
+            ByteBuffer buffer;
+            try (var channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - Long.BYTES) {
+                    break;
+                }
+                var record = buffer.slice().limit(Long.BYTES + length);
+                if (crc != crc(record.duplicate())) {
+                    log.warn("torn record at {} of {}, replay stops", start, segment);
+                    break segments;
+                }
+                long sequence = record.getLong();
+                if (sequence > afterSequence) {
+                    consumer.accept(sequence, record.slice());
+                }
+                last = Math.max(last, sequence);
+                buffer.position(start + HEADER_SIZE + length);
+            }
+        }
+        appendedSequence = last;
+        durableSequence = last;
+        return last;
+    }
+
+    /**
+     * Appends the remaining bytes of the payload, only one thread may append.
+     * The record is durable after the next {@link #flush}, see {@link #awaitDurable}.
+     */
+    public void append(long sequence, ByteBuffer payload) {
+        int length = payload.remaining();
+        if (HEADER_SIZE + length > segmentSize) {
+            throw new IllegalArgumentException("record of " + length + " bytes doesn't fit a segment");
+        }
+        var segment = current;
+        if (segment == null || segment.remaining() < HEADER_SIZE + length) {
+            if (segment != null) {
+                segment.force();
+            }
+            segment = openSegment(sequence);
+            current = segment;
+        }
+        int start = segment.position();
+        segment.position(start + Integer.BYTES * 2);
+        segment.putLong(sequence);
+        segment.put(payload);
+        segment.putInt(start + Integer.BYTES, crc(segment.duplicate().position(start + Integer.BYTES * 2).limit(segment.position())));
+        segment.putInt(start, length);
+        appendedSequence = sequence;
+    }
+
+    /**
+     * Forces everything appended so far and completes the waiters of this flush.
+     */
+    public void flush() {
+        var flushing = nextFlush;
+        nextFlush = Sinks.empty();
+        //appended before the swap, so a waiter of the swapped flush is covered by this force
+        long upTo = appendedSequence;
+        var segment = current;
+        if (upTo > durableSequence && segment != null) {
+            segment.force();
+            durableSequence = upTo;
+        }
+        flushing.tryEmitEmpty();
+    }
+
+    /**
+     * Completes when the record with the sequence is forced to disk.
+     */
+    public Mono<Void> awaitDurable(long sequence) {
+        return Mono.defer(() -> {
+            if (durableSequence >= sequence) {
+                return Mono.empty();
+            }
+            var flush = nextFlush;
+            if (durableSequence >= sequence) {
+                return Mono.empty();
+            }
+            return flush.asMono().then(awaitDurable(sequence));
+        });
+    }
+
+    /**
+     * Deletes segments that have only records up to the sequence, the last segment is always kept.
+     */
+    public void truncate(long sequence) throws IOException {
+        var segments = segments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSequence(segments.get(i + 1)) - 1 <= sequence) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    private MappedByteBuffer openSegment(long firstSequence) {
+        var path = dir.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files
+                    .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        var name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static int crc(ByteBuffer bytes) {
+        var crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    public interface RecordConsumer {
+        void accept(long sequence, ByteBuffer payload);
+    }
+}
@@ -11,7 +11,72 @@ CREATE TABLE transaction
     amount          bigint,
     from_account_id long references account (id),
     to_account_id   long references account (id),
-    unique_key      varchar
+    unique_key      varchar,
+    created_at      timestamp default current_timestamp not null
 );
 
 CREATE UNIQUE INDEX transaction_unique_key ON transaction (unique_key);
+
+CREATE INDEX transaction_from_account ON transaction (from_account_id, id);
+CREATE INDEX transaction_to_account ON transaction (to_account_id, id);
+
+CREATE TABLE journal_pending
+(
+    id             serial primary key,
+    transaction_id bigint not null,
+    account_id     long   not null,
+    delta          bigint not null
+);
+
+CREATE INDEX journal_pending_account ON journal_pending (account_id);
+
+CREATE TABLE journal_lock
+(
+    id int primary key
+);
+
+INSERT INTO journal_lock (id) VALUES (1);
+
+CREATE TABLE write_behind_checkpoint
+(
+    id            int primary key,
+    last_sequence bigint not null
+);
+
+INSERT INTO write_behind_checkpoint (id, last_sequence) VALUES (1, 0);
+
+CREATE TABLE account_stripe
+(
+    account_id long references account (id),
+    stripe     int,
+    amount     bigint default 0 not null,
+    primary key (account_id, stripe)
+);
+
+CREATE TABLE reconciliation_checkpoint
+(
+    id                  int primary key,
+    last_transaction_id bigint not null
+);
+
+INSERT INTO reconciliation_checkpoint (id, last_transaction_id) VALUES (1, 0);
+
+CREATE TABLE reconciliation_gap
+(
+    transaction_id bigint primary key,
+    recorded_at    timestamp default current_timestamp not null
+);
+
+CREATE TABLE reconciliation_balance
+(
+    account_id long primary key,
+    expected   bigint not null
+);
+
+CREATE TABLE reconciliation_discrepancy
+(
+    account_id  long primary key,
+    expected    bigint not null,
+    actual      bigint not null,
+    detected_at timestamp default current_timestamp not null
+);
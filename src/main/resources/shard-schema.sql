@@ -0,0 +1,46 @@
+CREATE SEQUENCE IF NOT EXISTS account_id;
+
+CREATE TABLE IF NOT EXISTS account
+(
+    id      bigint primary key,
+    amount  bigint,
+    version int
+);
+
+CREATE TABLE IF NOT EXISTS transaction
+(
+    id              serial primary key,
+    amount          bigint,
+    from_account_id long,
+    to_account_id   long,
+    unique_key      varchar
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS transaction_unique_key ON transaction (unique_key);
+
+CREATE INDEX IF NOT EXISTS transaction_from_account ON transaction (from_account_id, id);
+CREATE INDEX IF NOT EXISTS transaction_to_account ON transaction (to_account_id, id);
+
+CREATE TABLE IF NOT EXISTS transfer_out
+(
+    unique_key      varchar not null,
+    from_account_id long    not null,
+    to_account_id   long    not null,
+    amount          bigint  not null,
+    state           varchar not null,
+    created_at      timestamp default current_timestamp not null
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS transfer_out_unique_key ON transfer_out (unique_key);
+CREATE INDEX IF NOT EXISTS transfer_out_state ON transfer_out (state, created_at);
+
+CREATE TABLE IF NOT EXISTS transfer_in
+(
+    unique_key      varchar not null,
+    from_account_id long    not null,
+    to_account_id   long    not null,
+    amount          bigint  not null,
+    state           varchar not null
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS transfer_in_unique_key ON transfer_in (unique_key);
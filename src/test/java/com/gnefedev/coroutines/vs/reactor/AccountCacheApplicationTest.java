@@ -0,0 +1,71 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.comparesEqualTo;
+
+@SpringBootTest(properties = {
+        "ledger.account-cache.enabled=true",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class AccountCacheApplicationTest extends ApplicationTest {
+    private final AccountRepository accountRepository;
+    private final WebTestClient webTestClient;
+    private final DatabaseClient databaseClient;
+
+    @Autowired
+    public AccountCacheApplicationTest(AccountRepository accountRepository, WebTestClient webTestClient, DatabaseClient databaseClient) {
+        super(accountRepository, webTestClient);
+        this.accountRepository = accountRepository;
+        this.webTestClient = webTestClient;
+        this.databaseClient = databaseClient;
+    }
+
+    @Test
+    public void staleSnapshotDoesNotRejectTransfer() {
+        var firstAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(10))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+        var secondAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.ZERO)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+        accountRepository.findById(firstAccount.getId()).block();
+
+        //credited by another writer, the snapshot still has 10
+        databaseClient.sql("UPDATE account SET amount = amount + 9000, version = version + 1 WHERE id = :id")
+                .bind("id", firstAccount.getId())
+                .fetch()
+                .rowsUpdated()
+                .block();
+
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .body(BodyInserters.fromValue(TransferRequest.builder()
+                        .fromAccountId(firstAccount.getId())
+                        .toAccountId(secondAccount.getId())
+                        .amount(BigDecimal.valueOf(50))
+                        .transactionKey(UUID.randomUUID().toString())
+                        .build()
+                ))
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(50)));
+    }
+}
@@ -1,6 +1,9 @@
 package com.gnefedev.coroutines.vs.reactor;
 
+import com.gnefedev.coroutines.vs.reactor.controllers.AccountResponse;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransactionResponse;
 import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferResult;
 import com.gnefedev.coroutines.vs.reactor.entities.Account;
 import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
 import lombok.RequiredArgsConstructor;
@@ -11,21 +14,29 @@ import org.junit.jupiter.api.function.Executable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.publisher.Flux;
 
 import java.math.BigDecimal;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.comparesEqualTo;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
 
 
 @RequiredArgsConstructor(onConstructor_ = {@Autowired})
-@SpringBootTest
+@SpringBootTest(properties = "ledger.statement.page-size=2")
 public class ApplicationTest {
     private final AccountRepository accountRepository;
     private final WebTestClient webTestClient;
@@ -90,6 +101,82 @@ public class ApplicationTest {
         assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.ZERO));
     }
 
+    @Test
+    public void amountInMinorUnits() {
+        var firstAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(100))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var secondAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.ZERO)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"transactionKey\":\"" + UUID.randomUUID() + "\",\"fromAccountId\":" + firstAccount.getId() + ",\"toAccountId\":" + secondAccount.getId() + ",\"amount\":10.5}")
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"transactionKey\":\"" + UUID.randomUUID() + "\",\"fromAccountId\":" + firstAccount.getId() + ",\"toAccountId\":" + secondAccount.getId() + ",\"amount\":10.00}")
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+
+        assertThat(accountRepository.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmountMinorUnits(), equalTo(90L));
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmountMinorUnits(), equalTo(10L));
+    }
+
+    @Test
+    @SneakyThrows
+    public void cborTransfer() {
+        var firstAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(100))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var secondAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.ZERO)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var cbor = Jackson2ObjectMapperBuilder.cbor().build();
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .contentType(MediaType.APPLICATION_CBOR)
+                .bodyValue(cbor.writeValueAsBytes(TransferRequest.builder()
+                        .fromAccountId(firstAccount.getId())
+                        .toAccountId(secondAccount.getId())
+                        .amountMinorUnits(40L)
+                        .transactionKey(UUID.randomUUID().toString())
+                        .build()))
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .contentType(MediaType.APPLICATION_CBOR)
+                .bodyValue(cbor.writeValueAsBytes(TransferRequest.builder()
+                        .fromAccountId(firstAccount.getId())
+                        .toAccountId(secondAccount.getId())
+                        .amountMinorUnits(40L)
+                        .transactionKey(" ")
+                        .build()))
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        assertThat(accountRepository.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmountMinorUnits(), equalTo(60L));
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmountMinorUnits(), equalTo(40L));
+    }
+
     @RepeatedTest(10)
     public void shouldNotGoBelowZeroWithParallelRequests() {
         var firstAccount = accountRepository.save(Account.builder()
@@ -209,6 +296,207 @@ public class ApplicationTest {
         assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(50)));
     }
 
+    @Test
+    public void bulkTransfer() {
+        var firstAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(100))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var secondAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.ZERO)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var transactionKey = UUID.randomUUID().toString();
+        var requests = Flux.just(
+                TransferRequest.builder()
+                        .fromAccountId(firstAccount.getId())
+                        .toAccountId(secondAccount.getId())
+                        .amount(BigDecimal.valueOf(60))
+                        .transactionKey(transactionKey)
+                        .build(),
+                TransferRequest.builder()
+                        .fromAccountId(firstAccount.getId())
+                        .toAccountId(secondAccount.getId())
+                        .amount(BigDecimal.valueOf(60))
+                        .transactionKey(UUID.randomUUID().toString())
+                        .build(),
+                TransferRequest.builder()
+                        .fromAccountId(firstAccount.getId())
+                        .toAccountId(secondAccount.getId())
+                        .amount(BigDecimal.valueOf(60))
+                        .transactionKey(transactionKey)
+                        .build()
+        );
+
+        var statuses = webTestClient.put()
+                .uri("/api/ledger/transfers")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .body(requests, TransferRequest.class)
+                .exchange()
+                .expectStatus().is2xxSuccessful()
+                .returnResult(TransferResult.class)
+                .getResponseBody()
+                .map(TransferResult::getStatus)
+                .collectList()
+                .block();
+
+        assertThat(statuses, contains(TransferResult.Status.APPLIED, TransferResult.Status.INSUFFICIENT_FUNDS, TransferResult.Status.DUPLICATE));
+
+        assertThat(accountRepository.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(40)));
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(60)));
+    }
+
+    @RepeatedTest(10)
+    public void bulkAndSingleTransfersShareSourceAccount() {
+        var firstAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(100))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var secondAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.ZERO)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var bulkStatuses = new CopyOnWriteArrayList<TransferResult.Status>();
+        var singleStatuses = new CopyOnWriteArrayList<HttpStatus>();
+
+        testConcurrently(
+                () -> bulkStatuses.addAll(webTestClient.put()
+                        .uri("/api/ledger/transfers")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .accept(MediaType.APPLICATION_NDJSON)
+                        .body(Flux.just(TransferRequest.builder()
+                                .fromAccountId(firstAccount.getId())
+                                .toAccountId(secondAccount.getId())
+                                .amount(BigDecimal.valueOf(100))
+                                .transactionKey(UUID.randomUUID().toString())
+                                .build()), TransferRequest.class)
+                        .exchange()
+                        .expectStatus().is2xxSuccessful()
+                        .returnResult(TransferResult.class)
+                        .getResponseBody()
+                        .map(TransferResult::getStatus)
+                        .collectList()
+                        .block()),
+                () -> singleStatuses.add(webTestClient.put()
+                        .uri("/api/ledger/transfer")
+                        .body(BodyInserters.fromValue(TransferRequest.builder()
+                                .fromAccountId(firstAccount.getId())
+                                .toAccountId(secondAccount.getId())
+                                .amount(BigDecimal.valueOf(100))
+                                .transactionKey(UUID.randomUUID().toString())
+                                .build()
+                        ))
+                        .exchange().returnResult(String.class)
+                        .getStatus())
+        );
+
+        var applied = bulkStatuses.stream().filter(status -> status == TransferResult.Status.APPLIED).count()
+                + singleStatuses.stream().filter(HttpStatus::is2xxSuccessful).count();
+        assertThat(applied, equalTo(1L));
+
+        assertThat(accountRepository.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.ZERO));
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(100)));
+    }
+
+    @Test
+    public void accountStatement() {
+        var firstAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(1000))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var secondAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.ZERO)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        for (int i = 0; i < 5; i++) {
+            transfer(firstAccount.getId(), secondAccount.getId(), 10);
+        }
+        transfer(secondAccount.getId(), firstAccount.getId(), 5);
+
+        var account = webTestClient.get()
+                .uri("/api/ledger/accounts/{id}", firstAccount.getId())
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(AccountResponse.class)
+                .returnResult()
+                .getResponseBody();
+        assertThat(account.getAmount(), equalTo(955L));
+
+        var history = statement(firstAccount.getId(), 0);
+        assertThat(history.stream().map(TransactionResponse::getAmount).collect(Collectors.toList()), contains(10L, 10L, 10L, 10L, 10L, 5L));
+        assertThat(history.stream().map(TransactionResponse::getId).sorted().collect(Collectors.toList()), equalTo(history.stream().map(TransactionResponse::getId).collect(Collectors.toList())));
+
+        var rest = statement(firstAccount.getId(), history.get(2).getId());
+        assertThat(rest.stream().map(TransactionResponse::getId).collect(Collectors.toList()), equalTo(history.subList(3, 6).stream().map(TransactionResponse::getId).collect(Collectors.toList())));
+
+        webTestClient.get()
+                .uri("/api/ledger/accounts/{id}/transactions", Long.MAX_VALUE)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    private void transfer(long fromAccountId, long toAccountId, long amount) {
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .body(BodyInserters.fromValue(TransferRequest.builder()
+                        .fromAccountId(fromAccountId)
+                        .toAccountId(toAccountId)
+                        .amountMinorUnits(amount)
+                        .transactionKey(UUID.randomUUID().toString())
+                        .build()
+                ))
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+    }
+
+    private List<TransactionResponse> statement(long accountId, long after) {
+        return webTestClient.get()
+                .uri("/api/ledger/accounts/{id}/transactions?after={after}", accountId, after)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(TransactionResponse.class)
+                .getResponseBody()
+                .collectList()
+                .block();
+    }
+
+    @Test
+    public void prometheusScrape() {
+        var scrape = webTestClient.get()
+                .uri("/actuator/prometheus")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertThat(scrape, containsString("ledger_transfer_retries_total"));
+        assertThat(scrape, containsString("r2dbc_pool_acquired"));
+        assertThat(scrape, containsString("ledger_startup_time_to_ready_seconds"));
+    }
+
+    @Test
+    public void readyAfterWarmup() {
+        webTestClient.get()
+                .uri("/actuator/health/readiness")
+                .exchange()
+                .expectStatus().isOk();
+    }
 
     @SneakyThrows
     public static void testConcurrently(Executable... blocks) {
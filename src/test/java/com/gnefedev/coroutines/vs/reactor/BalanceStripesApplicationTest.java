@@ -0,0 +1,131 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.services.LedgerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.comparesEqualTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+@SpringBootTest(properties = {
+        "ledger.balance-stripes.enabled=true",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class BalanceStripesApplicationTest extends ApplicationTest {
+    private final AccountRepository accountRepository;
+    private final WebTestClient webTestClient;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public BalanceStripesApplicationTest(AccountRepository accountRepository, WebTestClient webTestClient, MeterRegistry meterRegistry) {
+        super(accountRepository, webTestClient);
+        this.accountRepository = accountRepository;
+        this.webTestClient = webTestClient;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Test
+    public void hotAccountReceivesAndSpendsThroughStripes() {
+        var payer = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(100))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var merchant = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(10))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        webTestClient.put()
+                .uri("/api/ledger/accounts/{id}/hot?stripes=4", merchant.getId())
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+
+        for (int i = 0; i < 3; i++) {
+            transfer(payer.getId(), merchant.getId(), BigDecimal.valueOf(30));
+        }
+        assertThat(accountRepository.findById(merchant.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(100)));
+
+        //more than the row has, the rest comes from stripes
+        transfer(merchant.getId(), payer.getId(), BigDecimal.valueOf(95));
+
+        assertThat(accountRepository.findById(payer.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(105)));
+        assertThat(accountRepository.findById(merchant.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(5)));
+    }
+
+    @Test
+    public void concurrentCreditsOfHotAccountWithoutRetries() {
+        var merchant = accountRepository.save(Account.builder()
+                .amount(BigDecimal.ZERO)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        webTestClient.put()
+                .uri("/api/ledger/accounts/{id}/hot?stripes=8", merchant.getId())
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+
+        var retriesBefore = meterRegistry.get(LedgerMetrics.RETRIES).counter().count();
+        var statuses = new CopyOnWriteArrayList<HttpStatus>();
+        var transfers = new Executable[50];
+        for (int i = 0; i < transfers.length; i++) {
+            var payer = accountRepository.save(Account.builder()
+                    .amount(BigDecimal.valueOf(10))
+                    .version(0)
+                    .build()
+            ).blockOptional().orElseThrow();
+            transfers[i] = () -> statuses.add(webTestClient.put()
+                    .uri("/api/ledger/transfer")
+                    .body(BodyInserters.fromValue(TransferRequest.builder()
+                            .fromAccountId(payer.getId())
+                            .toAccountId(merchant.getId())
+                            .amount(BigDecimal.valueOf(10))
+                            .transactionKey(UUID.randomUUID().toString())
+                            .build()
+                    ))
+                    .exchange().returnResult(String.class)
+                    .getStatus());
+        }
+
+        testConcurrently(transfers);
+
+        assertThat(statuses, hasSize(transfers.length));
+        assertThat(statuses, everyItem(is(HttpStatus.OK)));
+        assertThat(meterRegistry.get(LedgerMetrics.RETRIES).counter().count(), equalTo(retriesBefore));
+        assertThat(accountRepository.findById(merchant.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(500)));
+    }
+
+    private void transfer(long fromAccountId, long toAccountId, BigDecimal amount) {
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .body(BodyInserters.fromValue(TransferRequest.builder()
+                        .fromAccountId(fromAccountId)
+                        .toAccountId(toAccountId)
+                        .amount(amount)
+                        .transactionKey(UUID.randomUUID().toString())
+                        .build()
+                ))
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+    }
+}
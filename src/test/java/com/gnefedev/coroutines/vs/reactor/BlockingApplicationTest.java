@@ -0,0 +1,19 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+@SpringBootTest(properties = {
+        "ledger.engine=blocking",
+        "spring.r2dbc.username=sa",
+        "spring.r2dbc.url=r2dbc:h2:mem:///blocking-ledger?options=DB_CLOSE_DELAY=-1",
+        "ledger.blocking.jdbc-url=jdbc:h2:mem:blocking-ledger;DB_CLOSE_DELAY=-1"
+})
+public class BlockingApplicationTest extends ApplicationTest {
+    @Autowired
+    public BlockingApplicationTest(AccountRepository accountRepository, WebTestClient webTestClient) {
+        super(accountRepository, webTestClient);
+    }
+}
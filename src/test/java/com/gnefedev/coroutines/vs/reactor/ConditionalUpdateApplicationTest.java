@@ -0,0 +1,17 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+@SpringBootTest(properties = {
+        "ledger.engine=conditional",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class ConditionalUpdateApplicationTest extends ApplicationTest {
+    @Autowired
+    public ConditionalUpdateApplicationTest(AccountRepository accountRepository, WebTestClient webTestClient) {
+        super(accountRepository, webTestClient);
+    }
+}
@@ -0,0 +1,70 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.services.GroupCommitLedger;
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.comparesEqualTo;
+
+/**
+ * Batches of one transfer come out of the queue faster than they commit.
+ */
+@RequiredArgsConstructor(onConstructor_ = {@Autowired})
+@SpringBootTest(properties = {
+        "ledger.engine=group-commit",
+        "ledger.group-commit.max-batch-size=1",
+        "ledger.group-commit.max-wait-micros=1",
+        "ledger.group-commit.max-pending-batches=4",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class GroupCommitOverloadApplicationTest {
+    private static final int TRANSFERS = 500;
+
+    private final AccountRepository accountRepository;
+    private final GroupCommitLedger groupCommitLedger;
+
+    @Test
+    public void everyCallerIsAnsweredWhenCommitsFallBehind() {
+        var firstAccount = account(TRANSFERS + 1);
+        var secondAccount = account(0);
+
+        var applied = Flux.range(0, TRANSFERS)
+                .flatMap(i -> groupCommitLedger.transfer(UUID.randomUUID().toString(), firstAccount.getId(), secondAccount.getId(), 1)
+                        .thenReturn(1)
+                        .onErrorResume(
+                                e -> e instanceof ResponseStatusException && ((ResponseStatusException) e).getStatus() == HttpStatus.SERVICE_UNAVAILABLE,
+                                e -> Mono.just(0)
+                        ), TRANSFERS)
+                .reduce(0, Integer::sum)
+                .block(Duration.ofSeconds(30));
+
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(applied)));
+        assertThat(accountRepository.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(TRANSFERS + 1 - applied)));
+
+        //the pipeline is still running
+        groupCommitLedger.transfer(UUID.randomUUID().toString(), firstAccount.getId(), secondAccount.getId(), 1)
+                .block(Duration.ofSeconds(5));
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(applied + 1)));
+    }
+
+    private Account account(long amount) {
+        return accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(amount))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+    }
+}
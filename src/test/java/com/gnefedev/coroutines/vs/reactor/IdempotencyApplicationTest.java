@@ -0,0 +1,115 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferResult;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.publisher.Flux;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.comparesEqualTo;
+import static org.hamcrest.Matchers.contains;
+
+/**
+ * Transfers committed by another instance, or by this one before a restart, are unknown to the local Bloom filter.
+ */
+@RequiredArgsConstructor(onConstructor_ = {@Autowired})
+@SpringBootTest
+public class IdempotencyApplicationTest {
+    private final AccountRepository accountRepository;
+    private final DatabaseClient databaseClient;
+    private final WebTestClient webTestClient;
+
+    @Test
+    public void retryOfTransferCommittedElsewhereSucceeds() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        var transactionKey = UUID.randomUUID().toString();
+        commitElsewhere(transactionKey, firstAccount.getId(), secondAccount.getId(), 100);
+
+        webTestClient.put()
+                .uri("/api/ledger/transfer")
+                .body(BodyInserters.fromValue(request(transactionKey, firstAccount.getId(), secondAccount.getId())))
+                .exchange()
+                .expectStatus().is2xxSuccessful();
+
+        assertThat(accountRepository.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.ZERO));
+        assertThat(accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(100)));
+    }
+
+    @Test
+    public void bulkRetryOfTransferCommittedElsewhereIsDuplicate() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        var transactionKey = UUID.randomUUID().toString();
+        commitElsewhere(transactionKey, firstAccount.getId(), secondAccount.getId(), 100);
+
+        var statuses = webTestClient.put()
+                .uri("/api/ledger/transfers")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .body(Flux.just(request(transactionKey, firstAccount.getId(), secondAccount.getId())), TransferRequest.class)
+                .exchange()
+                .expectStatus().is2xxSuccessful()
+                .returnResult(TransferResult.class)
+                .getResponseBody()
+                .map(TransferResult::getStatus)
+                .collectList()
+                .block();
+
+        assertThat(statuses, contains(TransferResult.Status.DUPLICATE));
+        assertThat(accountRepository.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.ZERO));
+    }
+
+    private Account account(long amount) {
+        return accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(amount))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+    }
+
+    /**
+     * Writes the transfer the way another instance would, bypassing the local idempotency keys.
+     */
+    private void commitElsewhere(String transactionKey, long fromAccountId, long toAccountId, long amount) {
+        databaseClient.sql("INSERT INTO transaction (amount, from_account_id, to_account_id, unique_key) VALUES (:amount, :from, :to, :key)")
+                .bind("amount", amount)
+                .bind("from", fromAccountId)
+                .bind("to", toAccountId)
+                .bind("key", transactionKey)
+                .fetch()
+                .rowsUpdated()
+                .then(databaseClient.sql("UPDATE account SET amount = amount - :amount, version = version + 1 WHERE id = :id")
+                        .bind("amount", amount)
+                        .bind("id", fromAccountId)
+                        .fetch()
+                        .rowsUpdated())
+                .then(databaseClient.sql("UPDATE account SET amount = amount + :amount, version = version + 1 WHERE id = :id")
+                        .bind("amount", amount)
+                        .bind("id", toAccountId)
+                        .fetch()
+                        .rowsUpdated())
+                .block();
+    }
+
+    private static TransferRequest request(String transactionKey, long fromAccountId, long toAccountId) {
+        return TransferRequest.builder()
+                .transactionKey(transactionKey)
+                .fromAccountId(fromAccountId)
+                .toAccountId(toAccountId)
+                .amount(BigDecimal.valueOf(100))
+                .build();
+    }
+}
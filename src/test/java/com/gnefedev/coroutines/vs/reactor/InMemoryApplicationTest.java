@@ -0,0 +1,19 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+@SpringBootTest(properties = {
+        "ledger.engine=in-memory",
+        "ledger.in-memory.wal-dir=${java.io.tmpdir}/ledger-wal-${random.uuid}",
+        "ledger.in-memory.segment-size=1MB",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class InMemoryApplicationTest extends ApplicationTest {
+    @Autowired
+    public InMemoryApplicationTest(AccountRepository accountRepository, WebTestClient webTestClient) {
+        super(accountRepository, webTestClient);
+    }
+}
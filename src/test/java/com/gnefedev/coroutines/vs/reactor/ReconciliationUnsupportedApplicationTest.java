@@ -0,0 +1,32 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+/**
+ * Same properties as {@link InMemoryApplicationTest}, so the application context is shared.
+ */
+@RequiredArgsConstructor(onConstructor_ = {@Autowired})
+@SpringBootTest(properties = {
+        "ledger.engine=in-memory",
+        "ledger.in-memory.wal-dir=${java.io.tmpdir}/ledger-wal-${random.uuid}",
+        "ledger.in-memory.segment-size=1MB",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class ReconciliationUnsupportedApplicationTest {
+    private final WebTestClient webTestClient;
+
+    @Test
+    public void discrepanciesAreNotImplementedForInMemoryEngine() {
+        webTestClient.get()
+                .uri("/api/ledger/reconciliation/discrepancies")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.NOT_IMPLEMENTED);
+    }
+}
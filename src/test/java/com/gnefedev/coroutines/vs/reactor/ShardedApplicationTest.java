@@ -0,0 +1,23 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+/**
+ * Accounts are saved to the shards in turn, so transfers between two accounts of a test cross shards.
+ */
+@SpringBootTest(properties = {
+        "ledger.engine=sharded",
+        "ledger.sharding.urls[0]=r2dbc:pool:h2:mem:///ledger-shard-0?options=DB_CLOSE_DELAY=-1",
+        "ledger.sharding.urls[1]=r2dbc:pool:h2:mem:///ledger-shard-1?options=DB_CLOSE_DELAY=-1",
+        "ledger.sharding.urls[2]=r2dbc:pool:h2:mem:///ledger-shard-2?options=DB_CLOSE_DELAY=-1",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class ShardedApplicationTest extends ApplicationTest {
+    @Autowired
+    public ShardedApplicationTest(AccountRepository accountRepository, WebTestClient webTestClient) {
+        super(accountRepository, webTestClient);
+    }
+}
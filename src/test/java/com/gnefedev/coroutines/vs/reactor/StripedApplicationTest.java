@@ -0,0 +1,81 @@
+package com.gnefedev.coroutines.vs.reactor;
+
+import com.gnefedev.coroutines.vs.reactor.controllers.TransferRequest;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.services.LedgerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.comparesEqualTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+@SpringBootTest(properties = {
+        "ledger.engine=striped",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class StripedApplicationTest extends ApplicationTest {
+    private final AccountRepository accountRepository;
+    private final WebTestClient webTestClient;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public StripedApplicationTest(AccountRepository accountRepository, WebTestClient webTestClient, MeterRegistry meterRegistry) {
+        super(accountRepository, webTestClient);
+        this.accountRepository = accountRepository;
+        this.webTestClient = webTestClient;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Test
+    public void hotAccountWithoutConflicts() {
+        var hotAccount = accountRepository.save(Account.builder()
+                .amount(BigDecimal.valueOf(1000))
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+
+        var retriesBefore = meterRegistry.get(LedgerMetrics.RETRIES).counter().count();
+        var statuses = new CopyOnWriteArrayList<HttpStatus>();
+        var transfers = new Executable[20];
+        for (int i = 0; i < transfers.length; i++) {
+            var targetAccount = accountRepository.save(Account.builder()
+                    .amount(BigDecimal.ZERO)
+                    .version(0)
+                    .build()
+            ).blockOptional().orElseThrow();
+            transfers[i] = () -> statuses.add(webTestClient.put()
+                    .uri("/api/ledger/transfer")
+                    .body(BodyInserters.fromValue(TransferRequest.builder()
+                            .fromAccountId(hotAccount.getId())
+                            .toAccountId(targetAccount.getId())
+                            .amount(BigDecimal.valueOf(10))
+                            .transactionKey(UUID.randomUUID().toString())
+                            .build()
+                    ))
+                    .exchange().returnResult(String.class)
+                    .getStatus());
+        }
+
+        testConcurrently(transfers);
+
+        assertThat(statuses, hasSize(transfers.length));
+        assertThat(statuses, everyItem(is(HttpStatus.OK)));
+        assertThat(meterRegistry.get(LedgerMetrics.RETRIES).counter().count(), equalTo(retriesBefore));
+        assertThat(accountRepository.findById(hotAccount.getId()).blockOptional().orElseThrow().getAmount(), comparesEqualTo(BigDecimal.valueOf(800)));
+    }
+}
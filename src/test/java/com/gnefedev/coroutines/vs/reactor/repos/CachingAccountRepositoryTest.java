@@ -0,0 +1,164 @@
+package com.gnefedev.coroutines.vs.reactor.repos;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CachingAccountRepositoryTest {
+    private static final long ID = 1;
+
+    private final Rows rows = new Rows();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CachingAccountRepository repository = new CachingAccountRepository(rows, properties(2), meterRegistry);
+
+    @Test
+    public void transferPutsTheNewSnapshot() {
+        rows.put(ID, 100, 0);
+        repository.findById(ID).block();
+
+        repository.transferAmount(ID, 0, -30).block();
+
+        var account = repository.findById(ID).block();
+        assertThat(account.getAmountMinorUnits(), equalTo(70L));
+        assertThat(account.getVersion(), equalTo(1));
+        assertThat(rows.reads.get(), equalTo(1));
+    }
+
+    @Test
+    public void transferOnOtherVersionDropsTheSnapshot() {
+        rows.put(ID, 100, 0);
+        repository.findById(ID).block();
+        //written by something else, the snapshot is behind
+        rows.put(ID, 150, 1);
+
+        repository.transferAmount(ID, 1, -30).block();
+
+        assertThat(repository.findById(ID).block().getAmountMinorUnits(), equalTo(120L));
+        assertThat(rows.reads.get(), equalTo(2));
+    }
+
+    @Test
+    public void conflictDropsTheSnapshot() {
+        rows.put(ID, 100, 0);
+        repository.findById(ID).block();
+        rows.put(ID, 150, 1);
+
+        assertThrows(OptimisticLockException.class, () -> repository.transferAmount(ID, 0, -30).block());
+
+        assertThat(repository.findById(ID).block().getAmountMinorUnits(), equalTo(150L));
+        assertThat(rows.reads.get(), equalTo(2));
+        assertThat(meterRegistry.get("ledger.account_cache.conflicts").counter().count(), equalTo(1.0));
+    }
+
+    @Test
+    public void reloadReplacesTheSnapshot() {
+        rows.put(ID, 100, 0);
+        repository.findById(ID).block();
+        rows.put(ID, 150, 1);
+
+        assertThat(repository.reloadById(ID).block().getAmountMinorUnits(), equalTo(150L));
+        assertThat(repository.findById(ID).block().getAmountMinorUnits(), equalTo(150L));
+        assertThat(rows.reads.get(), equalTo(2));
+    }
+
+    @Test
+    public void hitsAndMissesAreMeasured() {
+        rows.put(ID, 100, 0);
+
+        repository.findById(ID).block();
+        repository.findById(ID).block();
+        repository.findById(ID).block();
+
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "accounts").tag("result", "hit").functionCounter().count(), equalTo(2.0));
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "accounts").tag("result", "miss").functionCounter().count(), equalTo(1.0));
+    }
+
+    @Test
+    public void evictionsAreMeasured() throws InterruptedException {
+        for (long id = 1; id <= 10; id++) {
+            rows.put(id, 100, 0);
+            repository.findById(id).block();
+        }
+
+        //the size is enforced by the maintenance Caffeine runs on its executor
+        var evictions = meterRegistry.get("cache.evictions").tag("cache", "accounts").functionCounter();
+        for (int i = 0; i < 100 && evictions.count() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(evictions.count(), greaterThan(0.0));
+    }
+
+    private static LedgerProperties properties(long maxSize) {
+        var properties = new LedgerProperties();
+        properties.getAccountCache().setEnabled(true);
+        properties.getAccountCache().setMaxSize(maxSize);
+        return properties;
+    }
+
+    /**
+     * Account rows with versions, as the database keeps them.
+     */
+    private static class Rows implements AccountRepository {
+        private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+        private final AtomicInteger reads = new AtomicInteger();
+
+        void put(long id, long amount, int version) {
+            accounts.put(id, Account.builder().id(id).amountMinorUnits(amount).version(version).build());
+        }
+
+        @Override
+        public Mono<Account> save(Account account) {
+            return Mono.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Mono<Void> transferAmount(long id, int version, long toTransfer) {
+            return Mono.defer(() -> {
+                var account = accounts.get(id);
+                if (account == null || account.getVersion() != version) {
+                    return Mono.error(new OptimisticLockException());
+                }
+                put(id, account.getAmountMinorUnits() + toTransfer, version + 1);
+                return Mono.empty();
+            });
+        }
+
+        @Override
+        public Mono<Boolean> withdraw(long id, long amount) {
+            return Mono.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Mono<Boolean> deposit(long id, long amount) {
+            return Mono.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Mono<Account> findById(long id) {
+            return Mono.fromSupplier(() -> {
+                reads.incrementAndGet();
+                return accounts.get(id);
+            });
+        }
+
+        @Override
+        public Flux<Account> findAllByIdIn(Collection<Long> ids) {
+            return Flux.fromIterable(ids)
+                    .flatMap(this::findById);
+        }
+    }
+}
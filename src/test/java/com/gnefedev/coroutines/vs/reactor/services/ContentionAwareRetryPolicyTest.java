@@ -0,0 +1,80 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class ContentionAwareRetryPolicyTest {
+    private static final Duration BASE_DELAY = Duration.ofMillis(1);
+    private static final long HOT = 1;
+    private static final long COLD = 2;
+
+    private final ContentionAwareRetryPolicy policy = new ContentionAwareRetryPolicy(properties(), new SimpleMeterRegistry());
+
+    @Test
+    public void delayGrowsWithConflicts() {
+        heat(HOT);
+
+        assertThat(firstDelay(COLD), lessThanOrEqualTo(BASE_DELAY));
+        assertThat(firstDelay(HOT), greaterThan(BASE_DELAY));
+    }
+
+    @Test
+    public void contendedTransferIsRetriedMore() {
+        heat(HOT);
+
+        assertThat(retries(HOT), greaterThan(retries(COLD)));
+    }
+
+    @Test
+    public void delayDecaysBack() throws InterruptedException {
+        heat(HOT);
+        assertThat(firstDelay(HOT), greaterThan(BASE_DELAY));
+
+        //ten half-lives, 64 conflicts are gone
+        Thread.sleep(1_000);
+
+        assertThat(firstDelay(HOT), lessThanOrEqualTo(BASE_DELAY));
+    }
+
+    /**
+     * Records 63 conflicts, the next attempt counts the 64th one.
+     */
+    private void heat(long accountId) {
+        for (int i = 0; i < 63; i++) {
+            policy.begin(accountId).nextDelay();
+        }
+    }
+
+    private Duration firstDelay(long accountId) {
+        return policy.begin(accountId).nextDelay().orElseThrow();
+    }
+
+    private int retries(long accountId) {
+        var attempts = policy.begin(accountId);
+        int retries = 0;
+        while (attempts.nextDelay().isPresent()) {
+            retries++;
+        }
+        return retries;
+    }
+
+    private static LedgerProperties properties() {
+        var properties = new LedgerProperties();
+        var retry = properties.getRetry();
+        retry.setMinRetries(3);
+        retry.setMaxRetries(10);
+        retry.setBaseDelay(BASE_DELAY);
+        retry.setMaxDelay(Duration.ofSeconds(1));
+        //delays aren't slept here, so the budget is never reached
+        retry.setBudget(Duration.ofMinutes(1));
+        retry.setConflictHalfLife(Duration.ofMillis(100));
+        return properties;
+    }
+}
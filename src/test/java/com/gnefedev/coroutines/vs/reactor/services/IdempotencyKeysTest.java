@@ -0,0 +1,101 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IdempotencyKeysTest {
+    private final TransactionRepository transactionRepository = mock(TransactionRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final IdempotencyKeys idempotencyKeys = new IdempotencyKeys(transactionRepository, new LedgerProperties(), meterRegistry);
+
+    @Test
+    public void committedKeyIsAnsweredFromCache() {
+        idempotencyKeys.markCommitted("committed");
+
+        assertThat(idempotencyKeys.isCommitted("committed").block(), equalTo(true));
+        assertThat(count("hit"), equalTo(1.0));
+        verify(transactionRepository, never()).findByUniqueKey(anyString());
+    }
+
+    @Test
+    public void unknownKeyIsANewOneWithoutLookup() {
+        assertThat(idempotencyKeys.isCommitted("new").block(), equalTo(false));
+        assertThat(count("miss"), equalTo(1.0));
+        verify(transactionRepository, never()).findByUniqueKey(anyString());
+    }
+
+    @Test
+    public void keyInFilterOnlyIsLookedUp() {
+        var keys = new IdempotencyKeys(transactionRepository, filterOnly(), meterRegistry);
+        keys.markCommitted("committed");
+        when(transactionRepository.findByUniqueKey("committed")).thenReturn(Mono.just(transaction("committed")));
+
+        assertThat(keys.isCommitted("committed").block(), equalTo(true));
+        assertThat(count("lookup"), equalTo(1.0));
+    }
+
+    @Test
+    public void newKeyPassingTheFilterIsAFalsePositive() {
+        var properties = filterOnly();
+        //a filter of 64 bits, one of a few dozen other keys collides with the committed one
+        properties.getIdempotency().setFilterCapacity(1);
+        properties.getIdempotency().setFilterFalsePositiveProbability(0.99);
+        var keys = new IdempotencyKeys(transactionRepository, properties, meterRegistry);
+        keys.markCommitted("committed");
+        var other = IntStream.range(0, 10_000)
+                .mapToObj(i -> "other-" + i)
+                .filter(keys::mightBeCommitted)
+                .findFirst()
+                .orElseThrow();
+        when(transactionRepository.findByUniqueKey(other)).thenReturn(Mono.empty());
+
+        assertThat(keys.isCommitted(other).block(), equalTo(false));
+        assertThat(count("false_positive"), equalTo(1.0));
+    }
+
+    @Test
+    public void keyCommittedBeforeRestartIsFoundOnRecheck() {
+        //a fresh instance, the key was committed by the previous one
+        when(transactionRepository.findByUniqueKey("committed")).thenReturn(Mono.just(transaction("committed")));
+
+        assertThat(idempotencyKeys.isCommitted("committed").block(), equalTo(false));
+        assertThat(idempotencyKeys.recheck("committed").block(), equalTo(true));
+        assertThat(count("stale_miss"), equalTo(1.0));
+        assertThat(idempotencyKeys.isCommitted("committed").block(), equalTo(true));
+    }
+
+    /**
+     * Entries of the cache expire at once, the filter keeps them.
+     */
+    private static LedgerProperties filterOnly() {
+        var properties = new LedgerProperties();
+        properties.getIdempotency().setCacheTtl(Duration.ZERO);
+        return properties;
+    }
+
+    private double count(String result) {
+        return meterRegistry.get("ledger.idempotency").tag("result", result).counter().count();
+    }
+
+    private static Transaction transaction(String uniqueKey) {
+        return Transaction.builder()
+                .uniqueKey(uniqueKey)
+                .amountMinorUnits(1)
+                .build();
+    }
+}
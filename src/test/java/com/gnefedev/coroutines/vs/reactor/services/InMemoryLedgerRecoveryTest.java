@@ -0,0 +1,114 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.WriteBehindRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Starts a second ledger on the log of the first one, as a restarted process would.
+ */
+@SpringBootTest(properties = {
+        "ledger.engine=in-memory",
+        "ledger.in-memory.wal-dir=${java.io.tmpdir}/ledger-wal-${random.uuid}",
+        "ledger.in-memory.segment-size=1MB",
+        "ledger.in-memory.snapshot-interval=1h",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class InMemoryLedgerRecoveryTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final InMemoryLedger inMemoryLedger;
+    private final AccountRepository accountRepository;
+    private final AccountRepository databaseAccounts;
+    private final TransactionRepository transactionRepository;
+    private final WriteBehindRepository writeBehindRepository;
+    private final IdempotencyKeys idempotencyKeys;
+    private final TransactionalOperator transactionalOperator;
+    private final LedgerMetrics ledgerMetrics;
+    private final TransferLog transferLog;
+    private final LedgerProperties properties;
+
+    @Autowired
+    public InMemoryLedgerRecoveryTest(
+            InMemoryLedger inMemoryLedger,
+            AccountRepository accountRepository,
+            @Qualifier("accountRepository") AccountRepository databaseAccounts,
+            TransactionRepository transactionRepository,
+            WriteBehindRepository writeBehindRepository,
+            IdempotencyKeys idempotencyKeys,
+            TransactionalOperator transactionalOperator,
+            LedgerMetrics ledgerMetrics,
+            TransferLog transferLog,
+            LedgerProperties properties
+    ) {
+        this.inMemoryLedger = inMemoryLedger;
+        this.accountRepository = accountRepository;
+        this.databaseAccounts = databaseAccounts;
+        this.transactionRepository = transactionRepository;
+        this.writeBehindRepository = writeBehindRepository;
+        this.idempotencyKeys = idempotencyKeys;
+        this.transactionalOperator = transactionalOperator;
+        this.ledgerMetrics = ledgerMetrics;
+        this.transferLog = transferLog;
+        this.properties = properties;
+    }
+
+    @Test
+    public void restartRecoversSnapshotAndLogAfterIt() throws Exception {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        var beforeSnapshot = UUID.randomUUID().toString();
+        var afterSnapshot = UUID.randomUUID().toString();
+
+        inMemoryLedger.transfer(beforeSnapshot, firstAccount.getId(), secondAccount.getId(), 10).block(TIMEOUT);
+        inMemoryLedger.snapshot().block(TIMEOUT);
+        inMemoryLedger.transfer(afterSnapshot, firstAccount.getId(), secondAccount.getId(), 20).block(TIMEOUT);
+        inMemoryLedger.stop();
+
+        var restarted = new InMemoryLedger(
+                databaseAccounts, transactionRepository, writeBehindRepository, idempotencyKeys, transactionalOperator, ledgerMetrics, transferLog, properties
+        );
+        restarted.start();
+        try {
+            assertThat(balance(restarted, firstAccount.getId()), equalTo(70L));
+            assertThat(balance(restarted, secondAccount.getId()), equalTo(30L));
+
+            //the key is known again, a retry changes nothing
+            restarted.transfer(afterSnapshot, firstAccount.getId(), secondAccount.getId(), 20).block(TIMEOUT);
+            assertThat(balance(restarted, firstAccount.getId()), equalTo(70L));
+
+            restarted.awaitWriteBehind().block(TIMEOUT);
+            assertThat(databaseAccounts.findById(firstAccount.getId()).blockOptional().orElseThrow().getAmountMinorUnits(), equalTo(70L));
+            assertThat(databaseAccounts.findById(secondAccount.getId()).blockOptional().orElseThrow().getAmountMinorUnits(), equalTo(30L));
+            assertThat(transactionRepository.findAllByUniqueKeyIn(List.of(beforeSnapshot, afterSnapshot)).count().block(TIMEOUT), equalTo(2L));
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    private Account account(long amount) {
+        return accountRepository.save(Account.builder()
+                .amountMinorUnits(amount)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+    }
+
+    private static long balance(InMemoryLedger ledger, long accountId) {
+        return ledger.findAccount(accountId).blockOptional().orElseThrow().getAmountMinorUnits();
+    }
+}
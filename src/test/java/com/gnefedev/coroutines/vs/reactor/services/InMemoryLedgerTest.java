@@ -0,0 +1,127 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.OptimisticLockException;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.entities.Transaction;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest(properties = {
+        "ledger.engine=in-memory",
+        "ledger.in-memory.wal-dir=${java.io.tmpdir}/ledger-wal-${random.uuid}",
+        "ledger.in-memory.segment-size=1MB",
+        "ledger.in-memory.write-behind-max-queued=1000",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class InMemoryLedgerTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final InMemoryLedger inMemoryLedger;
+    private final AccountRepository accountRepository;
+    private final AccountRepository databaseAccounts;
+    private final TransactionRepository transactionRepository;
+
+    @Autowired
+    public InMemoryLedgerTest(
+            InMemoryLedger inMemoryLedger,
+            AccountRepository accountRepository,
+            @Qualifier("accountRepository") AccountRepository databaseAccounts,
+            TransactionRepository transactionRepository
+    ) {
+        this.inMemoryLedger = inMemoryLedger;
+        this.accountRepository = accountRepository;
+        this.databaseAccounts = databaseAccounts;
+        this.transactionRepository = transactionRepository;
+    }
+
+    @Test
+    public void keyCommittedToTheDatabaseIsDuplicate() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        var transactionKey = UUID.randomUUID().toString();
+        //committed by another instance, or by another engine before this one was switched on
+        transactionRepository.insertAll(List.of(Transaction.builder()
+                .fromAccountId(firstAccount.getId())
+                .toAccountId(secondAccount.getId())
+                .amountMinorUnits(10)
+                .uniqueKey(transactionKey)
+                .build()
+        )).block(TIMEOUT);
+
+        inMemoryLedger.transfer(transactionKey, firstAccount.getId(), secondAccount.getId(), 10).block(TIMEOUT);
+
+        assertThat(balance(firstAccount.getId()), equalTo(100L));
+        assertThat(balance(secondAccount.getId()), equalTo(0L));
+        inMemoryLedger.awaitWriteBehind().block(TIMEOUT);
+        assertThat(databaseBalance(firstAccount.getId()), equalTo(100L));
+        assertThat(transactionRepository.findAllByUniqueKeyIn(List.of(transactionKey)).count().block(TIMEOUT), equalTo(1L));
+    }
+
+    @Test
+    public void keysWrittenBehindAreStillDuplicates() {
+        var firstAccount = account(2000);
+        var secondAccount = account(0);
+        var keys = new String[1500];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = UUID.randomUUID().toString();
+            inMemoryLedger.transfer(keys[i], firstAccount.getId(), secondAccount.getId(), 1).block(TIMEOUT);
+        }
+        inMemoryLedger.awaitWriteBehind().block(TIMEOUT);
+
+        //more keys than write-behind-max-queued, the first ones are known by the database only
+        for (var key : List.of(keys[0], keys[keys.length - 1])) {
+            inMemoryLedger.transfer(key, firstAccount.getId(), secondAccount.getId(), 1).block(TIMEOUT);
+        }
+
+        assertThat(balance(firstAccount.getId()), equalTo(500L));
+        assertThat(balance(secondAccount.getId()), equalTo(1500L));
+    }
+
+    @Test
+    public void repositoryChangesBalancesThroughTheLedger() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+
+        assertThat(accountRepository.withdraw(firstAccount.getId(), 30).block(TIMEOUT), equalTo(true));
+        assertThat(accountRepository.deposit(secondAccount.getId(), 30).block(TIMEOUT), equalTo(true));
+        assertThat(accountRepository.withdraw(firstAccount.getId(), 1000).block(TIMEOUT), equalTo(false));
+        assertThat(accountRepository.deposit(Long.MAX_VALUE, 30).block(TIMEOUT), equalTo(false));
+        var current = accountRepository.findById(secondAccount.getId()).blockOptional().orElseThrow();
+        accountRepository.transferAmount(secondAccount.getId(), current.getVersion(), 5).block(TIMEOUT);
+        assertThrows(OptimisticLockException.class, () -> accountRepository.transferAmount(secondAccount.getId(), current.getVersion(), 5).block(TIMEOUT));
+
+        assertThat(balance(firstAccount.getId()), equalTo(70L));
+        assertThat(balance(secondAccount.getId()), equalTo(35L));
+        inMemoryLedger.awaitWriteBehind().block(TIMEOUT);
+        assertThat(databaseBalance(firstAccount.getId()), equalTo(70L));
+        assertThat(databaseBalance(secondAccount.getId()), equalTo(35L));
+    }
+
+    private Account account(long amount) {
+        return accountRepository.save(Account.builder()
+                .amountMinorUnits(amount)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+    }
+
+    private long balance(long accountId) {
+        return inMemoryLedger.findAccount(accountId).blockOptional().orElseThrow().getAmountMinorUnits();
+    }
+
+    private long databaseBalance(long accountId) {
+        return databaseAccounts.findById(accountId).blockOptional().orElseThrow().getAmountMinorUnits();
+    }
+}
@@ -0,0 +1,106 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Runs are started by the test, the interval is too long for the background ones to come.
+ */
+@RequiredArgsConstructor(onConstructor_ = {@Autowired})
+@SpringBootTest(properties = {
+        "ledger.engine=journal",
+        "ledger.journal.materialize-interval=1h",
+        "ledger.reconciliation.enabled=false",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class JournalMaterializerTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final JournalMaterializer journalMaterializer;
+    private final TransferEngines transferEngines;
+    private final AccountRepository accountRepository;
+    private final DatabaseClient databaseClient;
+
+    @Test
+    public void pendingTransfersAreApplied() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        transfer(firstAccount, secondAccount, 30);
+
+        assertThat(row(firstAccount), equalTo(100L));
+        assertThat(projected(firstAccount), equalTo(70L));
+
+        journalMaterializer.catchUp().block(TIMEOUT);
+
+        assertThat(row(firstAccount), equalTo(70L));
+        assertThat(row(secondAccount), equalTo(30L));
+        assertThat(projected(firstAccount), equalTo(70L));
+        assertThat(pending(), equalTo(0L));
+    }
+
+    @Test
+    public void transferCommittedAfterHigherIdsIsApplied() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        transfer(firstAccount, secondAccount, 30);
+        journalMaterializer.catchUp().block(TIMEOUT);
+
+        //a transfer with a lower id than everything applied, committed only now
+        databaseClient.sql("" +
+                "INSERT INTO journal_pending (transaction_id, account_id, delta)" +
+                "   VALUES (0, :from, -10), (0, :to, 10)"
+        )
+                .bind("from", firstAccount.getId())
+                .bind("to", secondAccount.getId())
+                .fetch()
+                .rowsUpdated()
+                .block(TIMEOUT);
+        journalMaterializer.catchUp().block(TIMEOUT);
+
+        assertThat(row(firstAccount), equalTo(60L));
+        assertThat(row(secondAccount), equalTo(40L));
+        assertThat(pending(), equalTo(0L));
+    }
+
+    private Account account(long amount) {
+        return accountRepository.save(Account.builder()
+                .amountMinorUnits(amount)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+    }
+
+    private void transfer(Account from, Account to, long amount) {
+        transferEngines.transfer(UUID.randomUUID().toString(), from.getId(), to.getId(), amount).block(TIMEOUT);
+    }
+
+    private long projected(Account account) {
+        return accountRepository.findById(account.getId()).blockOptional().orElseThrow().getAmountMinorUnits();
+    }
+
+    private long row(Account account) {
+        return databaseClient.sql("SELECT amount FROM account WHERE id = :id")
+                .bind("id", account.getId())
+                .map((row, metadata) -> row.get("amount", Long.class))
+                .one()
+                .blockOptional().orElseThrow();
+    }
+
+    private long pending() {
+        return databaseClient.sql("SELECT COUNT(*) AS pending FROM journal_pending")
+                .map((row, metadata) -> row.get("pending", Long.class))
+                .one()
+                .blockOptional().orElseThrow();
+    }
+}
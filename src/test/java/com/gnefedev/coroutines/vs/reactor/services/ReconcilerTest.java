@@ -0,0 +1,238 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.controllers.DiscrepancyResponse;
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.ReconciliationRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.TransactionRepository;
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+/**
+ * Runs are started by the test, the interval is too long for the background ones to come.
+ */
+@RequiredArgsConstructor(onConstructor_ = {@Autowired})
+@SpringBootTest(properties = {
+        "ledger.reconciliation.enabled=true",
+        "ledger.reconciliation.interval=1h",
+        "ledger.reconciliation.max-rows-per-second=0",
+        "ledger.reconciliation.partitions=2",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class ReconcilerTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final Reconciler reconciler;
+    private final TransferEngines transferEngines;
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final ReconciliationRepository reconciliationRepository;
+    private final DatabaseClient databaseClient;
+    private final WebTestClient webTestClient;
+
+    @Test
+    public void corruptedBalanceIsReportedUntilRepaired() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        transfer(firstAccount, secondAccount, 30);
+        catchUp();
+        assertThat(discrepancies(firstAccount), empty());
+
+        changeBalance(firstAccount, 5);
+        //only accounts touched by new transactions are checked
+        transfer(firstAccount, secondAccount, 10);
+        catchUp();
+
+        var found = discrepancies(firstAccount);
+        assertThat(found, hasSize(1));
+        assertThat(found.get(0).getExpected(), equalTo(60L));
+        assertThat(found.get(0).getActual(), equalTo(65L));
+        assertThat(discrepancies(secondAccount), empty());
+
+        changeBalance(firstAccount, -5);
+        catchUp();
+
+        assertThat(discrepancies(firstAccount), empty());
+    }
+
+    @Test
+    public void openingBalanceIsRecordedOnSave() {
+        var account = account(100);
+
+        assertThat(reconciliationRepository.findExpected(List.of(account.getId()))
+                .map(ReconciliationRepository.AccountAmount::getAmount)
+                .collectList()
+                .block(TIMEOUT), contains(100L));
+    }
+
+    @Test
+    public void accountWithoutOpeningBalanceIsReported() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        databaseClient.sql("DELETE FROM reconciliation_balance WHERE account_id = :id")
+                .bind("id", firstAccount.getId())
+                .fetch()
+                .rowsUpdated()
+                .block(TIMEOUT);
+        transfer(firstAccount, secondAccount, 30);
+        catchUp();
+
+        var found = discrepancies(firstAccount);
+        assertThat(found, hasSize(1));
+        assertThat(found.get(0).getExpected(), equalTo(-30L));
+        assertThat(found.get(0).getActual(), equalTo(70L));
+    }
+
+    @Test
+    public void transactionCommittedLateIsCounted() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        transfer(firstAccount, secondAccount, 10);
+        var late = skipId(firstAccount, secondAccount);
+        var afterLate = transfer(firstAccount, secondAccount, 10);
+        catchUp();
+
+        assertThat(reconciliationRepository.findCheckpoint().block(TIMEOUT), equalTo(afterLate));
+        assertThat(discrepancies(firstAccount), empty());
+
+        commitLate(late, firstAccount, secondAccount, 5);
+        catchUp();
+
+        assertThat(discrepancies(firstAccount), empty());
+        assertThat(discrepancies(secondAccount), empty());
+
+        transfer(firstAccount, secondAccount, 10);
+        catchUp();
+
+        assertThat(discrepancies(firstAccount), empty());
+        assertThat(discrepancies(secondAccount), empty());
+    }
+
+    @Test
+    public void transactionCommittedAfterGapExpiryIsReported() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        var late = skipId(firstAccount, secondAccount);
+        transfer(firstAccount, secondAccount, 10);
+        catchUp();
+
+        databaseClient.sql("UPDATE reconciliation_gap SET recorded_at = DATEADD('HOUR', -1, CURRENT_TIMESTAMP) WHERE transaction_id = :id")
+                .bind("id", late)
+                .fetch()
+                .rowsUpdated()
+                .block(TIMEOUT);
+        catchUp();
+
+        commitLate(late, firstAccount, secondAccount, 5);
+        transfer(firstAccount, secondAccount, 10);
+        catchUp();
+
+        var found = discrepancies(firstAccount);
+        assertThat(found, hasSize(1));
+        assertThat(found.get(0).getExpected(), equalTo(80L));
+        assertThat(found.get(0).getActual(), equalTo(75L));
+    }
+
+    private Account account(long amount) {
+        return accountRepository.save(Account.builder()
+                .amountMinorUnits(amount)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+    }
+
+    /**
+     * @return id of the transaction
+     */
+    private long transfer(Account from, Account to, long amount) {
+        var transactionKey = UUID.randomUUID().toString();
+        transferEngines.transfer(transactionKey, from.getId(), to.getId(), amount).block(TIMEOUT);
+        return transactionRepository.findByUniqueKey(transactionKey).blockOptional().orElseThrow().getId();
+    }
+
+    /**
+     * Takes an id and leaves no row behind, as a transfer still in flight would look to the reconciliation.
+     */
+    private long skipId(Account from, Account to) {
+        var transactionKey = UUID.randomUUID().toString();
+        databaseClient.sql("" +
+                "INSERT INTO transaction (amount, from_account_id, to_account_id, unique_key)" +
+                "   VALUES (0, :from, :to, :key)"
+        )
+                .bind("from", from.getId())
+                .bind("to", to.getId())
+                .bind("key", transactionKey)
+                .fetch()
+                .rowsUpdated()
+                .block(TIMEOUT);
+        var id = transactionRepository.findByUniqueKey(transactionKey).blockOptional().orElseThrow().getId();
+        databaseClient.sql("DELETE FROM transaction WHERE id = :id")
+                .bind("id", id)
+                .fetch()
+                .rowsUpdated()
+                .block(TIMEOUT);
+        return id;
+    }
+
+    /**
+     * Commits the transfer that took the id, the row and the balances at once.
+     */
+    private void commitLate(long id, Account from, Account to, long amount) {
+        databaseClient.sql("" +
+                "INSERT INTO transaction (id, amount, from_account_id, to_account_id, unique_key)" +
+                "   VALUES (:id, :amount, :from, :to, :key)"
+        )
+                .bind("id", id)
+                .bind("amount", amount)
+                .bind("from", from.getId())
+                .bind("to", to.getId())
+                .bind("key", UUID.randomUUID().toString())
+                .fetch()
+                .rowsUpdated()
+                .block(TIMEOUT);
+        changeBalance(from, -amount);
+        changeBalance(to, amount);
+    }
+
+    private void changeBalance(Account account, long delta) {
+        databaseClient.sql("UPDATE account SET amount = amount + :delta WHERE id = :id")
+                .bind("delta", delta)
+                .bind("id", account.getId())
+                .fetch()
+                .rowsUpdated()
+                .block(TIMEOUT);
+    }
+
+    private void catchUp() {
+        reconciler.catchUp().block(TIMEOUT);
+    }
+
+    private List<DiscrepancyResponse> discrepancies(Account account) {
+        return webTestClient.get()
+                .uri("/api/ledger/reconciliation/discrepancies")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(DiscrepancyResponse.class)
+                .getResponseBody()
+                .filter(discrepancy -> discrepancy.getAccountId() == account.getId())
+                .collect(Collectors.toList())
+                .block(TIMEOUT);
+    }
+}
@@ -0,0 +1,114 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import com.gnefedev.coroutines.vs.reactor.entities.Account;
+import com.gnefedev.coroutines.vs.reactor.repos.AccountRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository.InState;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository.OutState;
+import com.gnefedev.coroutines.vs.reactor.repos.ShardRepository.ShardTransfer;
+import com.gnefedev.coroutines.vs.reactor.repos.Shards;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+/**
+ * Transfers are left reserved as a crash between the steps of {@link ShardedLedger} would leave them,
+ * sweeps are started by the test.
+ */
+@RequiredArgsConstructor(onConstructor_ = {@Autowired})
+@SpringBootTest(properties = {
+        "ledger.engine=sharded",
+        "ledger.sharding.urls[0]=r2dbc:pool:h2:mem:///ledger-recovery-shard-0?options=DB_CLOSE_DELAY=-1",
+        "ledger.sharding.urls[1]=r2dbc:pool:h2:mem:///ledger-recovery-shard-1?options=DB_CLOSE_DELAY=-1",
+        "ledger.sharding.in-doubt-after=0s",
+        "ledger.sharding.recovery-interval=1h",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class ShardRecoveryTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final ShardRecovery shardRecovery;
+    private final Shards shards;
+    private final ShardRepository shardRepository;
+    private final AccountRepository accountRepository;
+
+    @Test
+    public void reservedTransferIsCommitted() {
+        var firstAccount = account(100);
+        var secondAccount = account(0);
+        var transfer = reserve(firstAccount, secondAccount, 30);
+
+        sweep();
+
+        assertThat(outState(transfer), equalTo(OutState.COMMITTED));
+        assertThat(inState(transfer), equalTo(InState.APPLIED));
+        assertThat(balance(firstAccount), equalTo(70L));
+        assertThat(balance(secondAccount), equalTo(30L));
+    }
+
+    @Test
+    public void refusedCreditIsCancelledAndRefunded() {
+        var firstAccount = account(100);
+        var secondAccount = account(Long.MAX_VALUE - 10);
+        var transfer = reserve(firstAccount, secondAccount, 30);
+
+        sweep();
+
+        assertThat(outState(transfer), equalTo(OutState.CANCELLED));
+        assertThat(inState(transfer), equalTo(InState.ABORTED));
+        assertThat(balance(firstAccount), equalTo(100L));
+        assertThat(balance(secondAccount), equalTo(Long.MAX_VALUE - 10));
+    }
+
+    private Account account(long amount) {
+        return accountRepository.save(Account.builder()
+                .amountMinorUnits(amount)
+                .version(0)
+                .build()
+        ).blockOptional().orElseThrow();
+    }
+
+    /**
+     * The first step of a cross-shard transfer only: the amount is withdrawn and the transfer_out row is RESERVED.
+     */
+    private ShardTransfer reserve(Account from, Account to, long amount) {
+        var source = shards.forAccount(from.getId());
+        assertThat(shards.forAccount(to.getId()), not(source));
+        var transfer = new ShardTransfer(UUID.randomUUID().toString(), from.getId(), to.getId(), amount);
+        source.getTransactionalOperator().transactional(
+                shardRepository.insertTransferOut(source, transfer)
+                        .then(source.getAccounts().withdraw(from.getId(), amount))
+        ).block(TIMEOUT);
+        return transfer;
+    }
+
+    /**
+     * A transfer is in doubt once its created_at is in the past.
+     */
+    @SneakyThrows
+    private void sweep() {
+        Thread.sleep(50);
+        shardRecovery.sweep().block(TIMEOUT);
+    }
+
+    private OutState outState(ShardTransfer transfer) {
+        return shardRepository.findTransferOutState(shards.forAccount(transfer.getFromAccountId()), transfer.getUniqueKey()).block(TIMEOUT);
+    }
+
+    private InState inState(ShardTransfer transfer) {
+        return shardRepository.findTransferInState(shards.forAccount(transfer.getToAccountId()), transfer.getUniqueKey()).block(TIMEOUT);
+    }
+
+    private long balance(Account account) {
+        return accountRepository.findById(account.getId()).blockOptional().orElseThrow().getAmountMinorUnits();
+    }
+}
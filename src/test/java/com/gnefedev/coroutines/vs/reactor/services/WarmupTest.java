@@ -0,0 +1,37 @@
+package com.gnefedev.coroutines.vs.reactor.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+@RequiredArgsConstructor(onConstructor_ = {@Autowired})
+@SpringBootTest(properties = {
+        "ledger.warmup.enabled=true",
+        "ledger.warmup.transfers=20",
+        "ledger.warmup.concurrency=2",
+        "ledger.warmup.codec-rounds=10",
+        "spring.r2dbc.generate-unique-name=true"
+})
+public class WarmupTest {
+    private final MeterRegistry meterRegistry;
+
+    @Test
+    public void syntheticTransfersAreTimedApart() {
+        assertThat(meterRegistry.get("ledger.warmup").timer().count(), equalTo(1L));
+        assertThat(count(TransferEngines.WARMUP_TIMER_NAME), greaterThan(0L));
+        assertThat(count(TransferEngines.TIMER_NAME), equalTo(0L));
+    }
+
+    private long count(String timerName) {
+        return meterRegistry.find(timerName).timers().stream()
+                .mapToLong(Timer::count)
+                .sum();
+    }
+}
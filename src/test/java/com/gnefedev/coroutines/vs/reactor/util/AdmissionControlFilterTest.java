@@ -0,0 +1,125 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import com.gnefedev.coroutines.vs.reactor.LedgerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdmissionControlFilterTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final WebFilterChain NEVER = exchange -> Mono.never();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final LedgerProperties properties = new LedgerProperties();
+    private final ApplicationAvailability availability = mock(ApplicationAvailability.class);
+
+    public AdmissionControlFilterTest() {
+        when(availability.getReadinessState()).thenReturn(ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    @Test
+    public void transferOverTheLimitIsShedWithRetryAfter() {
+        properties.getAdmission().setInitialLimit(1);
+        properties.getAdmission().setMinLimit(1);
+        var filter = new AdmissionControlFilter(properties, availability, meterRegistry);
+        var holding = filter.filter(transfer(), NEVER).subscribe();
+        try {
+            var shed = transfer();
+            filter.filter(shed, NEVER).block(TIMEOUT);
+
+            assertThat(shed.getResponse().getStatusCode(), equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+            assertThat(shed.getResponse().getHeaders().getFirst(HttpHeaders.RETRY_AFTER), equalTo("1"));
+            assertThat(shedCount("limit"), equalTo(1.0));
+        } finally {
+            holding.dispose();
+        }
+    }
+
+    @Test
+    public void transferPastItsDeadlineIsShedAndCutsTheLimit() {
+        properties.getAdmission().setInitialLimit(10);
+        var filter = new AdmissionControlFilter(properties, availability, meterRegistry);
+        var exchange = MockServerWebExchange.from(MockServerHttpRequest.put("/api/ledger/transfer")
+                .header(AdmissionControlFilter.TIMEOUT_HEADER, "50"));
+
+        filter.filter(exchange, NEVER).block(TIMEOUT);
+
+        assertThat(exchange.getResponse().getStatusCode(), equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+        assertThat(shedCount("deadline"), equalTo(1.0));
+        assertThat(limit(), equalTo(9.0));
+    }
+
+    @Test
+    public void exhaustedRetriesCountAsDrop() {
+        properties.getAdmission().setInitialLimit(10);
+        var filter = new AdmissionControlFilter(properties, availability, meterRegistry);
+
+        filter.filter(transfer(), exchange -> {
+            exchange.getResponse().setStatusCode(HttpStatus.BANDWIDTH_LIMIT_EXCEEDED);
+            return Mono.empty();
+        }).block(TIMEOUT);
+        assertThat(limit(), equalTo(9.0));
+
+        filter.filter(transfer(), exchange -> {
+            exchange.getResponse().setStatusCode(HttpStatus.OK);
+            return Mono.empty();
+        }).block(TIMEOUT);
+        assertThat(limit(), equalTo(9.0));
+    }
+
+    @Test
+    public void singleAndBulkTransfersAreRefusedUntilReady() {
+        when(availability.getReadinessState()).thenReturn(ReadinessState.REFUSING_TRAFFIC);
+        var filter = new AdmissionControlFilter(properties, availability, meterRegistry);
+        var single = transfer();
+        var bulk = MockServerWebExchange.from(MockServerHttpRequest.put("/api/ledger/transfers"));
+
+        filter.filter(single, NEVER).block(TIMEOUT);
+        filter.filter(bulk, NEVER).block(TIMEOUT);
+
+        assertThat(single.getResponse().getStatusCode(), equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+        assertThat(bulk.getResponse().getStatusCode(), equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+        assertThat(shedCount("not_ready"), equalTo(2.0));
+    }
+
+    @Test
+    public void readinessGateCanBeSwitchedOff() {
+        when(availability.getReadinessState()).thenReturn(ReadinessState.REFUSING_TRAFFIC);
+        properties.getAdmission().setRefuseUntilReady(false);
+        var filter = new AdmissionControlFilter(properties, availability, meterRegistry);
+        var bulk = MockServerWebExchange.from(MockServerHttpRequest.put("/api/ledger/transfers"));
+
+        filter.filter(bulk, exchange -> {
+            exchange.getResponse().setStatusCode(HttpStatus.OK);
+            return Mono.empty();
+        }).block(TIMEOUT);
+
+        assertThat(bulk.getResponse().getStatusCode(), equalTo(HttpStatus.OK));
+    }
+
+    private static MockServerWebExchange transfer() {
+        return MockServerWebExchange.from(MockServerHttpRequest.put("/api/ledger/transfer"));
+    }
+
+    private double limit() {
+        return meterRegistry.get("ledger.admission.limit").gauge().value();
+    }
+
+    private double shedCount(String reason) {
+        return meterRegistry.get("ledger.admission.shed").tag("reason", reason).counter().count();
+    }
+}
@@ -0,0 +1,45 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DecayingCountersTest {
+    @Test
+    public void countsEveryKeyApart() {
+        var counters = new DecayingCounters(4096, Duration.ofHours(1));
+
+        for (int i = 1; i <= 8; i++) {
+            assertThat(counters.increment(1), equalTo((long) i));
+        }
+        counters.increment(2);
+
+        assertThat(counters.get(1), equalTo(8L));
+        assertThat(counters.get(2), equalTo(1L));
+        assertThat(counters.get(3), equalTo(0L));
+    }
+
+    @Test
+    public void countsDecayWithTime() throws InterruptedException {
+        var counters = new DecayingCounters(16, Duration.ofMillis(50));
+        for (int i = 0; i < 64; i++) {
+            counters.increment(1);
+        }
+
+        Thread.sleep(120);
+        assertThat(counters.get(1), lessThan(32L));
+
+        Thread.sleep(500);
+        assertThat(counters.get(1), equalTo(0L));
+    }
+
+    @Test
+    public void rejectsEmptySize() {
+        assertThrows(IllegalArgumentException.class, () -> new DecayingCounters(0, Duration.ofSeconds(1)));
+    }
+}
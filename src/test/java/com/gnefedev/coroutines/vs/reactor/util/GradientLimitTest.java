@@ -0,0 +1,108 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+public class GradientLimitTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void growsWhileLatencyHolds() {
+        var limit = new GradientLimit(10, 1, 100, 1.0, 100);
+
+        for (int i = 0; i < 5; i++) {
+            saturate(limit, FAST);
+        }
+
+        assertThat(limit.getLimit(), greaterThan(10));
+    }
+
+    @Test
+    public void shrinksWhenLatencyRises() {
+        var limit = new GradientLimit(50, 1, 100, 0.2, 100);
+        for (int i = 0; i < 5; i++) {
+            saturate(limit, FAST);
+        }
+        var before = limit.getLimit();
+
+        saturate(limit, SLOW);
+
+        assertThat(limit.getLimit(), lessThan(before));
+    }
+
+    @Test
+    public void lowLoadDoesNotMoveTheLimit() {
+        var limit = new GradientLimit(10, 1, 100, 1.0, 100);
+
+        for (int i = 0; i < 20; i++) {
+            limit.tryAcquire();
+            limit.release(i % 2 == 0 ? FAST : SLOW);
+        }
+
+        assertThat(limit.getLimit(), equalTo(10));
+    }
+
+    @Test
+    public void droppedRequestCutsTheLimit() {
+        var limit = new GradientLimit(100, 1, 100, 0.2, 100);
+
+        limit.tryAcquire();
+        limit.releaseDropped();
+
+        assertThat(limit.getLimit(), equalTo(90));
+        assertThat(limit.getInFlight(), equalTo(0));
+    }
+
+    @Test
+    public void limitStopsAtMinLimit() {
+        var limit = new GradientLimit(20, 10, 100, 0.2, 100);
+
+        for (int i = 0; i < 50; i++) {
+            limit.tryAcquire();
+            limit.releaseDropped();
+        }
+        assertThat(limit.getLimit(), equalTo(10));
+
+        limit.tryAcquire();
+        limit.release(FAST);
+        for (int i = 0; i < 3; i++) {
+            saturate(limit, SLOW * 100);
+        }
+
+        assertThat(limit.getLimit(), equalTo(10));
+    }
+
+    @Test
+    public void refusesOverTheLimit() {
+        var limit = new GradientLimit(2, 1, 100, 0.2, 100);
+
+        assertThat(limit.tryAcquire(), equalTo(true));
+        assertThat(limit.tryAcquire(), equalTo(true));
+        assertThat(limit.tryAcquire(), equalTo(false));
+
+        limit.releaseIgnored();
+
+        assertThat(limit.tryAcquire(), equalTo(true));
+        assertThat(limit.getLimit(), equalTo(2));
+    }
+
+    /**
+     * Fills every slot and releases them all with the same latency, so the samples come at full load.
+     */
+    private static void saturate(GradientLimit limit, long rttNanos) {
+        int acquired = 0;
+        while (limit.tryAcquire()) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limit.release(rttNanos);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class LoggerHelperTest {
+    private final Context context = LoggerHelper.addEntryToMDCContext(Context.empty(), "traceId", "trace-1");
+
+    @AfterEach
+    public void clear() {
+        MDC.clear();
+    }
+
+    @Test
+    public void mdcIsSetForLoggingAndClearedAfter() {
+        var seen = new AtomicReference<String>();
+
+        Mono.just(1)
+                .flatMap(value -> LoggerHelper.logWithMdc(() -> seen.set(MDC.get("traceId"))))
+                .contextWrite(context)
+                .block();
+
+        assertThat(seen.get(), equalTo("trace-1"));
+        assertThat(MDC.get("traceId"), nullValue());
+    }
+
+    @Test
+    public void mdcOfTheThreadIsPutBack() {
+        MDC.put("job", "reconciliation");
+        var seen = new AtomicReference<String>();
+
+        LoggerHelper.logWithMdc(() -> seen.set(MDC.get("traceId") + " " + MDC.get("job")))
+                .contextWrite(context)
+                .block();
+
+        assertThat(seen.get(), equalTo("trace-1 null"));
+        assertThat(MDC.get("job"), equalTo("reconciliation"));
+        assertThat(MDC.get("traceId"), nullValue());
+    }
+
+    @Test
+    public void workerThreadIsClearedAfterTheHop() {
+        var worker = Schedulers.newSingle("mdc-test");
+        try {
+            var seen = new AtomicReference<String>();
+            Mono.delay(Duration.ofMillis(1), worker)
+                    .flatMap(value -> LoggerHelper.logWithMdc(() -> seen.set(MDC.get("traceId"))))
+                    .contextWrite(context)
+                    .block();
+            var leftOnWorker = Mono.fromCallable(() -> String.valueOf(MDC.get("traceId")))
+                    .subscribeOn(worker)
+                    .block();
+
+            assertThat(seen.get(), equalTo("trace-1"));
+            assertThat(leftOnWorker, equalTo("null"));
+        } finally {
+            worker.dispose();
+        }
+    }
+
+    @Test
+    public void contextWithoutMdcLeavesTheThreadAlone() {
+        MDC.put("job", "reconciliation");
+        var seen = new AtomicReference<String>();
+
+        LoggerHelper.logWithMdc(() -> seen.set(MDC.get("job"))).block();
+
+        assertThat(seen.get(), equalTo("reconciliation"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SingleFlightTest {
+    @Test
+    public void concurrentCallsShareOneSubscription() {
+        var flight = new SingleFlight<String, Integer>();
+        var subscriptions = new AtomicInteger();
+        var upstream = Sinks.<Integer>one();
+        Supplier<Mono<Integer>> call = () -> upstream.asMono().doOnSubscribe(__ -> subscriptions.incrementAndGet());
+
+        var first = flight.execute("key", call).toFuture();
+        var second = flight.execute("key", call).toFuture();
+        assertThat(flight.getInFlight(), equalTo(1));
+
+        upstream.tryEmitValue(42);
+
+        assertThat(first.join(), equalTo(42));
+        assertThat(second.join(), equalTo(42));
+        assertThat(subscriptions.get(), equalTo(1));
+        assertThat(flight.getCoalesced(), equalTo(1L));
+        assertThat(flight.getInFlight(), equalTo(0));
+    }
+
+    @Test
+    public void otherKeysDoNotWait() {
+        var flight = new SingleFlight<String, Integer>();
+        var subscriptions = new AtomicInteger();
+        Supplier<Mono<Integer>> call = () -> Mono.<Integer>never().doOnSubscribe(__ -> subscriptions.incrementAndGet());
+
+        flight.execute("first", call).toFuture();
+        flight.execute("second", call).toFuture();
+
+        assertThat(subscriptions.get(), equalTo(2));
+        assertThat(flight.getCoalesced(), equalTo(0L));
+    }
+
+    @Test
+    public void errorIsSharedButNotCached() {
+        var flight = new SingleFlight<String, Integer>();
+        var subscriptions = new AtomicInteger();
+        var failing = Sinks.<Integer>one();
+        Supplier<Mono<Integer>> call = () -> subscriptions.incrementAndGet() == 1 ? failing.asMono() : Mono.just(7);
+
+        var first = flight.execute("key", call).toFuture();
+        var second = flight.execute("key", call).toFuture();
+        failing.tryEmitError(new IllegalStateException("boom"));
+
+        assertThat(assertThrows(CompletionException.class, first::join).getCause(), instanceOf(IllegalStateException.class));
+        assertThat(assertThrows(CompletionException.class, second::join).getCause(), instanceOf(IllegalStateException.class));
+        assertThat(flight.getInFlight(), equalTo(0));
+
+        assertThat(flight.execute("key", call).block(), equalTo(7));
+        assertThat(subscriptions.get(), equalTo(2));
+    }
+
+    @Test
+    public void cancelledFirstCallerHandsTheCallOver() {
+        var flight = new SingleFlight<String, Integer>();
+        var subscriptions = new AtomicInteger();
+        var upstream = Sinks.<Integer>one();
+        Supplier<Mono<Integer>> call = () -> upstream.asMono().doOnSubscribe(__ -> subscriptions.incrementAndGet());
+
+        var first = flight.execute("key", call).subscribe();
+        var second = flight.execute("key", call).toFuture();
+        first.dispose();
+        upstream.tryEmitValue(42);
+
+        assertThat(second.join(), equalTo(42));
+        assertThat(subscriptions.get(), equalTo(2));
+    }
+}
@@ -0,0 +1,53 @@
+package com.gnefedev.coroutines.vs.reactor.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.CompletionException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StripedExecutorTest {
+    @Test
+    public void tasksOfOneLaneRunInOrder() {
+        var executor = new StripedExecutor(1, 10);
+        var first = Sinks.<Integer>one();
+
+        var firstResult = executor.execute(1, first::asMono).toFuture();
+        var secondResult = executor.execute(1, () -> Mono.just(2)).toFuture();
+        assertThat(secondResult.isDone(), equalTo(false));
+
+        first.tryEmitValue(1);
+
+        assertThat(firstResult.join(), equalTo(1));
+        assertThat(secondResult.join(), equalTo(2));
+        executor.dispose();
+    }
+
+    @Test
+    public void fullLaneRejectsWithServiceUnavailable() {
+        var executor = new StripedExecutor(1, 2);
+        var running = Sinks.<Integer>one();
+
+        var first = executor.execute(1, running::asMono).toFuture();
+        var second = executor.execute(1, () -> Mono.just(2)).toFuture();
+        var rejected = executor.execute(1, () -> Mono.just(3)).toFuture();
+
+        var error = assertThrows(CompletionException.class, rejected::join).getCause();
+        assertThat(error, instanceOf(ResponseStatusException.class));
+        assertThat(((ResponseStatusException) error).getStatus(), equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+
+        running.tryEmitValue(1);
+        assertThat(first.join(), equalTo(1));
+        assertThat(second.join(), equalTo(2));
+        //the lane has room again
+        assertThat(executor.execute(1, () -> Mono.just(4)).block(), equalTo(4));
+        executor.dispose();
+    }
+}